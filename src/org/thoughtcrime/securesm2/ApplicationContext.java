@@ -31,6 +31,7 @@ import com.google.android.gms.security.ProviderInstaller;
 import org.thoughtcrime.securesm2.components.TypingStatusRepository;
 import org.thoughtcrime.securesm2.components.TypingStatusSender;
 import org.thoughtcrime.securesm2.crypto.PRNGFixes;
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.dependencies.AxolotlStorageModule;
 import org.thoughtcrime.securesm2.dependencies.InjectableType;
 import org.thoughtcrime.securesm2.dependencies.SignalCommunicationModule;
@@ -41,6 +42,7 @@ import org.thoughtcrime.securesm2.jobs.GcmRefreshJob;
 import org.thoughtcrime.securesm2.jobs.MultiDeviceContactUpdateJob;
 import org.thoughtcrime.securesm2.jobs.PushNotificationReceiveJob;
 import org.thoughtcrime.securesm2.jobs.RefreshUnidentifiedDeliveryAbilityJob;
+import org.thoughtcrime.securesm2.jobs.SearchIndexRebuildJob;
 import org.thoughtcrime.securesm2.logging.AndroidLogger;
 import org.thoughtcrime.securesm2.logging.CustomSignalProtocolLogger;
 import org.thoughtcrime.securesm2.logging.Log;
@@ -57,6 +59,7 @@ import org.thoughtcrime.securesm2.service.RotateSenderCertificateListener;
 import org.thoughtcrime.securesm2.service.RotateSignedPreKeyListener;
 import org.thoughtcrime.securesm2.service.UpdateApkRefreshListener;
 import org.thoughtcrime.securesm2.util.TextSecurePreferences;
+import org.thoughtcrime.securesm2.util.concurrent.SignalExecutors;
 import org.webrtc.PeerConnectionFactory;
 import org.webrtc.PeerConnectionFactory.InitializationOptions;
 import org.webrtc.voiceengine.WebRtcAudioManager;
@@ -117,6 +120,7 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
     initializeWebRtc();
     initializePendingMessages();
     initializeUnidentifiedDeliveryAbilityRefresh();
+    initializeSearchIndexRebuild();
     NotificationChannels.create(this);
     ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
   }
@@ -311,4 +315,17 @@ public class ApplicationContext extends MultiDexApplication implements Dependenc
       jobManager.add(new RefreshUnidentifiedDeliveryAbilityJob(this));
     }
   }
+
+  /**
+   * An import suspends the search index before it queues the job that rebuilds it, so if the
+   * process died in between, nothing would ever rebuild it.
+   */
+  private void initializeSearchIndexRebuild() {
+    SignalExecutors.IO.execute(() -> {
+      if (DatabaseFactory.getSearchDatabase(this).isIndexing()) {
+        Log.i(TAG, "Search index is incomplete, scheduling a rebuild.");
+        jobManager.add(new SearchIndexRebuildJob(this));
+      }
+    });
+  }
 }
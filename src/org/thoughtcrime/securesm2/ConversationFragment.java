@@ -96,10 +96,13 @@ import java.util.Set;
 public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
-  private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String TAG               = ConversationFragment.class.getSimpleName();
+  private static final String KEY_ANCHOR_DATE   = "anchor_date";
+  private static final String KEY_ANCHOR_ROW_ID = "anchor_row_id";
+  private static final String KEY_NEWER_PAGES   = "newer_pages";
+  private static final String KEY_OLDER_PAGES   = "older_pages";
 
-  private static final int PARTIAL_CONVERSATION_LIMIT = 500;
+  private static final int CONVERSATION_PAGE_SIZE     = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
   private static final int CODE_ADD_EDIT_CONTACT      = 77;
 
@@ -114,6 +117,7 @@ public class ConversationFragment extends Fragment
   private int                         startingPosition;
   private int                         previousOffset;
   private boolean                     firstLoad;
+  private boolean                     loadingNewer;
   private long                        loaderStartTime;
   private ActionMode                  actionMode;
   private Locale                      locale;
@@ -150,8 +154,8 @@ public class ConversationFragment extends Fragment
 
     topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
+    initializeLoadMoreView(topLoadMoreView, false);
+    initializeLoadMoreView(bottomLoadMoreView, true);
 
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
@@ -248,10 +252,24 @@ public class ConversationFragment extends Fragment
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
+  private void initializeLoadMoreView(ViewSwitcher loadMoreView, boolean newer) {
+    loadMoreView.setDisplayedChild(0);
     loadMoreView.setOnClickListener(v -> {
-      Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
+      ConversationLoader loader = (ConversationLoader) getLoaderManager().<Cursor>getLoader(0);
+      if (loader == null) return;
+
+      Bundle                         args   = new Bundle();
+      MmsSmsDatabase.ConversationKey anchor = loader.getAnchor();
+
+      if (anchor != null) {
+        args.putLong(KEY_ANCHOR_DATE, anchor.getDateReceived());
+        args.putString(KEY_ANCHOR_ROW_ID, anchor.getUniqueRowId());
+      }
+
+      args.putInt(KEY_NEWER_PAGES, loader.getNewerPages() + (newer ? 1 : 0));
+      args.putInt(KEY_OLDER_PAGES, loader.getOlderPages() + (newer ? 0 : 1));
+
+      loadingNewer = newer;
       getLoaderManager().restartLoader(0, args, ConversationFragment.this);
       loadMoreView.showNext();
       loadMoreView.setOnClickListener(null);
@@ -551,14 +569,18 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
-      offset = Math.max(startingPosition - (limit / 2) + 1, 0);
+    MmsSmsDatabase.ConversationKey anchor = null;
+    int                            offset = 0;
+
+    if (args.containsKey(KEY_ANCHOR_ROW_ID)) {
+      anchor = new MmsSmsDatabase.ConversationKey(args.getLong(KEY_ANCHOR_DATE), args.getString(KEY_ANCHOR_ROW_ID));
+    } else if (!args.containsKey(KEY_OLDER_PAGES) && startingPosition >= CONVERSATION_PAGE_SIZE) {
+      offset = Math.max(startingPosition - (CONVERSATION_PAGE_SIZE / 2) + 1, 0);
       startingPosition -= offset - 1;
     }
 
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, anchor, offset, CONVERSATION_PAGE_SIZE,
+                                  args.getInt(KEY_NEWER_PAGES, 0), args.getInt(KEY_OLDER_PAGES, 1), lastSeen);
   }
 
   @Override
@@ -573,7 +595,8 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+    if (loader.hasOlder()) {
+      initializeLoadMoreView(topLoadMoreView, false);
       adapter.setFooterView(topLoadMoreView);
     } else {
       adapter.setFooterView(null);
@@ -589,9 +612,14 @@ public class ConversationFragment extends Fragment
       clearHeaderIfNotTyping(adapter);
     }
 
-    if (loader.hasOffset()) {
+    if (loader.hasNewer()) {
+      initializeLoadMoreView(bottomLoadMoreView, true);
       adapter.setHeaderView(bottomLoadMoreView);
-      previousOffset = loader.getOffset();
+    }
+
+    if (loadingNewer) {
+      previousOffset = loader.getNewestPageCount();
+      loadingNewer   = false;
     }
 
     adapter.changeCursor(cursor);
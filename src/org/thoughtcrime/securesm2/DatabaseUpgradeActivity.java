@@ -337,10 +337,13 @@ public class DatabaseUpgradeActivity extends BaseActivity {
         JobManager        jobManager = ApplicationContext.getInstance(getApplicationContext()).getJobManager();
         PersistentStorage storage    = new PersistentStorage(getApplicationContext(), "TextSecureJobs", new JavaJobSerializer());
 
-        for (Job job : storage.getAllUnencrypted()) {
-          jobManager.add(job);
-          Log.i(TAG, "Migrated job with class '" + job.getClass().getSimpleName() + "' to run on new JobManager.");
+        List<Job> jobs = storage.getAllUnencrypted();
+
+        for (Job job : jobs) {
+          Log.i(TAG, "Migrating job with class '" + job.getClass().getSimpleName() + "' to run on new JobManager.");
         }
+
+        jobManager.addAll(jobs);
       }
 
       if (params[0] < COLOR_MIGRATION) {
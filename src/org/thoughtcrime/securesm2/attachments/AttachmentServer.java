@@ -7,6 +7,7 @@ import android.support.annotation.NonNull;
 import org.thoughtcrime.securesm2.logging.Log;
 
 import org.spongycastle.util.encoders.Hex;
+import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesm2.mms.PartAuthority;
 import org.thoughtcrime.securesm2.util.Util;
 
@@ -186,8 +187,10 @@ public class AttachmentServer implements Runnable {
     }
 
     protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
+      ModernDecryptingPartChannel channel     = PartAuthority.getAttachmentChannel(context, attachment.getDataUri());
+      InputStream                 inputStream = channel != null ? channel.asInputStream(cbSkip)
+                                                                : PartAuthority.getAttachmentStream(context, attachment.getDataUri());
+      long                        fileSize    = attachment.getSize();
 
       String headers = "";
       if (cbSkip > 0) {// It is a seek or skip request if there's a Range
@@ -216,7 +219,9 @@ public class AttachmentServer implements Runnable {
         output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
         output.write(headers.getBytes());
 
-        inputStream.skip(cbSkip);
+        if (channel == null) {
+          inputStream.skip(cbSkip);
+        }
 //        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
 
         // Loop as long as there's stuff to send and client has not closed
@@ -232,18 +237,22 @@ public class AttachmentServer implements Runnable {
         Log.e(TAG, "Exception thrown from streaming task:");
         Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
       }
-
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
+      finally {
+        // Cleanup
+        try {
+          if (output != null) {
+            output.close();
+          }
+        }
+        catch (IOException e) {
+          Log.e(TAG, "IOException while cleaning up streaming task:");
+          Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
+          e.printStackTrace();
+        }
+        finally {
+          Util.close(inputStream);
+          Util.close(client);
         }
-        client.close();
-      }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
       }
     }
 
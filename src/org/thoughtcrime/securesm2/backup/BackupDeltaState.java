@@ -0,0 +1,274 @@
+package org.thoughtcrime.securesm2.backup;
+
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesm2.logging.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A record of what the most recent local backup contained, so that the next backup can be written
+ * as a delta against it. For every exported table this holds the row ids that were written along
+ * with a keyed digest of each row, sorted by id.
+ *
+ * The state is kept in app private storage and replaced before the backup it describes is moved
+ * into place. If that move fails, the state names a file that doesn't exist and the next backup
+ * is a full one, whereas the other way around a failed save would hand out the same delta
+ * sequence number twice.
+ */
+public class BackupDeltaState {
+
+  private static final String TAG = BackupDeltaState.class.getSimpleName();
+
+  private static final String FILE_NAME = "backup_delta_state";
+  private static final int    VERSION   = 2;
+
+  private final byte[]                  backupId;
+  private final byte[]                  baseBackupId;
+  private final int                     deltaSequence;
+  private final int                     databaseVersion;
+  private final byte[]                  salt;
+  private final BackupKeyDerivation     keyDerivation;
+  private final Map<String, TableState> tables;
+
+  private String baseFileName;
+  private String fileName;
+
+  BackupDeltaState(@NonNull byte[] backupId,
+                   @Nullable BackupDeltaState base,
+                   int databaseVersion,
+                   @NonNull byte[] salt,
+                   @NonNull BackupKeyDerivation keyDerivation,
+                   @NonNull Map<String, TableState> tables)
+  {
+    this.backupId        = backupId;
+    this.baseBackupId    = base != null ? base.getBaseBackupId() : backupId;
+    this.deltaSequence   = base != null ? base.deltaSequence + 1 : 0;
+    this.baseFileName    = base != null ? base.baseFileName      : null;
+    this.databaseVersion = databaseVersion;
+    this.salt            = salt;
+    this.keyDerivation   = keyDerivation;
+    this.tables          = tables;
+  }
+
+  private BackupDeltaState(@NonNull byte[] backupId, @NonNull byte[] baseBackupId, int deltaSequence,
+                           int databaseVersion, @NonNull byte[] salt, @NonNull BackupKeyDerivation keyDerivation,
+                           @NonNull String baseFileName, @NonNull String fileName,
+                           @NonNull Map<String, TableState> tables)
+  {
+    this.backupId        = backupId;
+    this.baseBackupId    = baseBackupId;
+    this.deltaSequence   = deltaSequence;
+    this.databaseVersion = databaseVersion;
+    this.salt            = salt;
+    this.keyDerivation   = keyDerivation;
+    this.baseFileName    = baseFileName;
+    this.fileName        = fileName;
+    this.tables          = tables;
+  }
+
+  public static @Nullable BackupDeltaState load(@NonNull Context context) {
+    File file = new File(context.getFilesDir(), FILE_NAME);
+
+    if (!file.exists()) return null;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (in.readInt() != VERSION) return null;
+
+      byte[] backupId        = readBytes(in);
+      byte[] baseBackupId    = readBytes(in);
+      int    deltaSequence   = in.readInt();
+      int    databaseVersion = in.readInt();
+      byte[] salt            = readBytes(in);
+      int    kdfVersion      = in.readInt();
+      int    kdfCost         = in.readInt();
+      String baseFileName    = in.readUTF();
+      String fileName        = in.readUTF();
+      int    tableCount      = in.readInt();
+
+      Map<String, TableState> tables = new HashMap<>(tableCount);
+
+      for (int i=0;i<tableCount;i++) {
+        String table  = in.readUTF();
+        int    size   = in.readInt();
+        long[] ids    = new long[size];
+        long[] hashes = new long[size];
+
+        for (int j=0;j<size;j++) {
+          ids[j]    = in.readLong();
+          hashes[j] = in.readLong();
+        }
+
+        tables.put(table, new TableState(ids, hashes, size));
+      }
+
+      return new BackupDeltaState(backupId, baseBackupId, deltaSequence, databaseVersion,
+                                  salt, BackupKeyDerivation.forParameters(kdfVersion, kdfCost),
+                                  baseFileName, fileName, tables);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  /**
+   * Persists this state as the description of the backup that was written to {@code fileName}.
+   */
+  public void save(@NonNull Context context, @NonNull String fileName) throws IOException {
+    this.fileName = fileName;
+
+    if (baseFileName == null) {
+      this.baseFileName = fileName;
+    }
+
+    File file     = new File(context.getFilesDir(), FILE_NAME);
+    File tempFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+      out.writeInt(VERSION);
+      writeBytes(out, backupId);
+      writeBytes(out, baseBackupId);
+      out.writeInt(deltaSequence);
+      out.writeInt(databaseVersion);
+      writeBytes(out, salt);
+      out.writeInt(keyDerivation.getVersion());
+      out.writeInt(keyDerivation.getCost());
+      out.writeUTF(baseFileName);
+      out.writeUTF(fileName);
+      out.writeInt(tables.size());
+
+      for (Map.Entry<String, TableState> table : tables.entrySet()) {
+        TableState state = table.getValue();
+
+        out.writeUTF(table.getKey());
+        out.writeInt(state.size);
+
+        for (int i=0;i<state.size;i++) {
+          out.writeLong(state.ids[i]);
+          out.writeLong(state.hashes[i]);
+        }
+      }
+    }
+
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Failed to replace backup delta state.");
+    }
+  }
+
+  public boolean isFullBackup() {
+    return deltaSequence == 0;
+  }
+
+  public int getDeltaSequence() {
+    return deltaSequence;
+  }
+
+  public int getDatabaseVersion() {
+    return databaseVersion;
+  }
+
+  /**
+   * Deltas reuse the salt and key derivation of the full backup they are chained to, so a chain
+   * can only be continued while those still match what a new full backup would use.
+   */
+  public boolean usesDefaultKeyDerivation() {
+    return keyDerivation.equals(BackupKeyDerivation.getDefault());
+  }
+
+  public @Nullable String getBaseFileName() {
+    return baseFileName;
+  }
+
+  public @Nullable String getFileName() {
+    return fileName;
+  }
+
+  @NonNull byte[] getBackupId() {
+    return backupId;
+  }
+
+  @NonNull byte[] getBaseBackupId() {
+    return baseBackupId;
+  }
+
+  @NonNull byte[] getSalt() {
+    return salt;
+  }
+
+  @NonNull BackupKeyDerivation getKeyDerivation() {
+    return keyDerivation;
+  }
+
+  @Nullable TableState getTableState(@NonNull String table) {
+    return tables.get(table);
+  }
+
+  private static @NonNull byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedShort()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] bytes) throws IOException {
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Row ids and row digests for a single table, in ascending id order. Only tables keyed by an
+   * integer {@code _id} are tracked, anything else is rewritten in full by every delta.
+   */
+  static class TableState {
+
+    private long[] ids;
+    private long[] hashes;
+    private int    size;
+
+    TableState() {
+      this(new long[16], new long[16], 0);
+    }
+
+    private TableState(@NonNull long[] ids, @NonNull long[] hashes, int size) {
+      this.ids    = ids;
+      this.hashes = hashes;
+      this.size   = size;
+    }
+
+    void add(long id, long hash) {
+      if (size == ids.length) {
+        ids    = Arrays.copyOf(ids, size * 2);
+        hashes = Arrays.copyOf(hashes, size * 2);
+      }
+
+      ids[size]    = id;
+      hashes[size] = hash;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long getId(int index) {
+      return ids[index];
+    }
+
+    long getHash(int index) {
+      return hashes[index];
+    }
+  }
+}
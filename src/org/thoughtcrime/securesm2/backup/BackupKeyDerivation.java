@@ -0,0 +1,178 @@
+package org.thoughtcrime.securesm2.backup;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.greenrobot.eventbus.EventBus;
+import org.spongycastle.crypto.generators.SCrypt;
+import org.thoughtcrime.securesm2.backup.FullBackupBase.BackupEvent;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.whispersystems.libsignal.util.ByteUtil;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Stretches a backup passphrase into a 32 byte key. The version and cost of the derivation are
+ * written to the plaintext header of every backup, so that a reader can reproduce it and the
+ * default can be made stronger without breaking older files.
+ */
+abstract class BackupKeyDerivation {
+
+  private static final String TAG = BackupKeyDerivation.class.getSimpleName();
+
+  static final int VERSION_ITERATED_SHA512 = 0;
+  static final int VERSION_SCRYPT          = 1;
+
+  static @NonNull BackupKeyDerivation getDefault() {
+    return new Scrypt(Scrypt.DEFAULT_COST);
+  }
+
+  /**
+   * @return The derivation described by a backup header. Headers written before the version was
+   *         recorded used 250,000 rounds of SHA-512.
+   */
+  static @NonNull BackupKeyDerivation forHeader(@NonNull BackupProtos.Header header) throws IOException {
+    if (!header.hasKdfVersion()) {
+      return new IteratedSha512(IteratedSha512.LEGACY_ITERATIONS);
+    }
+
+    return forParameters(header.getKdfVersion(), header.getKdfCost());
+  }
+
+  /**
+   * Costs are bounds checked here, since they come from the unauthenticated backup header and an
+   * unreasonable one could otherwise exhaust memory or hang a restore.
+   */
+  static @NonNull BackupKeyDerivation forParameters(int version, int cost) throws IOException {
+    switch (version) {
+      case VERSION_ITERATED_SHA512:
+        if (cost <= 0 || cost > IteratedSha512.MAX_ITERATIONS) throw new IOException("Invalid iteration count: " + cost);
+        return new IteratedSha512(cost);
+      case VERSION_SCRYPT:
+        if (cost < Scrypt.MIN_COST || cost > Scrypt.MAX_COST) throw new IOException("Invalid scrypt cost: " + cost);
+        return new Scrypt(cost);
+      default:
+        throw new IOException("Unsupported key derivation version: " + version);
+    }
+  }
+
+  abstract int getVersion();
+
+  abstract int getCost();
+
+  @NonNull byte[] deriveKey(@NonNull String passphrase, @Nullable byte[] salt) {
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+
+    long   startTime = System.currentTimeMillis();
+    byte[] key       = derive(passphrase.replace(" ", "").getBytes(), salt);
+
+    Log.i(TAG, "Derived backup key with " + this + " in " + (System.currentTimeMillis() - startTime) + " ms");
+
+    return key;
+  }
+
+  protected abstract @NonNull byte[] derive(@NonNull byte[] passphrase, @Nullable byte[] salt);
+
+  @Override
+  public @NonNull String toString() {
+    return getClass().getSimpleName() + "(" + getCost() + ")";
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof BackupKeyDerivation)) return false;
+
+    BackupKeyDerivation that = (BackupKeyDerivation) other;
+    return getVersion() == that.getVersion() && getCost() == that.getCost();
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * getVersion() + getCost();
+  }
+
+  /**
+   * The original derivation, kept so that existing backups can still be restored.
+   */
+  static class IteratedSha512 extends BackupKeyDerivation {
+
+    static final int LEGACY_ITERATIONS = 250000;
+
+    private static final int MAX_ITERATIONS  = 10000000;
+    private static final int PROGRESS_ROUNDS = 25000;
+
+    private final int iterations;
+
+    private IteratedSha512(int iterations) {
+      this.iterations = iterations;
+    }
+
+    @Override
+    int getVersion() {
+      return VERSION_ITERATED_SHA512;
+    }
+
+    @Override
+    int getCost() {
+      return iterations;
+    }
+
+    @Override
+    protected @NonNull byte[] derive(@NonNull byte[] input, @Nullable byte[] salt) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-512");
+        byte[]        hash   = input;
+
+        if (salt != null) digest.update(salt);
+
+        for (int i=0;i<iterations;i++) {
+          if (i > 0 && i % PROGRESS_ROUNDS == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+          digest.update(hash);
+          hash = digest.digest(input);
+        }
+
+        return ByteUtil.trim(hash, 32);
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /**
+   * scrypt with r = 8 and p = 1. The cost is log2(N), so each step doubles both the time taken
+   * and the memory used, which is 2^cost KiB.
+   */
+  static class Scrypt extends BackupKeyDerivation {
+
+    static final int DEFAULT_COST = 14;
+
+    private static final int MIN_COST        = 10;
+    private static final int MAX_COST        = 18;
+    private static final int BLOCK_SIZE      = 8;
+    private static final int PARALLELIZATION = 1;
+
+    private final int cost;
+
+    private Scrypt(int cost) {
+      this.cost = cost;
+    }
+
+    @Override
+    int getVersion() {
+      return VERSION_SCRYPT;
+    }
+
+    @Override
+    int getCost() {
+      return cost;
+    }
+
+    @Override
+    protected @NonNull byte[] derive(@NonNull byte[] passphrase, @Nullable byte[] salt) {
+      return SCrypt.generate(passphrase, salt != null ? salt : new byte[0], 1 << cost, BLOCK_SIZE, PARALLELIZATION, 32);
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesm2.backup;
+
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single worker thread fed through a bounded queue. Items are handled strictly in the order
+ * they were submitted, and a failure on the worker is rethrown to whoever submits or finishes next.
+ */
+class BackupPipelineStage<T> {
+
+  private static final Object END_OF_STREAM = new Object();
+
+  private final BlockingQueue<Object> queue;
+  private final Thread                thread;
+
+  private volatile IOException failure;
+
+  BackupPipelineStage(@NonNull String name, int capacity, @NonNull Handler<T> handler) {
+    this.queue  = new ArrayBlockingQueue<>(capacity);
+    this.thread = new Thread(() -> run(handler), name);
+    this.thread.start();
+  }
+
+  void submit(@NonNull T item) throws IOException {
+    enqueue(item);
+  }
+
+  /**
+   * Waits for every submitted item to be handled.
+   */
+  void finish() throws IOException {
+    enqueue(END_OF_STREAM);
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for " + thread.getName());
+    }
+
+    throwIfFailed();
+  }
+
+  /**
+   * @return True if the worker has stopped because handling an item failed or it was aborted.
+   */
+  boolean isFailed() {
+    return failure != null;
+  }
+
+  /**
+   * Stops the worker without handling anything still queued.
+   */
+  void abort() {
+    thread.interrupt();
+  }
+
+  private void enqueue(@NonNull Object item) throws IOException {
+    try {
+      while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+        throwIfFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while submitting to " + thread.getName());
+    }
+
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() throws IOException {
+    if (failure != null) throw new IOException(thread.getName() + " failed", failure);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void run(@NonNull Handler<T> handler) {
+    try {
+      Object item;
+
+      while ((item = queue.take()) != END_OF_STREAM) {
+        handler.handle((T) item);
+      }
+    } catch (IOException e) {
+      failure = e;
+    } catch (InterruptedException e) {
+      failure = new InterruptedIOException("Interrupted");
+    } catch (RuntimeException e) {
+      failure = new IOException(e);
+    }
+  }
+
+  interface Handler<T> {
+    void handle(@NonNull T item) throws IOException;
+  }
+}
@@ -3950,6 +3950,56 @@ public final class BackupProtos {
      * <code>optional bytes salt = 2;</code>
      */
     com.google.protobuf.ByteString getSalt();
+
+    // optional bytes backupId = 3;
+    /**
+     * <code>optional bytes backupId = 3;</code>
+     */
+    boolean hasBackupId();
+    /**
+     * <code>optional bytes backupId = 3;</code>
+     */
+    com.google.protobuf.ByteString getBackupId();
+
+    // optional bytes baseBackupId = 4;
+    /**
+     * <code>optional bytes baseBackupId = 4;</code>
+     */
+    boolean hasBaseBackupId();
+    /**
+     * <code>optional bytes baseBackupId = 4;</code>
+     */
+    com.google.protobuf.ByteString getBaseBackupId();
+
+    // optional uint32 deltaSequence = 5;
+    /**
+     * <code>optional uint32 deltaSequence = 5;</code>
+     */
+    boolean hasDeltaSequence();
+    /**
+     * <code>optional uint32 deltaSequence = 5;</code>
+     */
+    int getDeltaSequence();
+
+    // optional uint32 kdfVersion = 6;
+    /**
+     * <code>optional uint32 kdfVersion = 6;</code>
+     */
+    boolean hasKdfVersion();
+    /**
+     * <code>optional uint32 kdfVersion = 6;</code>
+     */
+    int getKdfVersion();
+
+    // optional uint32 kdfCost = 7;
+    /**
+     * <code>optional uint32 kdfCost = 7;</code>
+     */
+    boolean hasKdfCost();
+    /**
+     * <code>optional uint32 kdfCost = 7;</code>
+     */
+    int getKdfCost();
   }
   /**
    * Protobuf type {@code signal.Header}
@@ -4012,6 +4062,31 @@ public final class BackupProtos {
               salt_ = input.readBytes();
               break;
             }
+            case 26: {
+              bitField0_ |= 0x00000004;
+              backupId_ = input.readBytes();
+              break;
+            }
+            case 34: {
+              bitField0_ |= 0x00000008;
+              baseBackupId_ = input.readBytes();
+              break;
+            }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              deltaSequence_ = input.readUInt32();
+              break;
+            }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              kdfVersion_ = input.readUInt32();
+              break;
+            }
+            case 56: {
+              bitField0_ |= 0x00000040;
+              kdfCost_ = input.readUInt32();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -4084,9 +4159,94 @@ public final class BackupProtos {
       return salt_;
     }
 
+    // optional bytes backupId = 3;
+    public static final int BACKUPID_FIELD_NUMBER = 3;
+    private com.google.protobuf.ByteString backupId_;
+    /**
+     * <code>optional bytes backupId = 3;</code>
+     */
+    public boolean hasBackupId() {
+      return ((bitField0_ & 0x00000004) == 0x00000004);
+    }
+    /**
+     * <code>optional bytes backupId = 3;</code>
+     */
+    public com.google.protobuf.ByteString getBackupId() {
+      return backupId_;
+    }
+
+    // optional bytes baseBackupId = 4;
+    public static final int BASEBACKUPID_FIELD_NUMBER = 4;
+    private com.google.protobuf.ByteString baseBackupId_;
+    /**
+     * <code>optional bytes baseBackupId = 4;</code>
+     */
+    public boolean hasBaseBackupId() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    /**
+     * <code>optional bytes baseBackupId = 4;</code>
+     */
+    public com.google.protobuf.ByteString getBaseBackupId() {
+      return baseBackupId_;
+    }
+
+    // optional uint32 deltaSequence = 5;
+    public static final int DELTASEQUENCE_FIELD_NUMBER = 5;
+    private int deltaSequence_;
+    /**
+     * <code>optional uint32 deltaSequence = 5;</code>
+     */
+    public boolean hasDeltaSequence() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    /**
+     * <code>optional uint32 deltaSequence = 5;</code>
+     */
+    public int getDeltaSequence() {
+      return deltaSequence_;
+    }
+
+    // optional uint32 kdfVersion = 6;
+    public static final int KDFVERSION_FIELD_NUMBER = 6;
+    private int kdfVersion_;
+    /**
+     * <code>optional uint32 kdfVersion = 6;</code>
+     */
+    public boolean hasKdfVersion() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    /**
+     * <code>optional uint32 kdfVersion = 6;</code>
+     */
+    public int getKdfVersion() {
+      return kdfVersion_;
+    }
+
+    // optional uint32 kdfCost = 7;
+    public static final int KDFCOST_FIELD_NUMBER = 7;
+    private int kdfCost_;
+    /**
+     * <code>optional uint32 kdfCost = 7;</code>
+     */
+    public boolean hasKdfCost() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    /**
+     * <code>optional uint32 kdfCost = 7;</code>
+     */
+    public int getKdfCost() {
+      return kdfCost_;
+    }
+
     private void initFields() {
       iv_ = com.google.protobuf.ByteString.EMPTY;
       salt_ = com.google.protobuf.ByteString.EMPTY;
+      backupId_ = com.google.protobuf.ByteString.EMPTY;
+      baseBackupId_ = com.google.protobuf.ByteString.EMPTY;
+      deltaSequence_ = 0;
+      kdfVersion_ = 0;
+      kdfCost_ = 0;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -4106,6 +4266,21 @@ public final class BackupProtos {
       if (((bitField0_ & 0x00000002) == 0x00000002)) {
         output.writeBytes(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        output.writeBytes(3, backupId_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeBytes(4, baseBackupId_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeUInt32(5, deltaSequence_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeUInt32(6, kdfVersion_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeUInt32(7, kdfCost_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -4123,6 +4298,26 @@ public final class BackupProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(3, backupId_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(4, baseBackupId_);
+      }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(5, deltaSequence_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(6, kdfVersion_);
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(7, kdfCost_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -4243,6 +4438,16 @@ public final class BackupProtos {
         bitField0_ = (bitField0_ & ~0x00000001);
         salt_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000002);
+        backupId_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000004);
+        baseBackupId_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000008);
+        deltaSequence_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000010);
+        kdfVersion_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        kdfCost_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000040);
         return this;
       }
 
@@ -4279,6 +4484,26 @@ public final class BackupProtos {
           to_bitField0_ |= 0x00000002;
         }
         result.salt_ = salt_;
+        if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+          to_bitField0_ |= 0x00000004;
+        }
+        result.backupId_ = backupId_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.baseBackupId_ = baseBackupId_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.deltaSequence_ = deltaSequence_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.kdfVersion_ = kdfVersion_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.kdfCost_ = kdfCost_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -4301,6 +4526,21 @@ public final class BackupProtos {
         if (other.hasSalt()) {
           setSalt(other.getSalt());
         }
+        if (other.hasBackupId()) {
+          setBackupId(other.getBackupId());
+        }
+        if (other.hasBaseBackupId()) {
+          setBaseBackupId(other.getBaseBackupId());
+        }
+        if (other.hasDeltaSequence()) {
+          setDeltaSequence(other.getDeltaSequence());
+        }
+        if (other.hasKdfVersion()) {
+          setKdfVersion(other.getKdfVersion());
+        }
+        if (other.hasKdfCost()) {
+          setKdfCost(other.getKdfCost());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -4400,6 +4640,177 @@ public final class BackupProtos {
         return this;
       }
 
+      // optional bytes backupId = 3;
+      private com.google.protobuf.ByteString backupId_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes backupId = 3;</code>
+       */
+      public boolean hasBackupId() {
+        return ((bitField0_ & 0x00000004) == 0x00000004);
+      }
+      /**
+       * <code>optional bytes backupId = 3;</code>
+       */
+      public com.google.protobuf.ByteString getBackupId() {
+        return backupId_;
+      }
+      /**
+       * <code>optional bytes backupId = 3;</code>
+       */
+      public Builder setBackupId(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000004;
+        backupId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bytes backupId = 3;</code>
+       */
+      public Builder clearBackupId() {
+        bitField0_ = (bitField0_ & ~0x00000004);
+        backupId_ = getDefaultInstance().getBackupId();
+        onChanged();
+        return this;
+      }
+
+      // optional bytes baseBackupId = 4;
+      private com.google.protobuf.ByteString baseBackupId_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes baseBackupId = 4;</code>
+       */
+      public boolean hasBaseBackupId() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      /**
+       * <code>optional bytes baseBackupId = 4;</code>
+       */
+      public com.google.protobuf.ByteString getBaseBackupId() {
+        return baseBackupId_;
+      }
+      /**
+       * <code>optional bytes baseBackupId = 4;</code>
+       */
+      public Builder setBaseBackupId(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000008;
+        baseBackupId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bytes baseBackupId = 4;</code>
+       */
+      public Builder clearBaseBackupId() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        baseBackupId_ = getDefaultInstance().getBaseBackupId();
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 deltaSequence = 5;
+      private int deltaSequence_ ;
+      /**
+       * <code>optional uint32 deltaSequence = 5;</code>
+       */
+      public boolean hasDeltaSequence() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      /**
+       * <code>optional uint32 deltaSequence = 5;</code>
+       */
+      public int getDeltaSequence() {
+        return deltaSequence_;
+      }
+      /**
+       * <code>optional uint32 deltaSequence = 5;</code>
+       */
+      public Builder setDeltaSequence(int value) {
+        bitField0_ |= 0x00000010;
+        deltaSequence_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 deltaSequence = 5;</code>
+       */
+      public Builder clearDeltaSequence() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        deltaSequence_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 kdfVersion = 6;
+      private int kdfVersion_ ;
+      /**
+       * <code>optional uint32 kdfVersion = 6;</code>
+       */
+      public boolean hasKdfVersion() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 6;</code>
+       */
+      public int getKdfVersion() {
+        return kdfVersion_;
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 6;</code>
+       */
+      public Builder setKdfVersion(int value) {
+        bitField0_ |= 0x00000020;
+        kdfVersion_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfVersion = 6;</code>
+       */
+      public Builder clearKdfVersion() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        kdfVersion_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional uint32 kdfCost = 7;
+      private int kdfCost_ ;
+      /**
+       * <code>optional uint32 kdfCost = 7;</code>
+       */
+      public boolean hasKdfCost() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      /**
+       * <code>optional uint32 kdfCost = 7;</code>
+       */
+      public int getKdfCost() {
+        return kdfCost_;
+      }
+      /**
+       * <code>optional uint32 kdfCost = 7;</code>
+       */
+      public Builder setKdfCost(int value) {
+        bitField0_ |= 0x00000040;
+        kdfCost_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 kdfCost = 7;</code>
+       */
+      public Builder clearKdfCost() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        kdfCost_ = 0;
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:signal.Header)
     }
 
@@ -6019,16 +6430,18 @@ public final class BackupProtos {
       "tachment\022\r\n\005rowId\030\001 \001(\004\022\024\n\014attachmentId\030" +
       "\002 \001(\004\022\016\n\006length\030\003 \001(\r\"&\n\006Avatar\022\014\n\004name\030",
       "\001 \001(\t\022\016\n\006length\030\002 \001(\r\"\"\n\017DatabaseVersion" +
-      "\022\017\n\007version\030\001 \001(\r\"\"\n\006Header\022\n\n\002iv\030\001 \001(\014\022" +
-      "\014\n\004salt\030\002 \001(\014\"\203\002\n\013BackupFrame\022\036\n\006header\030" +
-      "\001 \001(\0132\016.signal.Header\022\'\n\tstatement\030\002 \001(\013" +
-      "2\024.signal.SqlStatement\022,\n\npreference\030\003 \001" +
-      "(\0132\030.signal.SharedPreference\022&\n\nattachme" +
-      "nt\030\004 \001(\0132\022.signal.Attachment\022(\n\007version\030" +
-      "\005 \001(\0132\027.signal.DatabaseVersion\022\013\n\003end\030\006 " +
-      "\001(\010\022\036\n\006avatar\030\007 \001(\0132\016.signal.AvatarB1\n!o" +
-      "rg.thoughtcrime.securesm2.backupB\014Backup",
-      "Protos"
+      "\022\017\n\007version\030\001 \001(\r\"\206\001\n\006Header\022\n\n\002iv\030\001 \001(\014" +
+      "\022\014\n\004salt\030\002 \001(\014\022\020\n\010backupId\030\003 \001(\014\022\024\n\014base" +
+      "BackupId\030\004 \001(\014\022\025\n\rdeltaSequence\030\005 \001(\r\022\022\n" +
+      "\nkdfVersion\030\006 \001(\r\022\017\n\007kdfCost\030\007 \001(\r\"\203\002\n\013B" +
+      "ackupFrame\022\036\n\006header\030\001 \001(\0132\016.signal.Head" +
+      "er\022\'\n\tstatement\030\002 \001(\0132\024.signal.SqlStatem" +
+      "ent\022,\n\npreference\030\003 \001(\0132\030.signal.SharedP" +
+      "reference\022&\n\nattachment\030\004 \001(\0132\022.signal.A" +
+      "ttachment\022(\n\007version\030\005 \001(\0132\027.signal.Data",
+      "baseVersion\022\013\n\003end\030\006 \001(\010\022\036\n\006avatar\030\007 \001(\013" +
+      "2\016.signal.AvatarB1\n!org.thoughtcrime.sec" +
+      "uresm2.backupB\014BackupProtos"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -6076,7 +6489,7 @@ public final class BackupProtos {
           internal_static_signal_Header_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_signal_Header_descriptor,
-              new java.lang.String[] { "Iv", "Salt", });
+              new java.lang.String[] { "Iv", "Salt", "BackupId", "BaseBackupId", "DeltaSequence", "KdfVersion", "KdfCost", });
           internal_static_signal_BackupFrame_descriptor =
             getDescriptor().getMessageTypes().get(6);
           internal_static_signal_BackupFrame_fieldAccessorTable = new
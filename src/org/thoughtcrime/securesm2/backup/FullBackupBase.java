@@ -4,11 +4,14 @@ package org.thoughtcrime.securesm2.backup;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import org.greenrobot.eventbus.EventBus;
-import org.whispersystems.libsignal.util.ByteUtil;
+import org.thoughtcrime.securesm2.util.Conversions;
+import org.thoughtcrime.securesm2.util.Hex;
 
+import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 public abstract class FullBackupBase {
 
@@ -16,24 +19,51 @@ public abstract class FullBackupBase {
   private static final String TAG = FullBackupBase.class.getSimpleName();
 
   static class BackupStream {
-    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
-      try {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+    static @NonNull byte[] getBackupKey(@NonNull BackupKeyCache keyCache, @NonNull BackupKeyDerivation keyDerivation,
+                                        @NonNull String passphrase, @Nullable byte[] salt)
+    {
+      return keyCache.get(keyDerivation, passphrase, salt);
+    }
+  }
+
+  /**
+   * Keys derived during a single import or export, so that files which share a salt, such as a
+   * full backup and the deltas chained to it, only pay for key derivation once. Entries are keyed
+   * by a digest of the passphrase and salt so that the passphrase itself isn't kept around.
+   */
+  static class BackupKeyCache {
+
+    private final Map<String, byte[]> keys = new HashMap<>();
+
+    synchronized @NonNull byte[] get(@NonNull BackupKeyDerivation keyDerivation, @NonNull String passphrase, @Nullable byte[] salt) {
+      String cacheKey = getCacheKey(keyDerivation, passphrase, salt);
+      byte[] key      = keys.get(cacheKey);
 
-        MessageDigest digest = MessageDigest.getInstance("SHA-512");
-        byte[]        input  = passphrase.replace(" ", "").getBytes();
-        byte[]        hash   = input;
+      if (key == null) {
+        key = keyDerivation.deriveKey(passphrase, salt);
+        keys.put(cacheKey, key);
+      }
+
+      return key;
+    }
 
-        if (salt != null) digest.update(salt);
+    private static @NonNull String getCacheKey(@NonNull BackupKeyDerivation keyDerivation, @NonNull String passphrase, @Nullable byte[] salt) {
+      try {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+        digest.update(keyDerivation.toString().getBytes("UTF-8"));
+        digest.update((byte) 0);
 
-        for (int i=0;i<250000;i++) {
-          if (i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
-          digest.update(hash);
-          hash = digest.digest(input);
+        if (salt != null) {
+          digest.update(Conversions.intToByteArray(salt.length));
+          digest.update(salt);
         }
 
-        return ByteUtil.trim(hash, 32);
-      } catch (NoSuchAlgorithmException e) {
+        digest.update((byte) 0);
+        digest.update(passphrase.getBytes("UTF-8"));
+
+        return Hex.toStringCondensed(digest.digest());
+      } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
         throw new AssertionError(e);
       }
     }
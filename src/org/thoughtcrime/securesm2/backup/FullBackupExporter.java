@@ -7,7 +7,6 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
-import com.annimon.stream.function.Consumer;
 import com.annimon.stream.function.Predicate;
 import com.google.protobuf.ByteString;
 
@@ -15,6 +14,7 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesm2.attachments.AttachmentId;
+import org.thoughtcrime.securesm2.backup.BackupDeltaState.TableState;
 import org.thoughtcrime.securesm2.crypto.AttachmentSecret;
 import org.thoughtcrime.securesm2.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesm2.crypto.IdentityKeyUtil;
@@ -40,12 +40,21 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -60,52 +69,108 @@ public class FullBackupExporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase)
+  private static final int  FRAME_QUEUE_CAPACITY   = 512;
+  private static final int  DECRYPT_QUEUE_CAPACITY = 64;
+  private static final int  WRITE_QUEUE_CAPACITY   = 16;
+  private static final long PROGRESS_INTERVAL_MS   = 250;
+  private static final int  MAX_DELETE_BATCH       = 500;
+
+  private static final String ROW_ID = "_id";
+
+  /**
+   * Rows are read from the database on the calling thread, attachments are decrypted on a second
+   * thread, frames are serialized and encrypted on a third and written to disk on a fourth. Each
+   * stage is fed through a bounded queue and handles its input in order, so the frame stream is
+   * identical to one written by a single thread.
+   *
+   * If {@code previous} is supplied, only the difference against the backup it describes is
+   * written: the schema is left out, rows that are new or changed are (re)inserted along with
+   * their attachments, and rows that have since disappeared are deleted. The resulting file can
+   * only be restored on top of the backups it was chained to.
+   *
+   * If anything can't be read or written, including an attachment, the export fails and the
+   * partially written file is deleted rather than left looking like a complete backup.
+   *
+   * @return A description of what was exported, to be passed back in for the next delta.
+   */
+  public static @NonNull BackupDeltaState export(@NonNull  Context context,
+                                                 @NonNull  AttachmentSecret attachmentSecret,
+                                                 @NonNull  SQLiteDatabase input,
+                                                 @NonNull  File output,
+                                                 @NonNull  String passphrase,
+                                                 @Nullable BackupDeltaState previous)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase);
-    outputStream.writeDatabaseVersion(input.getVersion());
-
-    List<String> tables = exportSchema(input, outputStream);
-    int          count  = 0;
-
-    for (String table : tables) {
-      if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
-      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
-      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
-      } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
-                 !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
-                 !table.equals(SessionDatabase.TABLE_NAME)            &&
-                 !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
-                 !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME))
-      {
-        count = exportTable(table, input, outputStream, null, null, count);
+    byte[]                         backupId     = Util.getSecretBytes(16);
+    DeltaTracker                   delta        = new DeltaTracker(attachmentSecret, previous);
+    BackupFrameOutputStream        outputStream = new BackupFrameOutputStream(output, passphrase, backupId, previous);
+    BackupPipelineStage<FrameTask> framer       = new BackupPipelineStage<>("signal-backup-framer", FRAME_QUEUE_CAPACITY, task -> task.writeTo(outputStream));
+    BackupPipelineStage<Plaintext> decrypter    = new BackupPipelineStage<>("signal-backup-decrypter", DECRYPT_QUEUE_CAPACITY, Plaintext::fill);
+    ProgressReporter               progress     = new ProgressReporter();
+    boolean                        complete     = false;
+    int                            count        = 0;
+    int                            version      = input.getVersion();
+
+    try {
+      framer.submit(out -> out.writeDatabaseVersion(version));
+
+      List<String> tables = exportSchema(input, framer, !delta.isDelta());
+
+      for (String table : tables) {
+        if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
+          count = exportTable(table, input, framer, progress, delta, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
+        } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
+          count = exportTable(table, input, framer, progress, delta, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
+        } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+          count = exportTable(table, input, framer, progress, delta, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, decrypter, framer), count);
+        } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
+                   !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
+                   !table.equals(SessionDatabase.TABLE_NAME)            &&
+                   !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
+                   !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME))
+        {
+          count = exportTable(table, input, framer, progress, delta, null, null, count);
+        }
       }
-    }
 
-    for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(preference);
-    }
+      for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
+        progress.onProgress(++count);
+        framer.submit(out -> out.write(preference));
+      }
 
-    for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
+      for (File avatar : AvatarHelper.getAvatarFiles(context)) {
+        progress.onProgress(++count);
+        framer.submit(out -> {
+          try (InputStream avatarStream = new FileInputStream(avatar)) {
+            out.write(avatar.getName(), avatarStream, avatar.length());
+          }
+        });
+      }
+
+      framer.submit(BackupFrameOutputStream::writeEnd);
+      decrypter.finish();
+      framer.finish();
+
+      outputStream.close();
+      complete = true;
+    } finally {
+      if (!complete) {
+        decrypter.abort();
+        framer.abort();
+        outputStream.abort();
+
+        if (output.exists() && !output.delete()) {
+          Log.w(TAG, "Failed to delete the partial backup.");
+        }
+      }
     }
 
-    outputStream.writeEnd();
-    outputStream.close();
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+
+    return new BackupDeltaState(backupId, previous, version, outputStream.salt, outputStream.keyDerivation, delta.tables);
   }
 
-  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
+  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupPipelineStage<FrameTask> framer, boolean writeStatements)
       throws IOException
   {
     List<String> tables = new LinkedList<>();
@@ -126,7 +191,10 @@ public class FullBackupExporter extends FullBackupBase {
               tables.add(name);
             }
 
-            outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)).build());
+            if (writeStatements) {
+              BackupProtos.SqlStatement statement = BackupProtos.SqlStatement.newBuilder().setStatement(sql).build();
+              framer.submit(out -> out.write(statement));
+            }
           }
         }
       }
@@ -137,96 +205,192 @@ public class FullBackupExporter extends FullBackupBase {
 
   private static int exportTable(@NonNull   String table,
                                  @NonNull   SQLiteDatabase input,
-                                 @NonNull   BackupFrameOutputStream outputStream,
+                                 @NonNull   BackupPipelineStage<FrameTask> framer,
+                                 @NonNull   ProgressReporter progress,
+                                 @NonNull   DeltaTracker delta,
                                  @Nullable  Predicate<Cursor> predicate,
-                                 @Nullable  Consumer<Cursor> postProcess,
+                                 @Nullable  RowProcessor postProcess,
                                             int count)
       throws IOException
   {
-    String template = "INSERT INTO " + table + " VALUES ";
+    String     template      = "INSERT INTO " + table + " VALUES ";
+    boolean    keyed         = hasRowIdColumn(input, table);
+    TableState previousRows  = keyed ? delta.getPreviousState(table) : null;
+    TableState rows          = keyed ? delta.startTable(table)       : null;
+    List<Long> deleted       = new LinkedList<>();
+    int        previousIndex = 0;
+
+    if (delta.isDelta() && previousRows == null) {
+      submitStatement(framer, BackupProtos.SqlStatement.newBuilder().setStatement("DELETE FROM " + table).build());
+    }
+
+    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table + (keyed ? " ORDER BY " + ROW_ID : ""), null)) {
+      int rowIdColumn = keyed && cursor != null ? cursor.getColumnIndexOrThrow(ROW_ID) : -1;
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        progress.onProgress(++count);
 
-        if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
-            } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
-            }
+        long    rowId        = keyed ? cursor.getLong(rowIdColumn) : 0;
+        boolean existed      = false;
+        long    previousHash = 0;
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
+        if (previousRows != null) {
+          while (previousIndex < previousRows.size() && previousRows.getId(previousIndex) < rowId) {
+            deleted.add(previousRows.getId(previousIndex++));
           }
 
-          statement.append(')');
+          if (previousIndex < previousRows.size() && previousRows.getId(previousIndex) == rowId) {
+            existed      = true;
+            previousHash = previousRows.getHash(previousIndex++);
+          }
+        }
 
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+        if (predicate == null || predicate.test(cursor)) {
+          BackupProtos.SqlStatement statement = buildInsertStatement(template, cursor);
+
+          if (rows != null) {
+            long hash = delta.digest(statement);
+            rows.add(rowId, hash);
+
+            if (existed && hash == previousHash) continue;
+            if (existed)                         exportDeletes(table, Collections.singletonList(rowId), framer);
+          }
+
+          submitStatement(framer, statement);
 
-          if (postProcess != null) postProcess.accept(cursor);
+          if (postProcess != null) postProcess.process(cursor);
+        } else if (existed) {
+          deleted.add(rowId);
         }
       }
     }
 
+    if (previousRows != null) {
+      while (previousIndex < previousRows.size()) {
+        deleted.add(previousRows.getId(previousIndex++));
+      }
+    }
+
+    exportDeletes(table, deleted, framer);
+
     return count;
   }
 
-  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
-    try {
-      long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
-      long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
-      long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
-
-      String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
-      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+  private static @NonNull BackupProtos.SqlStatement buildInsertStatement(@NonNull String template, @NonNull Cursor cursor) {
+    StringBuilder                     statement        = new StringBuilder(template);
+    BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
+
+    statement.append('(');
+
+    for (int i=0;i<cursor.getColumnCount();i++) {
+      statement.append('?');
+
+      if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
+      } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
+        statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
+      } else {
+        throw new AssertionError("unknown type?"  + cursor.getType(i));
+      }
 
-      if (!TextUtils.isEmpty(data) && size <= 0) {
-        size = calculateVeryOldStreamLength(attachmentSecret, random, data);
+      if (i < cursor.getColumnCount()-1) {
+        statement.append(',');
       }
+    }
+
+    statement.append(')');
+
+    return statementBuilder.setStatement(statement.toString()).build();
+  }
 
-      if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream;
+  /**
+   * Writes {@code DELETE} statements for the given row ids, in batches that stay well under
+   * SQLite's bound parameter limit.
+   */
+  private static void exportDeletes(@NonNull String table, @NonNull List<Long> rowIds, @NonNull BackupPipelineStage<FrameTask> framer)
+      throws IOException
+  {
+    Iterator<Long> iterator = rowIds.iterator();
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+    while (iterator.hasNext()) {
+      StringBuilder                     statement = new StringBuilder("DELETE FROM " + table + " WHERE " + ROW_ID + " IN (");
+      BackupProtos.SqlStatement.Builder builder   = BackupProtos.SqlStatement.newBuilder();
 
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+      for (int i=0;i<MAX_DELETE_BATCH && iterator.hasNext();i++) {
+        statement.append(i == 0 ? "?" : ",?");
+        builder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(iterator.next()));
       }
-    } catch (IOException e) {
-      Log.w(TAG, e);
+
+      statement.append(')');
+
+      submitStatement(framer, builder.setStatement(statement.toString()).build());
+    }
+  }
+
+  private static void submitStatement(@NonNull BackupPipelineStage<FrameTask> framer, @NonNull BackupProtos.SqlStatement statement)
+      throws IOException
+  {
+    framer.submit(out -> out.write(statement));
+  }
+
+  private static boolean hasRowIdColumn(@NonNull SQLiteDatabase input, @NonNull String table) {
+    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table + " LIMIT 0", null)) {
+      return cursor != null && cursor.getColumnIndex(ROW_ID) != -1;
     }
   }
 
+  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret,
+                                       @NonNull Cursor cursor,
+                                       @NonNull BackupPipelineStage<Plaintext> decrypter,
+                                       @NonNull BackupPipelineStage<FrameTask> framer)
+      throws IOException
+  {
+    long   rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
+    long   uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
+    long   size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
+    String data     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
+    byte[] random   = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+
+    if (TextUtils.isEmpty(data)) return;
+
+    Plaintext plaintext = new Plaintext(attachmentSecret, random, data, size, decrypter, framer);
+
+    framer.submit(out -> {
+      try {
+        long length = plaintext.getLength();
+
+        if (length > 0) {
+          out.write(new AttachmentId(rowId, uniqueId), plaintext, length);
+        }
+      } finally {
+        plaintext.close();
+      }
+    });
+
+    decrypter.submit(plaintext);
+  }
+
+  private static InputStream getAttachmentStream(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
+    if (random != null && random.length == 32) return ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+    else                                       return ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+  }
+
   private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
     long result = 0;
-    InputStream inputStream;
 
-    if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-    else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
+    try (InputStream inputStream = getAttachmentStream(attachmentSecret, random, data)) {
+      int read;
+      byte[] buffer = new byte[8192];
 
-    int read;
-    byte[] buffer = new byte[8192];
-
-    while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
-      result += read;
+      while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+        result += read;
+      }
     }
 
     return result;
@@ -246,23 +410,299 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
+  private interface FrameTask {
+    void writeTo(@NonNull BackupFrameOutputStream outputStream) throws IOException;
+  }
+
+  private interface RowProcessor {
+    void process(@NonNull Cursor cursor) throws IOException;
+  }
+
+  /**
+   * Digests every exported row and compares it against what the previous backup in the chain
+   * recorded. The digest is keyed from the attachment secret so that the persisted state doesn't
+   * reveal anything about message contents.
+   */
+  private static class DeltaTracker {
+
+    private final Mac                     mac;
+    private final BackupDeltaState        previous;
+    private final Map<String, TableState> tables = new HashMap<>();
+
+    private DeltaTracker(@NonNull AttachmentSecret attachmentSecret, @Nullable BackupDeltaState previous) {
+      try {
+        byte[] key = new HKDFv3().deriveSecrets(attachmentSecret.getModernKey(), "Backup Delta".getBytes(), 32);
+
+        this.mac      = Mac.getInstance("HmacSHA256");
+        this.previous = previous;
+
+        this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    boolean isDelta() {
+      return previous != null;
+    }
+
+    @Nullable TableState getPreviousState(@NonNull String table) {
+      return previous != null ? previous.getTableState(table) : null;
+    }
+
+    @NonNull TableState startTable(@NonNull String table) {
+      TableState state = new TableState();
+      tables.put(table, state);
+      return state;
+    }
+
+    long digest(@NonNull BackupProtos.SqlStatement statement) {
+      return Conversions.byteArrayToLong(mac.doFinal(statement.toByteArray()));
+    }
+  }
+
+  /**
+   * The decrypted data of one attachment, handed from the decrypter to the framer through a small
+   * bounded queue, so that decrypting one attachment overlaps with encrypting the one before it.
+   * Either side gives up waiting on the other if the other's stage has failed.
+   */
+  private static class Plaintext extends InputStream {
+
+    private static final int    CHUNK_SIZE     = 64 * 1024;
+    private static final int    CHUNK_CAPACITY = 8;
+    private static final byte[] END            = new byte[0];
+
+    private final AttachmentSecret       attachmentSecret;
+    private final byte[]                 random;
+    private final String                 data;
+    private final long                   size;
+    private final BackupPipelineStage<?> decrypter;
+    private final BackupPipelineStage<?> framer;
+    private final BlockingQueue<Object>  items = new ArrayBlockingQueue<>(CHUNK_CAPACITY);
+
+    private volatile boolean closed;
+
+    private byte[] chunk;
+    private int    chunkOffset;
+
+    private Plaintext(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data, long size,
+                      @NonNull BackupPipelineStage<?> decrypter, @NonNull BackupPipelineStage<?> framer)
+    {
+      this.attachmentSecret = attachmentSecret;
+      this.random           = random;
+      this.data             = data;
+      this.size             = size;
+      this.decrypter        = decrypter;
+      this.framer           = framer;
+    }
+
+    /**
+     * Runs on the decrypter. Queues the length followed by the data, or the failure that cut it
+     * short, stopping early if the framer no longer wants it.
+     */
+    void fill() {
+      try {
+        long length = size > 0 ? size : calculateVeryOldStreamLength(attachmentSecret, random, data);
+
+        if (!put(length) || length <= 0) return;
+
+        try (InputStream inputStream = getAttachmentStream(attachmentSecret, random, data)) {
+          byte[] buffer = new byte[CHUNK_SIZE];
+          int    read;
+
+          while ((read = inputStream.read(buffer, 0, buffer.length)) != -1) {
+            if (!put(Arrays.copyOf(buffer, read))) return;
+          }
+        }
+
+        put(END);
+      } catch (IOException e) {
+        put(e);
+      } catch (RuntimeException e) {
+        put(new IOException(e));
+      }
+    }
+
+    /**
+     * Runs on the framer, before the data is read.
+     */
+    long getLength() throws IOException {
+      return (Long) take();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      int    read   = read(single, 0, 1);
+
+      return read == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (chunk == END) return -1;
+
+      while (chunk == null || chunkOffset == chunk.length) {
+        chunk       = (byte[]) take();
+        chunkOffset = 0;
+
+        if (chunk == END) return -1;
+      }
+
+      int read = Math.min(length, chunk.length - chunkOffset);
+
+      System.arraycopy(chunk, chunkOffset, buffer, offset, read);
+      chunkOffset += read;
+
+      return read;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      items.clear();
+    }
+
+    private boolean put(@NonNull Object item) {
+      try {
+        while (!items.offer(item, 100, TimeUnit.MILLISECONDS)) {
+          if (closed || framer.isFailed()) return false;
+        }
+
+        return !closed;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    private @NonNull Object take() throws IOException {
+      try {
+        Object item;
+
+        while ((item = items.poll(100, TimeUnit.MILLISECONDS)) == null) {
+          if (decrypter.isFailed()) throw new IOException("Decrypter failed");
+        }
+
+        if (item instanceof IOException) throw (IOException) item;
+
+        return item;
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while waiting for attachment data");
+      }
+    }
+  }
+
+  /**
+   * Posts progress at most once every {@link #PROGRESS_INTERVAL_MS} rather than once per row.
+   */
+  private static class ProgressReporter {
+
+    private long lastPostTime;
+
+    void onProgress(int count) {
+      long now = System.currentTimeMillis();
+
+      if (now - lastPostTime >= PROGRESS_INTERVAL_MS) {
+        lastPostTime = now;
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+      }
+    }
+  }
+
+  /**
+   * Hands chunks of written data to a dedicated thread that writes them to disk, so that
+   * encryption and file I/O overlap.
+   */
+  private static class PipelinedOutputStream extends OutputStream {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final OutputStream                out;
+    private final BackupPipelineStage<byte[]> writer;
+
+    private byte[] chunk = new byte[CHUNK_SIZE];
+    private int    chunkLength;
+
+    private PipelinedOutputStream(@NonNull OutputStream out) {
+      this.out    = out;
+      this.writer = new BackupPipelineStage<>("signal-backup-writer", WRITE_QUEUE_CAPACITY, out::write);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    @Override
+    public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      while (length > 0) {
+        int copied = Math.min(length, chunk.length - chunkLength);
+
+        System.arraycopy(buffer, offset, chunk, chunkLength, copied);
+
+        chunkLength += copied;
+        offset      += copied;
+        length      -= copied;
+
+        if (chunkLength == chunk.length) {
+          submitChunk();
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        submitChunk();
+        writer.finish();
+      } finally {
+        out.close();
+      }
+    }
+
+    void abort() {
+      writer.abort();
+
+      try {
+        out.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    private void submitChunk() throws IOException {
+      if (chunkLength == 0) return;
+
+      writer.submit(chunkLength == chunk.length ? chunk : Arrays.copyOf(chunk, chunkLength));
+
+      chunk       = new byte[CHUNK_SIZE];
+      chunkLength = 0;
+    }
+  }
 
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private final PipelinedOutputStream outputStream;
+    private final Cipher                cipher;
+    private final Mac                   mac;
 
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+    private final byte[]              cipherKey;
+    private final byte[]              macKey;
+    private final byte[]              salt;
+    private final BackupKeyDerivation keyDerivation;
 
     private byte[] iv;
     private int    counter;
 
-    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase) throws IOException {
+    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase, @NonNull byte[] backupId, @Nullable BackupDeltaState previous)
+        throws IOException
+    {
       try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
+        this.salt          = previous != null ? previous.getSalt()          : Util.getSecretBytes(32);
+        this.keyDerivation = previous != null ? previous.getKeyDerivation() : BackupKeyDerivation.getDefault();
+
+        byte[]   key     = getBackupKey(new BackupKeyCache(), keyDerivation, passphrase, salt);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -271,16 +711,25 @@ public class FullBackupExporter extends FullBackupBase {
 
         this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
         this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = new FileOutputStream(output);
+        this.outputStream = new PipelinedOutputStream(new FileOutputStream(output));
         this.iv           = Util.getSecretBytes(16);
         this.counter      = Conversions.byteArrayToInt(iv);
 
         mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+        BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                       .setIv(ByteString.copyFrom(iv))
+                                                                       .setSalt(ByteString.copyFrom(salt))
+                                                                       .setKdfVersion(keyDerivation.getVersion())
+                                                                       .setKdfCost(keyDerivation.getCost())
+                                                                       .setBackupId(ByteString.copyFrom(backupId));
+
+        if (previous != null) {
+          headerBuilder.setBaseBackupId(ByteString.copyFrom(previous.getBaseBackupId()))
+                       .setDeltaSequence(previous.getDeltaSequence() + 1);
+        }
+
+        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
 
         outputStream.write(Conversions.intToByteArray(header.length));
         outputStream.write(header);
@@ -380,5 +829,9 @@ public class FullBackupExporter extends FullBackupBase {
     public void close() throws IOException {
       outputStream.close();
     }
+
+    void abort() {
+      outputStream.abort();
+    }
   }
 }
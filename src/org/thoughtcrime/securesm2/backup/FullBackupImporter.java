@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.logging.Log;
 import android.util.Pair;
@@ -14,6 +15,7 @@ import android.util.Pair;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.greenrobot.eventbus.EventBus;
+import org.thoughtcrime.securesm2.ApplicationContext;
 import org.thoughtcrime.securesm2.attachments.AttachmentId;
 import org.thoughtcrime.securesm2.backup.BackupProtos.Attachment;
 import org.thoughtcrime.securesm2.backup.BackupProtos.BackupFrame;
@@ -29,7 +31,9 @@ import org.thoughtcrime.securesm2.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesm2.database.MmsDatabase;
 import org.thoughtcrime.securesm2.database.SearchDatabase;
 import org.thoughtcrime.securesm2.database.ThreadDatabase;
+import org.thoughtcrime.securesm2.jobs.SearchIndexRebuildJob;
 import org.thoughtcrime.securesm2.profiles.AvatarHelper;
+import org.thoughtcrime.securesm2.util.BackupUtil;
 import org.thoughtcrime.securesm2.util.Conversions;
 import org.thoughtcrime.securesm2.util.Util;
 import org.whispersystems.libsignal.kdf.HKDFv3;
@@ -45,8 +49,13 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -61,18 +70,59 @@ public class FullBackupImporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupImporter.class.getSimpleName();
 
+  private static final int MAX_HEADER_LENGTH = 64 * 1024;
+
+  /**
+   * Restores {@code file}. If it is a delta, the full backup it was chained to and every delta
+   * leading up to it are located in the same directory and replayed in order first, all within a
+   * single transaction.
+   *
+   * Messages are restored without the search index triggers, the index is built afterwards by a
+   * {@link SearchIndexRebuildJob}.
+   */
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase)
       throws IOException
   {
-    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase);
-    int                     count       = 0;
+    List<File>     chain       = getRestoreChain(file);
+    List<File>     attachments = new LinkedList<>();
+    BackupKeyCache keyCache    = new BackupKeyCache();
+    int            count       = 0;
 
     try {
       db.beginTransaction();
 
       dropAllTables(db);
 
+      for (File backup : chain) {
+        Log.i(TAG, "Importing " + backup.getName());
+        count = importBackup(context, attachmentSecret, db, backup, passphrase, keyCache, attachments, count);
+      }
+
+      if (chain.size() > 1) {
+        deleteUnreferencedAttachments(db, attachments);
+      }
+
+      trimEntriesForExpiredMessages(context, db);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    ApplicationContext.getInstance(context).getJobManager().add(new SearchIndexRebuildJob(context));
+
+    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
+  }
+
+  private static int importBackup(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                  @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase,
+                                  @NonNull BackupKeyCache keyCache, @NonNull List<File> attachments, int count)
+      throws IOException
+  {
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase, keyCache);
+
+    try {
       BackupFrame frame;
 
       while (!(frame = inputStream.readFrame()).getEnd()) {
@@ -81,18 +131,153 @@ public class FullBackupImporter extends FullBackupBase {
         if      (frame.hasVersion())    processVersion(db, frame.getVersion());
         else if (frame.hasStatement())  processStatement(db, frame.getStatement());
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+        else if (frame.hasAttachment()) attachments.add(processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream));
         else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
       }
+    } finally {
+      inputStream.close();
+    }
 
-      trimEntriesForExpiredMessages(context, db);
+    return count;
+  }
 
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+  private static @NonNull List<File> getRestoreChain(@NonNull File file) throws IOException {
+    BackupProtos.Header header = readHeader(file);
+
+    if (!header.hasBaseBackupId()) {
+      return Collections.singletonList(file);
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
+    File                     base   = null;
+    Map<Integer, List<File>> deltas = new HashMap<>();
+    File[]                   files  = file.getParentFile() != null ? file.getParentFile().listFiles() : null;
+
+    if (files != null) {
+      for (File candidate : files) {
+        if (!candidate.isFile()) continue;
+
+        try {
+          BackupProtos.Header candidateHeader = readHeader(candidate);
+
+          if (!candidateHeader.hasBaseBackupId() && candidateHeader.getBackupId().equals(header.getBaseBackupId())) {
+            base = candidate;
+          } else if (candidateHeader.getBaseBackupId().equals(header.getBaseBackupId())) {
+            List<File> sequence = deltas.get(candidateHeader.getDeltaSequence());
+
+            if (sequence == null) {
+              sequence = new LinkedList<>();
+              deltas.put(candidateHeader.getDeltaSequence(), sequence);
+            }
+
+            sequence.add(candidate);
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Skipping " + candidate.getName(), e);
+        }
+      }
+    }
+
+    if (base == null) {
+      throw new IOException("The full backup this delta is based on is missing!");
+    }
+
+    LinkedList<File> chain = new LinkedList<>();
+    File             next  = file;
+
+    chain.add(file);
+
+    for (int sequence=header.getDeltaSequence()-1;sequence>=1;sequence--) {
+      next = getPreviousDelta(deltas.get(sequence), next);
+
+      if (next == null) {
+        throw new IOException("Delta " + sequence + " of " + header.getDeltaSequence() + " is missing!");
+      }
+
+      chain.addFirst(next);
+    }
+
+    chain.addFirst(base);
+
+    return chain;
+  }
+
+  /**
+   * A delta sequence number is normally written once, but can repeat if a backup's state wasn't
+   * saved after it was written. Of the deltas with the same number, the one that came before
+   * {@code next} is the newest one written before it.
+   *
+   * @return The delta that precedes {@code next}, or null if there's none that can.
+   */
+  private static @Nullable File getPreviousDelta(@Nullable List<File> candidates, @NonNull File next) {
+    if (candidates == null)     return null;
+    if (candidates.size() == 1) return candidates.get(0);
+
+    long nextTimestamp = BackupUtil.getBackupTimestamp(next);
+    File previous      = null;
+    long previousTime  = -1;
+
+    for (File candidate : candidates) {
+      long timestamp = BackupUtil.getBackupTimestamp(candidate);
+
+      if (timestamp != -1 && timestamp < nextTimestamp && timestamp > previousTime) {
+        previous     = candidate;
+        previousTime = timestamp;
+      }
+    }
+
+    if (previous != null) {
+      Log.w(TAG, "Found " + candidates.size() + " deltas with the same sequence, using " + previous.getName());
+    }
+
+    return previous;
+  }
+
+  private static @NonNull BackupProtos.Header readHeader(@NonNull File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return readHeader(in);
+    }
+  }
+
+  private static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {
+    byte[] headerLengthBytes = new byte[4];
+    Util.readFully(in, headerLengthBytes);
+
+    int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
+
+    if (headerLength <= 0 || headerLength > MAX_HEADER_LENGTH) {
+      throw new IOException("Invalid header length!");
+    }
+
+    byte[] headerFrame = new byte[headerLength];
+    Util.readFully(in, headerFrame);
+
+    BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+
+    if (!frame.hasHeader()) {
+      throw new IOException("Backup stream does not start with header!");
+    }
+
+    return frame.getHeader();
+  }
+
+  /**
+   * Rows restored by one backup in a chain may be replaced or deleted by a later delta, leaving the
+   * attachment files written for them behind.
+   */
+  private static void deleteUnreferencedAttachments(@NonNull SQLiteDatabase db, @NonNull List<File> attachments) {
+    Set<String> referenced = new HashSet<>();
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, new String[] { AttachmentDatabase.DATA }, AttachmentDatabase.DATA + " IS NOT NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        referenced.add(cursor.getString(0));
+      }
+    }
+
+    for (File attachment : attachments) {
+      if (!referenced.contains(attachment.getAbsolutePath()) && !attachment.delete()) {
+        Log.w(TAG, "Failed to delete " + attachment.getAbsolutePath());
+      }
+    }
   }
 
   private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
@@ -112,6 +297,11 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
+    if (SearchDatabase.isIndexTrigger(statement.getStatement())) {
+      Log.i(TAG, "Deferring search index trigger: " + statement.getStatement());
+      return;
+    }
+
     List<Object> parameters = new LinkedList<>();
 
     for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
@@ -126,7 +316,7 @@ public class FullBackupImporter extends FullBackupBase {
     else                       db.execSQL(statement.getStatement());
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static @NonNull File processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
       throws IOException
   {
     File partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
@@ -144,6 +334,8 @@ public class FullBackupImporter extends FullBackupBase {
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
+
+    return dataFile;
   }
 
   private static void processAvatar(@NonNull Context context, @NonNull BackupProtos.Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
@@ -203,24 +395,11 @@ public class FullBackupImporter extends FullBackupBase {
     private byte[] iv;
     private int    counter;
 
-    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase) throws IOException {
+    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase, @NonNull BackupKeyCache keyCache) throws IOException {
       try {
         this.in     = new FileInputStream(file);
 
-        byte[] headerLengthBytes = new byte[4];
-        Util.readFully(in, headerLengthBytes);
-
-        int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-        byte[] headerFrame = new byte[headerLength];
-        Util.readFully(in, headerFrame);
-
-        BackupFrame frame = BackupFrame.parseFrom(headerFrame);
-
-        if (!frame.hasHeader()) {
-          throw new IOException("Backup stream does not start with header!");
-        }
-
-        BackupProtos.Header header = frame.getHeader();
+        BackupProtos.Header header = readHeader(in);
 
         this.iv = header.getIv().toByteArray();
 
@@ -228,7 +407,7 @@ public class FullBackupImporter extends FullBackupBase {
           throw new IOException("Invalid IV length!");
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
+        byte[]   key     = getBackupKey(keyCache, BackupKeyDerivation.forHeader(header), passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -249,6 +428,10 @@ public class FullBackupImporter extends FullBackupBase {
       return readFrame(in);
     }
 
+    void close() throws IOException {
+      in.close();
+    }
+
     void readAttachmentTo(OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
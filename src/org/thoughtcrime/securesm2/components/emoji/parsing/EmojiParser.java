@@ -47,11 +47,26 @@ public class EmojiParser {
     boolean allEmojis = text.length() > 0;
 
     for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
+      EmojiTree.EmojiTreeNode node     = emojiTree.getRoot();
+      EmojiDrawInfo           drawInfo = null;
+      int                     emojiEnd = -1;
 
-      if (emojiEnd != -1) {
-        EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
+      for (int j = i; j < text.length(); j++) {
+        char character = text.charAt(j);
+
+        node = node.getChild(character);
+
+        if (node == null) break;
+
+        EmojiDrawInfo match = node.getMatch(character);
 
+        if (match != null) {
+          drawInfo = match;
+          emojiEnd = j + 1;
+        }
+      }
+
+      if (emojiEnd != -1) {
         if (emojiEnd + 2 <= text.length()) {
           if (Fitzpatrick.fitzpatrickFromUnicode(text, emojiEnd) != null) {
             emojiEnd += 2;
@@ -69,22 +84,6 @@ public class EmojiParser {
     return new CandidateList(results, allEmojis);
   }
 
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
-  }
-
   public static class Candidate {
 
     private final int           startIndex;
@@ -20,10 +20,10 @@
 
 package org.thoughtcrime.securesm2.components.emoji.parsing;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Based in part on code from emoji-java
@@ -32,17 +32,13 @@ public class EmojiTree {
 
   private final EmojiTreeNode root = new EmojiTreeNode();
 
-  private static final char TERMINATOR = '\ufe0f';
+  static final char TERMINATOR = '\ufe0f';
 
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
     EmojiTreeNode tree = root;
 
     for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
-      }
-
-      tree = tree.getChild(c);
+      tree = tree.getOrAddChild(c);
     }
 
     tree.setEmoji(emoji);
@@ -53,73 +49,97 @@ public class EmojiTree {
       return Matches.POSSIBLY;
     }
 
-    EmojiTreeNode tree = root;
+    EmojiTreeNode tree = walk(sequence, startPosition, endPosition);
 
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+    if      (tree == null)                                            return Matches.IMPOSSIBLE;
+    else if (tree.getMatch(sequence.charAt(endPosition - 1)) != null) return Matches.EXACTLY;
+    else                                                              return Matches.POSSIBLY;
+  }
 
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
+  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
+    EmojiTreeNode tree = walk(unicode, startPosition, endPostiion);
 
-      tree = tree.getChild(character);
-    }
+    if (tree == null) return null;
+    else              return tree.getMatch(unicode.charAt(endPostiion - 1));
+  }
 
-    if (tree.isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
-      return Matches.EXACTLY;
-    } else {
-      return Matches.POSSIBLY;
-    }
+  @NonNull EmojiTreeNode getRoot() {
+    return root;
   }
 
-  public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
+  private @Nullable EmojiTreeNode walk(CharSequence sequence, int startPosition, int endPosition) {
     EmojiTreeNode tree = root;
 
-    for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
-
-      if (!tree.hasChild(character)) {
-        return null;
-      }
-
-      tree = tree.getChild(character);
+    for (int i = startPosition; i < endPosition && tree != null; i++) {
+      tree = tree.getChild(sequence.charAt(i));
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
-    else    return null;
+    return tree;
   }
 
+  /**
+   * Children are kept in a sorted char array with a parallel node array rather than a map, so a
+   * step through the tree is a binary search over a handful of primitives with no boxing.
+   */
+  static class EmojiTreeNode {
 
-  private static class EmojiTreeNode {
+    private static final char[]          NO_KEYS     = new char[0];
+    private static final EmojiTreeNode[] NO_CHILDREN = new EmojiTreeNode[0];
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+    private char[]          keys     = NO_KEYS;
+    private EmojiTreeNode[] children = NO_CHILDREN;
+    private EmojiDrawInfo   emoji;
 
-    public void setEmoji(EmojiDrawInfo emoji) {
+    void setEmoji(EmojiDrawInfo emoji) {
       this.emoji = emoji;
     }
 
-    public @Nullable EmojiDrawInfo getEmoji() {
+    @Nullable EmojiDrawInfo getEmoji() {
       return emoji;
     }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
+    @Nullable EmojiTreeNode getChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
+      return index >= 0 ? children[index] : null;
     }
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
-    }
+    /**
+     * @param lastCharacter The character that led to this node.
+     * @return The emoji that ends at this node, also accepting a missing trailing variation
+     *         selector, or null if this node is only a prefix.
+     */
+    @Nullable EmojiDrawInfo getMatch(char lastCharacter) {
+      if (emoji != null) return emoji;
+
+      if (lastCharacter != TERMINATOR) {
+        EmojiTreeNode terminator = getChild(TERMINATOR);
+        if (terminator != null) return terminator.getEmoji();
+      }
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
+      return null;
     }
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
+    private @NonNull EmojiTreeNode getOrAddChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
+
+      if (index >= 0) return children[index];
+
+      int             insertion   = -(index + 1);
+      char[]          newKeys     = new char[keys.length + 1];
+      EmojiTreeNode[] newChildren = new EmojiTreeNode[children.length + 1];
+
+      System.arraycopy(keys, 0, newKeys, 0, insertion);
+      System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+      System.arraycopy(children, 0, newChildren, 0, insertion);
+      System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+
+      newKeys[insertion]     = child;
+      newChildren[insertion] = new EmojiTreeNode();
+
+      keys     = newKeys;
+      children = newChildren;
+
+      return newChildren[insertion];
     }
   }
 
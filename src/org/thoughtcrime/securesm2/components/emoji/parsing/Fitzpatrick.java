@@ -41,8 +41,8 @@ public enum Fitzpatrick {
     for (Fitzpatrick v : values()) {
       boolean match = true;
 
-      for (int i=0;i<v.unicode.toCharArray().length;i++) {
-        if (v.unicode.toCharArray()[i] != unicode.charAt(index + i)) {
+      for (int i=0;i<v.unicode.length() && match;i++) {
+        if (v.unicode.charAt(i) != unicode.charAt(index + i)) {
           match = false;
         }
       }
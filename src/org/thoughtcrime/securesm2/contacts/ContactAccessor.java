@@ -173,21 +173,27 @@ public class ContactAccessor {
   }
 
   public List<String> getNumbersForThreadSearchFilter(Context context, String constraint) {
-    LinkedList<String> numberList = new LinkedList<>();
-    Cursor cursor                 = null;
+    LinkedList<String> numberList  = new LinkedList<>();
+    ContactSearchIndex searchIndex = ContactSearchIndex.getInstance(context);
 
-    try {
-      cursor = context.getContentResolver().query(Uri.withAppendedPath(Phone.CONTENT_FILTER_URI,
-                                                                       Uri.encode(constraint)),
-                                                  null, null, null, null);
+    if (searchIndex.isLoaded()) {
+      numberList.addAll(searchIndex.getNumbers(constraint));
+    } else {
+      Cursor cursor = null;
 
-      while (cursor != null && cursor.moveToNext()) {
-        numberList.add(cursor.getString(cursor.getColumnIndexOrThrow(Phone.NUMBER)));
-      }
+      try {
+        cursor = context.getContentResolver().query(Uri.withAppendedPath(Phone.CONTENT_FILTER_URI,
+                                                                         Uri.encode(constraint)),
+                                                    null, null, null, null);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+        while (cursor != null && cursor.moveToNext()) {
+          numberList.add(cursor.getString(cursor.getColumnIndexOrThrow(Phone.NUMBER)));
+        }
+
+      } finally {
+        if (cursor != null)
+          cursor.close();
+      }
     }
 
     GroupDatabase.Reader reader = null;
@@ -0,0 +1,386 @@
+package org.thoughtcrime.securesm2.contacts;
+
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.util.Util;
+import org.thoughtcrime.securesm2.util.concurrent.SignalExecutors;
+
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-memory index of the names and numbers of Signal and system contacts, so that filtering
+ * contacts doesn't query the contacts provider on every keystroke.
+ *
+ * Every word of a name and every number is indexed by prefix, and both are also indexed by
+ * trigram so that filters of three or more characters match anywhere within them. The index is
+ * loaded the first time it's asked for, and reloaded in the background when the directory is
+ * refreshed or the system contacts change. A reload only touches the entries that were added or
+ * removed since the last one.
+ */
+public class ContactSearchIndex {
+
+  private static final String TAG = ContactSearchIndex.class.getSimpleName();
+
+  private static final int GRAM_LENGTH = 3;
+
+  private static ContactSearchIndex instance;
+
+  private final Context                      context;
+  private final Executor                     executor = SignalExecutors.newCachedSingleThreadExecutor("contact-search-index");
+  private final Set<Entry>                   entries  = new HashSet<>();
+  private final TreeMap<String, Set<Entry>>  prefixes = new TreeMap<>();
+  private final Map<String, Set<Entry>>      trigrams = new HashMap<>();
+
+  private boolean loaded;
+  private boolean reloadScheduled;
+  private boolean observing;
+
+  public static synchronized @NonNull ContactSearchIndex getInstance(@NonNull Context context) {
+    if (instance == null) {
+      instance = new ContactSearchIndex(context.getApplicationContext());
+    }
+
+    return instance;
+  }
+
+  private ContactSearchIndex(@NonNull Context context) {
+    this.context = context;
+  }
+
+  /**
+   * @return Whether the index can answer queries yet. If it hasn't been loaded, a load is started
+   *         and the caller should fall back to the provider for now.
+   */
+  synchronized boolean isLoaded() {
+    if (!loaded) scheduleReload();
+    return loaded;
+  }
+
+  /**
+   * Reloads the index in the background if it has been loaded, otherwise it will be loaded the
+   * next time it's used.
+   */
+  public synchronized void invalidate() {
+    if (loaded) scheduleReload();
+  }
+
+  /**
+   * @return The matching contacts of the given type, sorted by name, with the same columns as
+   *         {@link ContactsDatabase#querySystemContacts(String)}.
+   */
+  synchronized @NonNull Cursor query(@NonNull String filter, int contactType) {
+    List<Entry> matches = new ArrayList<>();
+
+    for (Entry entry : getMatches(filter)) {
+      if (entry.contactType == contactType) matches.add(entry);
+    }
+
+    Collator collator = Collator.getInstance();
+    Collections.sort(matches, (lhs, rhs) -> collator.compare(lhs.searchableName, rhs.searchableName));
+
+    MatrixCursor cursor = new MatrixCursor(new String[] {ContactsDatabase.NAME_COLUMN,
+                                                         ContactsDatabase.NUMBER_COLUMN,
+                                                         ContactsDatabase.NUMBER_TYPE_COLUMN,
+                                                         ContactsDatabase.LABEL_COLUMN,
+                                                         ContactsDatabase.CONTACT_TYPE_COLUMN},
+                                           matches.size());
+
+    for (Entry entry : matches) {
+      cursor.addRow(new Object[] {entry.name, entry.number, entry.numberType, entry.label, entry.contactType});
+    }
+
+    return cursor;
+  }
+
+  /**
+   * @return The distinct numbers of every contact matching the filter.
+   */
+  synchronized @NonNull List<String> getNumbers(@NonNull String filter) {
+    Set<String> numbers = new LinkedHashSet<>();
+
+    for (Entry entry : getMatches(filter)) {
+      numbers.add(entry.number);
+    }
+
+    return new ArrayList<>(numbers);
+  }
+
+  private @NonNull Set<Entry> getMatches(@NonNull String filter) {
+    String     text    = normalize(filter);
+    String     digits  = getDigits(filter);
+    Set<Entry> matches = new HashSet<>();
+
+    addPrefixMatches(text, matches);
+    addSubstringMatches(text, matches);
+
+    if (!digits.isEmpty() && !digits.equals(text)) {
+      addPrefixMatches(digits, matches);
+      addSubstringMatches(digits, matches);
+    }
+
+    return matches;
+  }
+
+  private void addPrefixMatches(@NonNull String prefix, @NonNull Set<Entry> matches) {
+    if (prefix.isEmpty()) return;
+
+    for (Set<Entry> tokenEntries : prefixes.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+      matches.addAll(tokenEntries);
+    }
+  }
+
+  /**
+   * Narrows down to the entries that contain every trigram of the query, starting from the
+   * rarest one, and then checks that they contain the query itself.
+   */
+  private void addSubstringMatches(@NonNull String query, @NonNull Set<Entry> matches) {
+    if (query.length() < GRAM_LENGTH) return;
+
+    List<Set<Entry>> postings = new ArrayList<>();
+
+    for (String gram : getTrigrams(query)) {
+      Set<Entry> posting = trigrams.get(gram);
+
+      if (posting == null) return;
+      postings.add(posting);
+    }
+
+    Collections.sort(postings, (lhs, rhs) -> Integer.compare(lhs.size(), rhs.size()));
+
+    for (Entry candidate : postings.get(0)) {
+      if (matches.contains(candidate)) continue;
+
+      boolean inAll = true;
+
+      for (int i=1;i<postings.size() && inAll;i++) {
+        inAll = postings.get(i).contains(candidate);
+      }
+
+      if (inAll && (candidate.searchableName.contains(query) || candidate.digits.contains(query))) {
+        matches.add(candidate);
+      }
+    }
+  }
+
+  private synchronized void scheduleReload() {
+    if (reloadScheduled) return;
+
+    reloadScheduled = true;
+    executor.execute(this::reload);
+  }
+
+  private void reload() {
+    synchronized (this) {
+      reloadScheduled = false;
+    }
+
+    Set<Entry> current;
+
+    try {
+      current = loadEntries();
+    } catch (SecurityException e) {
+      Log.w(TAG, "Unable to read contacts.", e);
+      return;
+    }
+
+    int added   = 0;
+    int removed = 0;
+
+    synchronized (this) {
+      for (Entry entry : new ArrayList<>(entries)) {
+        if (!current.contains(entry)) {
+          remove(entry);
+          removed++;
+        }
+      }
+
+      for (Entry entry : current) {
+        if (!entries.contains(entry)) {
+          add(entry);
+          added++;
+        }
+      }
+
+      loaded = true;
+
+      if (!observing) {
+        context.getContentResolver().registerContentObserver(ContactsContract.Contacts.CONTENT_URI, true, new ContentObserver(null) {
+          @Override
+          public void onChange(boolean selfChange) {
+            scheduleReload();
+          }
+        });
+
+        observing = true;
+      }
+    }
+
+    Log.i(TAG, "Reloaded, " + added + " added, " + removed + " removed.");
+  }
+
+  private @NonNull Set<Entry> loadEntries() {
+    ContactsDatabase contactsDatabase = DatabaseFactory.getContactsDatabase(context);
+    Set<Entry>       results          = new HashSet<>();
+
+    try (Cursor cursor = contactsDatabase.queryTextSecureContacts(null)) {
+      addEntries(cursor, results);
+    }
+
+    try (Cursor cursor = contactsDatabase.querySystemContacts(null)) {
+      addEntries(cursor, results);
+    }
+
+    return results;
+  }
+
+  private static void addEntries(@Nullable Cursor cursor, @NonNull Set<Entry> results) {
+    while (cursor != null && cursor.moveToNext()) {
+      String number = cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NUMBER_COLUMN));
+
+      if (TextUtils.isEmpty(number)) continue;
+
+      results.add(new Entry(cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NAME_COLUMN)),
+                            number,
+                            cursor.getInt(cursor.getColumnIndexOrThrow(ContactsDatabase.NUMBER_TYPE_COLUMN)),
+                            cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.LABEL_COLUMN)),
+                            cursor.getInt(cursor.getColumnIndexOrThrow(ContactsDatabase.CONTACT_TYPE_COLUMN))));
+    }
+  }
+
+  private void add(@NonNull Entry entry) {
+    entries.add(entry);
+
+    for (String token : entry.getTokens())   addPosting(prefixes, token, entry);
+    for (String gram  : entry.getTrigrams()) addPosting(trigrams, gram, entry);
+  }
+
+  private void remove(@NonNull Entry entry) {
+    entries.remove(entry);
+
+    for (String token : entry.getTokens())   removePosting(prefixes, token, entry);
+    for (String gram  : entry.getTrigrams()) removePosting(trigrams, gram, entry);
+  }
+
+  private static void addPosting(@NonNull Map<String, Set<Entry>> postings, @NonNull String key, @NonNull Entry entry) {
+    Set<Entry> posting = postings.get(key);
+
+    if (posting == null) {
+      posting = new HashSet<>();
+      postings.put(key, posting);
+    }
+
+    posting.add(entry);
+  }
+
+  private static void removePosting(@NonNull Map<String, Set<Entry>> postings, @NonNull String key, @NonNull Entry entry) {
+    Set<Entry> posting = postings.get(key);
+
+    if (posting != null && posting.remove(entry) && posting.isEmpty()) {
+      postings.remove(key);
+    }
+  }
+
+  private static @NonNull String normalize(@Nullable String value) {
+    return value == null ? "" : value.trim().toLowerCase(Locale.getDefault());
+  }
+
+  private static @NonNull String getDigits(@Nullable String value) {
+    if (value == null) return "";
+
+    StringBuilder digits = new StringBuilder();
+
+    for (int i=0;i<value.length();i++) {
+      if (Character.isDigit(value.charAt(i))) digits.append(value.charAt(i));
+    }
+
+    return digits.toString();
+  }
+
+  private static @NonNull Set<String> getTrigrams(@NonNull String value) {
+    Set<String> grams = new HashSet<>();
+
+    for (int i=0;i+GRAM_LENGTH<=value.length();i++) {
+      grams.add(value.substring(i, i + GRAM_LENGTH));
+    }
+
+    return grams;
+  }
+
+  private static class Entry {
+
+    private final String name;
+    private final String number;
+    private final int    numberType;
+    private final String label;
+    private final int    contactType;
+    private final String searchableName;
+    private final String digits;
+
+    private Entry(@Nullable String name, @NonNull String number, int numberType, @Nullable String label, int contactType) {
+      this.name           = name;
+      this.number         = number;
+      this.numberType     = numberType;
+      this.label          = label;
+      this.contactType    = contactType;
+      this.searchableName = normalize(name);
+      this.digits         = getDigits(number);
+    }
+
+    private @NonNull Set<String> getTokens() {
+      Set<String> tokens = new HashSet<>();
+
+      for (String word : searchableName.split("\\s+")) {
+        if (!word.isEmpty()) tokens.add(word);
+      }
+
+      if (!digits.isEmpty()) tokens.add(digits);
+
+      return tokens;
+    }
+
+    private @NonNull Set<String> getTrigrams() {
+      Set<String> grams = ContactSearchIndex.getTrigrams(searchableName);
+      grams.addAll(ContactSearchIndex.getTrigrams(digits));
+      return grams;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Entry)) return false;
+
+      Entry that = (Entry) other;
+
+      return numberType == that.numberType         &&
+             contactType == that.contactType       &&
+             number.equals(that.number)            &&
+             Util.equals(name, that.name)          &&
+             Util.equals(label, that.label);
+    }
+
+    @Override
+    public int hashCode() {
+      return Util.hashCode(name, number, numberType, label, contactType);
+    }
+  }
+}
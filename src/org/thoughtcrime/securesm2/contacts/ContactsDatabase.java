@@ -143,6 +143,10 @@ public class ContactsDatabase {
 
   @SuppressLint("Recycle")
   public @NonNull Cursor querySystemContacts(@Nullable String filter) {
+    if (!TextUtils.isEmpty(filter) && ContactSearchIndex.getInstance(context).isLoaded()) {
+      return ContactSearchIndex.getInstance(context).query(filter, NORMAL_TYPE);
+    }
+
     Uri uri;
 
     if (!TextUtils.isEmpty(filter)) {
@@ -191,6 +195,10 @@ public class ContactsDatabase {
 
   @SuppressLint("Recycle")
   public @NonNull Cursor queryTextSecureContacts(String filter) {
+    if (!TextUtils.isEmpty(filter) && ContactSearchIndex.getInstance(context).isLoaded()) {
+      return ContactSearchIndex.getInstance(context).query(filter, PUSH_TYPE);
+    }
+
     String[] projection = new String[] {ContactsContract.Contacts.DISPLAY_NAME,
                                         ContactsContract.Data.DATA1};
 
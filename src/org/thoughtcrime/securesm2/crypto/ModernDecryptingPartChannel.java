@@ -0,0 +1,197 @@
+package org.thoughtcrime.securesm2.crypto;
+
+
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesm2.util.Conversions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access reader for files written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * Unlike {@link ModernDecryptingPartInputStream}, the file channel and cipher stay open for the
+ * lifetime of the reader. The CTR counter is only re-derived when a read doesn't continue where
+ * the previous one left off, and decrypted data is read ahead into a small window so that many
+ * small sequential reads are served from memory. The window is a single buffer that ciphertext
+ * is read into from the channel and then decrypted in place, so refilling it doesn't allocate.
+ * Reads still copy the plaintext out of the window into the caller's array.
+ */
+public class ModernDecryptingPartChannel implements Closeable {
+
+  private static final int BLOCK_SIZE  = 16;
+  private static final int WINDOW_SIZE = 64 * 1024;
+
+  private final FileChannel   channel;
+  private final Cipher        cipher;
+  private final SecretKeySpec cipherKey;
+  private final long          dataOffset;
+  private final ByteBuffer    window;
+  private final ByteBuffer    decryptTarget;
+
+  private long windowStart;
+  private long cipherPosition;
+
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    return new ModernDecryptingPartChannel(attachmentSecret, random, new FileInputStream(file).getChannel(), 0);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull FileChannel channel, long dataOffset) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.channel        = channel;
+      this.cipher         = Cipher.getInstance("AES/CTR/NoPadding");
+      this.cipherKey      = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.dataOffset     = dataOffset;
+      this.window         = ByteBuffer.allocateDirect(WINDOW_SIZE);
+      this.decryptTarget  = window.duplicate();
+      this.cipherPosition = -1;
+
+      this.window.limit(0);
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return The length of the plaintext.
+   */
+  public long size() throws IOException {
+    return channel.size() - dataOffset;
+  }
+
+  /**
+   * Reads up to {@code length} bytes of plaintext starting at {@code position}.
+   *
+   * @return The number of bytes read, or -1 if {@code position} is at or past the end of the data.
+   */
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    if (!positionWindow(position)) return -1;
+
+    int read = Math.min(length, window.remaining());
+    window.get(buffer, offset, read);
+
+    return read;
+  }
+
+  /**
+   * @return A stream over the plaintext beginning at {@code position}. Closing the stream closes
+   *         this reader.
+   */
+  public @NonNull InputStream asInputStream(long position) {
+    return new InputStream() {
+      private final byte[] single = new byte[1];
+
+      private long streamPosition = position;
+
+      @Override
+      public int read() throws IOException {
+        int read = read(single, 0, 1);
+
+        return read == -1 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        int read = ModernDecryptingPartChannel.this.read(streamPosition, buffer, offset, length);
+
+        if (read > 0) streamPosition += read;
+
+        return read;
+      }
+
+      @Override
+      public long skip(long count) throws IOException {
+        long skipped = Math.max(0, Math.min(count, size() - streamPosition));
+        streamPosition += skipped;
+        return skipped;
+      }
+
+      @Override
+      public void close() throws IOException {
+        ModernDecryptingPartChannel.this.close();
+      }
+    };
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Leaves the window's position at {@code position}, refilling it if necessary.
+   *
+   * @return false if there is no data at {@code position}.
+   */
+  private boolean positionWindow(long position) throws IOException {
+    if (position < windowStart || position >= windowStart + window.limit()) {
+      fillWindow(position);
+    }
+
+    if (position >= windowStart + window.limit()) return false;
+
+    window.position((int) (position - windowStart));
+    return true;
+  }
+
+  private void fillWindow(long position) throws IOException {
+    long blockStart = position - (position % BLOCK_SIZE);
+
+    if (blockStart != cipherPosition) {
+      seekCipher(blockStart);
+    }
+
+    window.clear();
+
+    while (window.hasRemaining()) {
+      int read = channel.read(window, dataOffset + blockStart + window.position());
+      if (read == -1) break;
+    }
+
+    window.flip();
+    decryptTarget.clear();
+
+    try {
+      cipher.update(window.duplicate(), decryptTarget);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    windowStart    = blockStart;
+    cipherPosition = blockStart + window.limit();
+  }
+
+  private void seekCipher(long blockStart) {
+    try {
+      byte[] iv = new byte[16];
+      Conversions.longTo4ByteArray(iv, 12, blockStart / BLOCK_SIZE);
+
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(iv));
+      cipherPosition = blockStart;
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
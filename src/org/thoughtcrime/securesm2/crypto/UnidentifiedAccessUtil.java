@@ -22,6 +22,8 @@ import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class UnidentifiedAccessUtil {
 
@@ -75,6 +77,65 @@ public class UnidentifiedAccessUtil {
     }
   }
 
+  /**
+   * The same as {@link #getAccessFor(Context, Recipient)} for each recipient, but derives our own
+   * key and parses our certificate only once for all of them.
+   */
+  @WorkerThread
+  public static List<Optional<UnidentifiedAccessPair>> getAccessFor(@NonNull Context context,
+                                                                    @NonNull List<Recipient> recipients)
+  {
+    List<Optional<UnidentifiedAccessPair>> results = new ArrayList<>(recipients.size());
+
+    if (!TextSecurePreferences.isUnidentifiedDeliveryEnabled(context)) {
+      Log.i(TAG, "Unidentified delivery is disabled. [other]");
+      for (int i=0;i<recipients.size();i++) results.add(Optional.absent());
+      return results;
+    }
+
+    byte[]             ourUnidentifiedAccessKey         = getSelfUnidentifiedAccessKey(context);
+    byte[]             ourUnidentifiedAccessCertificate = TextSecurePreferences.getUnidentifiedAccessCertificate(context);
+    UnidentifiedAccess ourUnidentifiedAccess            = null;
+    int                present                          = 0;
+
+    if (TextSecurePreferences.isUniversalUnidentifiedAccess(context)) {
+      ourUnidentifiedAccessKey = Util.getSecretBytes(16);
+    }
+
+    try {
+      if (ourUnidentifiedAccessKey != null && ourUnidentifiedAccessCertificate != null) {
+        ourUnidentifiedAccess = new UnidentifiedAccess(ourUnidentifiedAccessKey, ourUnidentifiedAccessCertificate);
+      }
+    } catch (InvalidCertificateException e) {
+      Log.w(TAG, e);
+    }
+
+    for (Recipient recipient : recipients) {
+      byte[] theirUnidentifiedAccessKey = ourUnidentifiedAccess != null ? getTargetUnidentifiedAccessKey(recipient) : null;
+
+      if (theirUnidentifiedAccessKey == null) {
+        results.add(Optional.absent());
+        continue;
+      }
+
+      try {
+        results.add(Optional.of(new UnidentifiedAccessPair(new UnidentifiedAccess(theirUnidentifiedAccessKey,
+                                                                                  ourUnidentifiedAccessCertificate),
+                                                           ourUnidentifiedAccess)));
+        present++;
+      } catch (InvalidCertificateException e) {
+        Log.w(TAG, e);
+        results.add(Optional.absent());
+      }
+    }
+
+    Log.i(TAG, "Unidentified access for " + present + " of " + recipients.size() + " recipients." +
+               " | Our access key present? " + (ourUnidentifiedAccessKey != null) +
+               " | Our certificate present? " + (ourUnidentifiedAccessCertificate != null));
+
+    return results;
+  }
+
   public static Optional<UnidentifiedAccessPair> getAccessForSync(@NonNull Context context) {
     if (!TextSecurePreferences.isUnidentifiedDeliveryEnabled(context)) {
       Log.i(TAG, "Unidentified delivery is disabled. [self]");
@@ -2,23 +2,43 @@ package org.thoughtcrime.securesm2.crypto.storage;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.database.Address;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.database.SessionDatabase;
 import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.util.LRUCache;
+import org.whispersystems.libsignal.SessionCipher;
 import org.whispersystems.libsignal.SignalProtocolAddress;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+
+/**
+ * Recently used records are kept parsed in a cache that every write goes through, and handed out
+ * as copies so that changes a caller doesn't store never leak into it.
+ *
+ * Every operation holds {@link SessionCipher#SESSION_LOCK}, the same lock libsignal's ciphers hold,
+ * so that the session lock is always taken before the database's. A lock of the store's own would
+ * deadlock against a thread that decrypts inside a transaction while another holds the store's
+ * lock and waits for the database.
+ *
+ * Only committed records are cached. A record that's stored or loaded while the database is in a
+ * transaction is evicted instead, since the transaction may still roll back.
+ */
 public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG = TextSecureSessionStore.class.getSimpleName();
 
-  private static final Object FILE_LOCK = new Object();
+  private static final int MAX_CACHE_SIZE = 500;
+
+  private static final Map<SignalProtocolAddress, SessionRecord> CACHE = new LRUCache<>(MAX_CACHE_SIZE);
 
   @NonNull  private final Context context;
 
@@ -28,29 +48,30 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    synchronized (SessionCipher.SESSION_LOCK) {
+      SessionRecord sessionRecord = getCachedRecord(address);
 
       if (sessionRecord == null) {
         Log.w(TAG, "No existing session information found.");
         return new SessionRecord();
       }
 
-      return sessionRecord;
+      return copyOf(sessionRecord);
     }
   }
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
+    synchronized (SessionCipher.SESSION_LOCK) {
       DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
+      cache(address, copyOf(record));
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+    synchronized (SessionCipher.SESSION_LOCK) {
+      SessionRecord sessionRecord = getCachedRecord(address);
 
       return sessionRecord != null &&
              sessionRecord.getSessionState().hasSenderChain() &&
@@ -60,46 +81,97 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (SessionCipher.SESSION_LOCK) {
       DatabaseFactory.getSessionDatabase(context).delete(Address.fromSerialized(address.getName()), address.getDeviceId());
+
+      synchronized (CACHE) {
+        CACHE.remove(address);
+      }
     }
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    synchronized (FILE_LOCK) {
+    synchronized (SessionCipher.SESSION_LOCK) {
       DatabaseFactory.getSessionDatabase(context).deleteAllFor(Address.fromSerialized(name));
+
+      synchronized (CACHE) {
+        Iterator<SignalProtocolAddress> iterator = CACHE.keySet().iterator();
+
+        while (iterator.hasNext()) {
+          if (iterator.next().getName().equals(name)) iterator.remove();
+        }
+      }
     }
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    synchronized (FILE_LOCK) {
+    synchronized (SessionCipher.SESSION_LOCK) {
       return DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
     }
   }
 
   public void archiveSiblingSessions(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
+    synchronized (SessionCipher.SESSION_LOCK) {
+      List<SessionDatabase.SessionRow>     sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
+      Iterator<SessionDatabase.SessionRow> iterator = sessions.iterator();
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        if (row.getDeviceId() != address.getDeviceId()) {
-          row.getRecord().archiveCurrentState();
-          storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
-        }
+      while (iterator.hasNext()) {
+        if (iterator.next().getDeviceId() == address.getDeviceId()) iterator.remove();
       }
+
+      archive(sessions);
     }
   }
 
   public void archiveAllSessions() {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
+    synchronized (SessionCipher.SESSION_LOCK) {
+      archive(DatabaseFactory.getSessionDatabase(context).getAll());
+    }
+  }
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        row.getRecord().archiveCurrentState();
-        storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
-      }
+  private void archive(@NonNull List<SessionDatabase.SessionRow> sessions) {
+    for (SessionDatabase.SessionRow row : sessions) {
+      row.getRecord().archiveCurrentState();
+    }
+
+    DatabaseFactory.getSessionDatabase(context).store(sessions);
+
+    for (SessionDatabase.SessionRow row : sessions) {
+      cache(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
     }
   }
+
+  private @Nullable SessionRecord getCachedRecord(@NonNull SignalProtocolAddress address) {
+    synchronized (CACHE) {
+      SessionRecord cached = CACHE.get(address);
+      if (cached != null) return cached;
+    }
+
+    SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
+
+    if (sessionRecord != null) cache(address, sessionRecord);
+
+    return sessionRecord;
+  }
+
+  private void cache(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
+    boolean uncommitted = DatabaseFactory.getRawDatabase(context).inTransaction();
+
+    synchronized (CACHE) {
+      CACHE.remove(address);
+      if (!uncommitted) CACHE.put(address, record);
+    }
+  }
+
+  private static @NonNull SessionRecord copyOf(@NonNull SessionRecord record) {
+    SessionRecord copy = new SessionRecord(new SessionState(record.getSessionState()));
+
+    for (SessionState previousState : record.getPreviousSessionStates()) {
+      copy.getPreviousSessionStates().add(new SessionState(previousState));
+    }
+
+    return copy;
+  }
 }
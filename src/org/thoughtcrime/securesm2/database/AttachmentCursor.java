@@ -0,0 +1,61 @@
+package org.thoughtcrime.securesm2.database;
+
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
+
+import org.thoughtcrime.securesm2.attachments.DatabaseAttachment;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A cursor over message rows whose attachments were loaded up front, keyed by mms id, instead of
+ * being grouped into each row as JSON. {@link AttachmentDatabase#getAttachment(Cursor)} reads the
+ * current row's attachments from here when it's handed one of these.
+ */
+public class AttachmentCursor extends CursorWrapper {
+
+  private final LongSparseArray<List<DatabaseAttachment>> attachments;
+  private final int                                       idColumn;
+  private final int                                       transportColumn;
+
+  AttachmentCursor(@NonNull Cursor cursor, @NonNull LongSparseArray<List<DatabaseAttachment>> attachments) {
+    super(cursor);
+    this.attachments     = attachments;
+    this.idColumn        = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    this.transportColumn = cursor.getColumnIndex(MmsSmsDatabase.TRANSPORT);
+  }
+
+  /**
+   * Concatenates pages of rows, keeping the attachments that were loaded for each of them.
+   */
+  public static @NonNull AttachmentCursor merge(@NonNull Cursor[] pages) {
+    LongSparseArray<List<DatabaseAttachment>> attachments = new LongSparseArray<>();
+
+    for (Cursor page : pages) {
+      if (page instanceof AttachmentCursor) {
+        LongSparseArray<List<DatabaseAttachment>> pageAttachments = ((AttachmentCursor) page).attachments;
+
+        for (int i=0;i<pageAttachments.size();i++) {
+          attachments.put(pageAttachments.keyAt(i), pageAttachments.valueAt(i));
+        }
+      }
+    }
+
+    return new AttachmentCursor(new MergeCursor(pages), attachments);
+  }
+
+  @NonNull List<DatabaseAttachment> getAttachments() {
+    if (transportColumn != -1 && !MmsSmsDatabase.MMS_TRANSPORT.equals(getString(transportColumn))) {
+      return new LinkedList<>();
+    }
+
+    List<DatabaseAttachment> result = attachments.get(getLong(idColumn));
+
+    return result != null ? new LinkedList<>(result) : new LinkedList<>();
+  }
+}
@@ -27,6 +27,7 @@ import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.LongSparseArray;
 import android.text.TextUtils;
 import org.thoughtcrime.securesm2.logging.Log;
 import android.util.Pair;
@@ -42,6 +43,7 @@ import org.thoughtcrime.securesm2.attachments.AttachmentId;
 import org.thoughtcrime.securesm2.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesm2.crypto.AttachmentSecret;
 import org.thoughtcrime.securesm2.crypto.ClassicDecryptingPartInputStream;
+import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesm2.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesm2.database.helpers.SQLCipherOpenHelper;
@@ -99,6 +101,9 @@ public class AttachmentDatabase extends Database {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
+          static final String ORIGINAL_DIGEST        = "original_digest";
+          static final String PROCESSED_DIGEST       = "processed_digest";
+          static final String PROCESSED_CONSTRAINTS  = "processed_constraints";
 
   public  static final String DIRECTORY              = "parts";
 
@@ -128,11 +133,14 @@ public class AttachmentDatabase extends Database {
     UNIQUE_ID + " INTEGER NOT NULL, " + DIGEST + " BLOB, " + FAST_PREFLIGHT_ID + " TEXT, " +
     VOICE_NOTE + " INTEGER DEFAULT 0, " + DATA_RANDOM + " BLOB, " + THUMBNAIL_RANDOM + " BLOB, " +
     QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0, " +
-    CAPTION + " TEXT DEFAULT NULL);";
+    CAPTION + " TEXT DEFAULT NULL, " + ORIGINAL_DIGEST + " TEXT DEFAULT NULL, " +
+    PROCESSED_DIGEST + " TEXT DEFAULT NULL, " + PROCESSED_CONSTRAINTS + " TEXT DEFAULT NULL);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
+    "CREATE INDEX IF NOT EXISTS part_original_digest_index ON " + TABLE_NAME + " (" + ORIGINAL_DIGEST + ") WHERE " + ORIGINAL_DIGEST + " IS NOT NULL;",
+    "CREATE INDEX IF NOT EXISTS part_processed_digest_index ON " + TABLE_NAME + " (" + PROCESSED_DIGEST + ") WHERE " + PROCESSED_DIGEST + " IS NOT NULL;",
   };
 
   private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
@@ -153,6 +161,24 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * @return A random access reader over the attachment's data, or null if the data is stored in
+   *         the classic format, which can only be read as a stream.
+   */
+  public @Nullable ModernDecryptingPartChannel getAttachmentChannel(@NonNull AttachmentId attachmentId)
+      throws IOException
+  {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null) throw new IOException("No data for: " + attachmentId);
+
+    if (dataInfo.random != null && dataInfo.random.length == 32) {
+      return ModernDecryptingPartChannel.createFor(attachmentSecret, dataInfo.random, dataInfo.file);
+    }
+
+    return null;
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -230,6 +256,36 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the attachments of several messages in one pass over the mms id index.
+   *
+   * @return The attachments of each message that has any, keyed by mms id.
+   */
+  public @NonNull LongSparseArray<List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull long[] mmsIds) {
+    LongSparseArray<List<DatabaseAttachment>> results = new LongSparseArray<>(mmsIds.length);
+
+    if (mmsIds.length == 0) return results;
+
+    SQLiteDatabase database  = databaseHelper.getReadableDatabase();
+    String         selection = MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")";
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, selection, null, null, null, MMS_ID + ", " + ROW_ID)) {
+      while (cursor != null && cursor.moveToNext()) {
+        long                     mmsId       = cursor.getLong(cursor.getColumnIndexOrThrow(MMS_ID));
+        List<DatabaseAttachment> attachments = results.get(mmsId);
+
+        if (attachments == null) {
+          attachments = new LinkedList<>();
+          results.put(mmsId, attachments);
+        }
+
+        attachments.addAll(getAttachment(cursor));
+      }
+    }
+
+    return results;
+  }
+
   public @NonNull List<DatabaseAttachment> getPendingAttachments() {
     final SQLiteDatabase           database    = databaseHelper.getReadableDatabase();
     final List<DatabaseAttachment> attachments = new LinkedList<>();
@@ -268,6 +324,22 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
+  void deleteAttachmentsForMessages(@NonNull long[] mmsIds) {
+    if (mmsIds.length == 0) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         where    = MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")";
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, where, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+      }
+    }
+
+    database.delete(TABLE_NAME, where, null);
+    notifyAttachmentListeners();
+  }
+
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
@@ -346,6 +418,9 @@ public class AttachmentDatabase extends Database {
     values.put(DIGEST, (byte[])null);
     values.put(NAME, (String) null);
     values.put(FAST_PREFLIGHT_ID, (String)null);
+    values.putNull(ORIGINAL_DIGEST);
+    values.putNull(PROCESSED_DIGEST);
+    values.putNull(PROCESSED_CONSTRAINTS);
 
     if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
       //noinspection ResultOfMethodCallIgnored
@@ -383,6 +458,18 @@ public class AttachmentDatabase extends Database {
   public @NonNull Attachment updateAttachmentData(@NonNull Attachment attachment,
                                                   @NonNull MediaStream mediaStream)
       throws MmsException
+  {
+    return updateAttachmentData(attachment, mediaStream, null);
+  }
+
+  /**
+   * Replaces the attachment's data with the result of processing it, and records what it was
+   * processed from and for along with it, see {@link #getProcessedState(AttachmentId)}.
+   */
+  public @NonNull Attachment updateAttachmentData(@NonNull Attachment attachment,
+                                                  @NonNull MediaStream mediaStream,
+                                                  @Nullable ProcessedState processedState)
+      throws MmsException
   {
     SQLiteDatabase     database           = databaseHelper.getWritableDatabase();
     DatabaseAttachment databaseAttachment = (DatabaseAttachment) attachment;
@@ -400,6 +487,7 @@ public class AttachmentDatabase extends Database {
     contentValues.put(WIDTH, mediaStream.getWidth());
     contentValues.put(HEIGHT, mediaStream.getHeight());
     contentValues.put(DATA_RANDOM, dataInfo.random);
+    putProcessedState(contentValues, processedState);
 
     database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
 
@@ -424,6 +512,71 @@ public class AttachmentDatabase extends Database {
   }
 
 
+  /**
+   * Records that the attachment's current data is already the result of processing, without
+   * changing the data.
+   */
+  public void setProcessedState(@NonNull AttachmentId attachmentId, @NonNull ProcessedState processedState) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    ContentValues  values   = new ContentValues(3);
+
+    putProcessedState(values, processedState);
+
+    database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings());
+  }
+
+  /**
+   * @return What the attachment's current data was processed from and for, or null if it hasn't
+   *         been processed since it was last written.
+   */
+  public @Nullable ProcessedState getProcessedState(@NonNull AttachmentId attachmentId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ORIGINAL_DIGEST, PROCESSED_DIGEST, PROCESSED_CONSTRAINTS},
+                                        PART_ID_WHERE + " AND " + PROCESSED_CONSTRAINTS + " IS NOT NULL", attachmentId.toStrings(),
+                                        null, null, null))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new ProcessedState(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return An attachment whose data was processed for {@code constraintsKey} and either was
+   *         {@code digest} before it was processed or is {@code digest} now, or null if there's none.
+   */
+  public @Nullable Pair<AttachmentId, ProcessedState> findProcessedAttachment(@NonNull String digest, @NonNull String constraintsKey) {
+    SQLiteDatabase database  = databaseHelper.getReadableDatabase();
+    String         selection = "(" + ORIGINAL_DIGEST + " = ? OR " + PROCESSED_DIGEST + " = ?) AND " + PROCESSED_CONSTRAINTS + " = ?";
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID, UNIQUE_ID, ORIGINAL_DIGEST, PROCESSED_DIGEST, PROCESSED_CONSTRAINTS},
+                                        selection, new String[] {digest, digest, constraintsKey},
+                                        null, null, ROW_ID + " DESC", "1"))
+    {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new Pair<>(new AttachmentId(cursor.getLong(0), cursor.getLong(1)),
+                          new ProcessedState(cursor.getString(2), cursor.getString(3), cursor.getString(4)));
+      }
+    }
+
+    return null;
+  }
+
+  private static void putProcessedState(@NonNull ContentValues values, @Nullable ProcessedState processedState) {
+    if (processedState != null) {
+      values.put(ORIGINAL_DIGEST, processedState.getOriginalDigest());
+      values.put(PROCESSED_DIGEST, processedState.getProcessedDigest());
+      values.put(PROCESSED_CONSTRAINTS, processedState.getConstraintsKey());
+    } else {
+      values.putNull(ORIGINAL_DIGEST);
+      values.putNull(PROCESSED_DIGEST);
+      values.putNull(PROCESSED_CONSTRAINTS);
+    }
+  }
+
   public void updateAttachmentFileName(@NonNull AttachmentId attachmentId,
                                        @Nullable String fileName)
   {
@@ -564,6 +717,10 @@ public class AttachmentDatabase extends Database {
   }
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
+    if (cursor instanceof AttachmentCursor) {
+      return ((AttachmentCursor) cursor).getAttachments();
+    }
+
     try {
       if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
         if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
@@ -786,12 +943,17 @@ public class AttachmentDatabase extends Database {
 
       EncryptedMediaDataSource dataSource = new EncryptedMediaDataSource(attachmentSecret, dataInfo.file, dataInfo.random, dataInfo.length);
       MediaMetadataRetriever   retriever  = new MediaMetadataRetriever();
-      retriever.setDataSource(dataSource);
 
-      Bitmap bitmap = retriever.getFrameAtTime(1000);
+      try {
+        retriever.setDataSource(dataSource);
+
+        Bitmap bitmap = retriever.getFrameAtTime(1000);
 
-      Log.i(TAG, "Generated video thumbnail...");
-      return new ThumbnailData(bitmap);
+        Log.i(TAG, "Generated video thumbnail...");
+        return new ThumbnailData(bitmap);
+      } finally {
+        retriever.release();
+      }
     }
   }
 
@@ -806,4 +968,32 @@ public class AttachmentDatabase extends Database {
       this.random = random;
     }
   }
+
+  /**
+   * The hex SHA-256 digests of an attachment's data before and after it was processed, and the
+   * key of the media constraints it was processed for.
+   */
+  public static class ProcessedState {
+    private final String originalDigest;
+    private final String processedDigest;
+    private final String constraintsKey;
+
+    public ProcessedState(@NonNull String originalDigest, @NonNull String processedDigest, @NonNull String constraintsKey) {
+      this.originalDigest  = originalDigest;
+      this.processedDigest = processedDigest;
+      this.constraintsKey  = constraintsKey;
+    }
+
+    public @NonNull String getOriginalDigest() {
+      return originalDigest;
+    }
+
+    public @NonNull String getProcessedDigest() {
+      return processedDigest;
+    }
+
+    public @NonNull String getConstraintsKey() {
+      return constraintsKey;
+    }
+  }
 }
@@ -3,6 +3,7 @@ package org.thoughtcrime.securesm2.database;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.support.annotation.NonNull;
 
 import java.io.Closeable;
@@ -40,6 +41,20 @@ public class CursorList<T> implements List<T>, Closeable {
     return new MatrixCursor(new String[] { "a" }, 0);
   }
 
+  /**
+   * @return A list of this list's rows followed by the rows of {@code more}, each built by the
+   *         builder of the list it came from. The returned list takes over both cursors, so only it
+   *         should be closed.
+   */
+  public @NonNull CursorList<T> append(@NonNull CursorList<T> more) {
+    int             split  = cursor.getCount();
+    ModelBuilder<T> first  = modelBuilder;
+    ModelBuilder<T> second = more.modelBuilder;
+
+    return new CursorList<>(new MergeCursor(new Cursor[] { cursor, more.cursor }),
+                            merged -> merged.getPosition() < split ? first.build(merged) : second.build(merged));
+  }
+
   @Override
   public int size() {
     return cursor.getCount();
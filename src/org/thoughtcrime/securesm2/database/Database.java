@@ -43,11 +43,11 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
+    NotificationCoalescer.getInstance().notifyChange(context, DatabaseContentProviders.Conversation.getUriForThread(threadId));
   }
 
   protected void notifyConversationListListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    NotificationCoalescer.getInstance().notifyChange(context, DatabaseContentProviders.ConversationList.CONTENT_URI);
   }
 
   protected void setNotifyConverationListeners(Cursor cursor, long threadId) {
@@ -65,7 +65,7 @@ public abstract class Database {
   }
 
   protected void notifyAttachmentListeners() {
-    context.getContentResolver().notifyChange(DatabaseContentProviders.Attachment.CONTENT_URI, null);
+    NotificationCoalescer.getInstance().notifyChange(context, DatabaseContentProviders.Attachment.CONTENT_URI);
   }
 
   public void reset(SQLCipherOpenHelper databaseHelper) {
@@ -135,6 +135,14 @@ public class DatabaseFactory {
     return getInstance(context).searchDatabase;
   }
 
+  /**
+   * @return The database every table above lives in, for callers that need to group writes to
+   *         several of them into one transaction.
+   */
+  public static SQLiteDatabase getRawDatabase(Context context) {
+    return getInstance(context).databaseHelper.getWritableDatabase();
+  }
+
   public static SQLiteDatabase getBackupDatabase(Context context) {
     return getInstance(context).databaseHelper.getReadableDatabase();
   }
@@ -1,44 +1,97 @@
 package org.thoughtcrime.securesm2.database;
 
+
+import android.support.annotation.NonNull;
+
 import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.util.LRUCache;
 
-import java.util.HashMap;
 import java.util.Map;
 
-public class EarlyReceiptCache {
+/**
+ * Holds receipts for messages that haven't been written yet, keyed by the sent timestamp of the
+ * message they refer to, until that message is inserted.
+ */
+class EarlyReceiptCache {
 
   private static final String TAG = EarlyReceiptCache.class.getSimpleName();
 
-  private final LRUCache<Long, Map<Address, Long>> cache = new LRUCache<>(100);
+  private static final int MAX_EARLY_RECEIPTS = 100;
+
+  private final Map<Long, EarlyReceiptCounts> earlyReceipts = new LRUCache<>(MAX_EARLY_RECEIPTS);
+
+  /**
+   * Holds on to a receipt that didn't match any message, in case the message it refers to is
+   * still being written.
+   */
+  synchronized void addEarlyReceipt(@NonNull Receipt receipt) {
+    Log.i(TAG, String.format("Early receipt: (%d, %s)", receipt.getDateSent(), receipt.getAddress().serialize()));
+
+    EarlyReceiptCounts counts = earlyReceipts.get(receipt.getDateSent());
+
+    if (counts == null) {
+      counts = new EarlyReceiptCounts();
+      earlyReceipts.put(receipt.getDateSent(), counts);
+    }
+
+    if (receipt.isDeliveryReceipt()) counts.deliveryReceiptCount++;
+    else                             counts.readReceiptCount++;
+  }
+
+  synchronized @NonNull EarlyReceiptCounts removeEarlyReceipts(long dateSent) {
+    EarlyReceiptCounts counts = earlyReceipts.remove(dateSent);
 
-  public synchronized void increment(long timestamp, Address origin) {
-    Log.i(TAG, this+"");
-    Log.i(TAG, String.format("Early receipt: (%d, %s)", timestamp, origin.serialize()));
+    Log.i(TAG, String.format("Checking early receipts (%d): %s", dateSent, counts != null ? "found" : "none"));
 
-    Map<Address, Long> receipts = cache.get(timestamp);
+    return counts != null ? counts : new EarlyReceiptCounts();
+  }
+
+  static class Receipt {
+
+    private final Address address;
+    private final long    dateSent;
+    private final long    timestamp;
+    private final boolean deliveryReceipt;
+
+    /**
+     * @param dateSent  The sent timestamp of the message this receipt refers to.
+     * @param timestamp When the receipt was generated.
+     */
+    Receipt(@NonNull Address address, long dateSent, long timestamp, boolean deliveryReceipt) {
+      this.address         = address;
+      this.dateSent        = dateSent;
+      this.timestamp       = timestamp;
+      this.deliveryReceipt = deliveryReceipt;
+    }
 
-    if (receipts == null) {
-      receipts = new HashMap<>();
+    @NonNull Address getAddress() {
+      return address;
     }
 
-    Long count = receipts.get(origin);
+    long getDateSent() {
+      return dateSent;
+    }
 
-    if (count != null) {
-      receipts.put(origin, ++count);
-    } else {
-      receipts.put(origin, 1L);
+    long getTimestamp() {
+      return timestamp;
     }
 
-    cache.put(timestamp, receipts);
+    boolean isDeliveryReceipt() {
+      return deliveryReceipt;
+    }
   }
 
-  public synchronized Map<Address, Long> remove(long timestamp) {
-    Map<Address, Long> receipts = cache.remove(timestamp);
+  static class EarlyReceiptCounts {
 
-    Log.i(TAG, this+"");
-    Log.i(TAG, String.format("Checking early receipts (%d): %d", timestamp, receipts == null ? 0 : receipts.size()));
+    private int deliveryReceiptCount;
+    private int readReceiptCount;
 
-    return receipts != null ? receipts : new HashMap<>();
+    int getDeliveryReceiptCount() {
+      return deliveryReceiptCount;
+    }
+
+    int getReadReceiptCount() {
+      return readReceiptCount;
+    }
   }
 }
@@ -142,6 +142,8 @@ public class GroupDatabase extends Database {
     List<Address>   members     = getCurrentMembers(groupId);
     List<Recipient> recipients  = new LinkedList<>();
 
+    Recipient.prefetch(context, members);
+
     for (Address member : members) {
       if (!includeSelf && Util.isOwnNumber(context, member))
         continue;
@@ -9,6 +9,7 @@ import android.support.annotation.NonNull;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesm2.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesm2.util.Util;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -95,6 +96,13 @@ public class GroupReceiptDatabase extends Database {
     db.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {String.valueOf(mmsId)});
   }
 
+  void deleteRowsForMessages(@NonNull long[] mmsIds) {
+    if (mmsIds.length == 0) return;
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")", null);
+  }
+
   void deleteAllRows() {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.delete(TABLE_NAME, null, null);
@@ -124,6 +124,25 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     }
   }
 
+  /**
+   * Removes and adds items in a single read and write of the document.
+   */
+  protected <D extends Document<I>, I> void updateDocument(long messageId, String column, List<I> removed, List<I> added, Class<D> clazz) throws IOException {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      D document = getDocument(database, messageId, column, clazz);
+      document.getList().removeAll(removed);
+      document.getList().addAll(added);
+      setDocument(database, messageId, column, document);
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   private void setDocument(SQLiteDatabase database, long messageId, String column, Document document) throws IOException {
     ContentValues contentValues = new ContentValues();
 
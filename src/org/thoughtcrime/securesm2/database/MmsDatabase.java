@@ -40,6 +40,8 @@ import org.thoughtcrime.securesm2.attachments.AttachmentId;
 import org.thoughtcrime.securesm2.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesm2.attachments.MmsNotificationAttachment;
 import org.thoughtcrime.securesm2.contactshare.Contact;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.EarlyReceiptCounts;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.Receipt;
 import org.thoughtcrime.securesm2.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesm2.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesm2.database.documents.NetworkFailure;
@@ -133,7 +135,8 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + "," + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS mms_thread_read_notified_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + READ + ", " + NOTIFIED + ");"
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -170,9 +173,6 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
-
   private final JobManager jobManager;
 
   public MmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
@@ -218,45 +218,88 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
+  /**
+   * Records the outcome of a send to several recipients at once, reading and writing the network
+   * failure and identity mismatch documents only once each. Either both documents are updated or
+   * neither is, and the exception is left to the caller, so this shouldn't be called as part of a
+   * transaction that has to commit regardless.
+   */
+  public void updateFailures(long messageId,
+                             @NonNull List<NetworkFailure>      resolvedNetworkFailures,
+                             @NonNull List<NetworkFailure>      networkFailures,
+                             @NonNull List<IdentityKeyMismatch> resolvedIdentityMismatches,
+                             @NonNull List<IdentityKeyMismatch> identityMismatches)
+      throws IOException
+  {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
-    boolean        found    = false;
+    database.beginTransaction();
 
     try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+      if (!resolvedNetworkFailures.isEmpty() || !networkFailures.isEmpty()) {
+        updateDocument(messageId, NETWORK_FAILURE, resolvedNetworkFailures, networkFailures, NetworkFailureList.class);
+      }
+
+      if (!resolvedIdentityMismatches.isEmpty() || !identityMismatches.isEmpty()) {
+        updateDocument(messageId, MISMATCHED_IDENTITIES, resolvedIdentityMismatches, identityMismatches, IdentityKeyMismatchList.class);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
 
+  /**
+   * Applies receipts that all refer to messages sent at {@code dateSent}, with one query for the
+   * candidate messages and at most one update per message. Meant to be called as part of a
+   * transaction covering a whole batch of receipts.
+   *
+   * @param matched   Receipts that matched an outgoing message are added to this.
+   * @param threadIds The threads of any updated messages are added to this.
+   */
+  void incrementReceiptCounts(long dateSent, @NonNull List<Receipt> receipts,
+                              @NonNull Set<Receipt> matched, @NonNull Set<Long> threadIds)
+  {
+    SQLiteDatabase       database        = databaseHelper.getWritableDatabase();
+    GroupReceiptDatabase receiptDatabase = DatabaseFactory.getGroupReceiptDatabase(context);
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, ADDRESS},
+                                        DATE_SENT + " = ?", new String[] {String.valueOf(dateSent)},
+                                        null, null, null, null))
+    {
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          Address theirAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          Address ourAddress   = messageId.getAddress();
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
+        if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) continue;
 
-          if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
-            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            int  status   = deliveryReceipt ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
+        Address theirAddress  = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+        long    id            = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        int     deliveryCount = 0;
+        int     readCount     = 0;
 
-            found = true;
+        for (Receipt receipt : receipts) {
+          if (receipt.getAddress().equals(theirAddress) || theirAddress.isGroup()) {
+            int status = receipt.isDeliveryReceipt() ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
 
-            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
+            if (receipt.isDeliveryReceipt()) deliveryCount++;
+            else                             readCount++;
 
-            DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+            receiptDatabase.update(receipt.getAddress(), id, status, receipt.getTimestamp());
+            matched.add(receipt);
           }
         }
-      }
 
-      if (!found) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
+        if (deliveryCount == 0 && readCount == 0) continue;
+
+        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+
+        database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                         DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + ?, " +
+                         READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + ? " +
+                         "WHERE " + ID + " = ?",
+                         new String[] {String.valueOf(deliveryCount), String.valueOf(readCount), String.valueOf(id)});
+
+        DatabaseFactory.getThreadDatabase(context).updateSnippetState(threadId, true, id);
+        threadIds.add(threadId);
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
   }
 
@@ -311,9 +354,14 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
-  public Reader getExpireStartedMessages() {
-    String where = EXPIRE_STARTED + " > 0";
-    return readerFor(rawQuery(where, null));
+  /**
+   * @return The {@link #ID}, {@link #EXPIRE_STARTED} and {@link #EXPIRES_IN} of every message
+   *         whose expiration timer has started.
+   */
+  public Cursor getExpireStartedMessages() {
+    String         where = EXPIRE_STARTED + " > 0";
+    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, new String[] {ID, EXPIRE_STARTED, EXPIRES_IN}, where, null, null, null, null);
   }
 
   private void updateMailboxBitmask(long id, long maskOff, long maskOn, Optional<Long> threadId) {
@@ -323,7 +371,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateSnippetState(threadId.get(), true, id);
     }
   }
 
@@ -894,8 +942,7 @@ public class MmsDatabase extends MessagingDatabase {
       type |= Types.EXPIRATION_TIMER_UPDATE_BIT;
     }
 
-    Map<Address, Long> earlyDeliveryReceipts = earlyDeliveryReceiptCache.remove(message.getSentTimeMillis());
-    Map<Address, Long> earlyReadReceipts     = earlyReadReceiptCache.remove(message.getSentTimeMillis());
+    EarlyReceiptCounts earlyReceipts = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyReceipts(message.getSentTimeMillis());
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(DATE_SENT, message.getSentTimeMillis());
@@ -908,8 +955,8 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(SUBSCRIPTION_ID, message.getSubscriptionId());
     contentValues.put(EXPIRES_IN, message.getExpiresIn());
     contentValues.put(ADDRESS, message.getRecipient().getAddress().serialize());
-    contentValues.put(DELIVERY_RECEIPT_COUNT, Stream.of(earlyDeliveryReceipts.values()).mapToLong(Long::longValue).sum());
-    contentValues.put(READ_RECEIPT_COUNT, Stream.of(earlyReadReceipts.values()).mapToLong(Long::longValue).sum());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, earlyReceipts.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, earlyReceipts.getReadReceiptCount());
 
     List<Attachment> quoteAttachments = new LinkedList<>();
 
@@ -1010,6 +1057,31 @@ public class MmsDatabase extends MessagingDatabase {
     return threadDeleted;
   }
 
+  /**
+   * Deletes the given messages along with their attachments and group receipts, without updating
+   * their threads, which the caller is expected to do once per thread as part of the same
+   * transaction.
+   *
+   * @param threadIds The threads of the deleted messages are added to this.
+   */
+  void deleteMessages(@NonNull long[] messageIds, @NonNull Set<Long> threadIds) {
+    if (messageIds.length == 0) return;
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    String         where    = ID + " IN (" + Util.join(messageIds, ",") + ")";
+
+    try (Cursor cursor = database.query(true, TABLE_NAME, new String[] {THREAD_ID}, where, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    }
+
+    DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(messageIds);
+    DatabaseFactory.getGroupReceiptDatabase(context).deleteRowsForMessages(messageIds);
+
+    database.delete(TABLE_NAME, where, null);
+  }
+
   public void deleteThread(long threadId) {
     Set<Long> singleThreadSet = new HashSet<>();
     singleThreadSet.add(threadId);
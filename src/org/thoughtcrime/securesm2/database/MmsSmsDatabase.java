@@ -25,22 +25,34 @@ import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
 
 import org.thoughtcrime.securesm2.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.EarlyReceiptCounts;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.Receipt;
 import org.thoughtcrime.securesm2.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesm2.database.model.MessageRecord;
+import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.util.Util;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
 
-  @SuppressWarnings("unused")
   private static final String TAG = MmsSmsDatabase.class.getSimpleName();
 
   public static final String TRANSPORT     = "transport_type";
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String MMS_UNIQUE_ROW_ID = "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " || '::' || " + MmsDatabase.DATE_SENT;
+  private static final String SMS_UNIQUE_ROW_ID = "'SMS::' || " + MmsSmsColumns.ID + " || '::' || " + SmsDatabase.DATE_SENT;
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -71,6 +83,8 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.QUOTE_ATTACHMENT,
                                               MmsDatabase.SHARED_CONTACTS};
 
+  private final EarlyReceiptCache earlyReceiptCache = new EarlyReceiptCache();
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -95,19 +109,122 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
-  public Cursor getConversation(long threadId, long offset, long limit) {
+  public Cursor getConversation(long threadId) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+    Cursor cursor = queryTables(PROJECTION, selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
-  public Cursor getConversation(long threadId) {
-    return getConversation(threadId, 0, 0);
+  /**
+   * Returns up to {@code limit} messages adjacent to {@code anchor}, always ordered newest first
+   * like {@link #getConversation(long)}. Pages are seeked to by the key of the message at their
+   * edge rather than by offset, so each one only costs as much as the rows it contains no matter
+   * how far back in the thread it is.
+   *
+   * @param anchor        The key of the message bordering this page. If null, the page starts at
+   *                      the newest message in the thread.
+   * @param newer         Whether to read the messages after the anchor rather than before it.
+   * @param includeAnchor Whether the anchor is the first message of the page rather than excluded
+   *                      from it.
+   */
+  public Cursor getConversationPage(long threadId, @Nullable ConversationKey anchor, boolean newer, boolean includeAnchor, int limit) {
+    String   direction     = newer ? " ASC" : " DESC";
+    String   order         = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + direction + ", " + MmsSmsColumns.UNIQUE_ROW_ID + direction;
+    String   outerOrder    = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+    String   smsSelection  = getPageSelection(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, SMS_UNIQUE_ROW_ID, threadId, anchor, newer, includeAnchor, limit);
+    String   mmsSelection  = getPageSelection(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, MMS_UNIQUE_ROW_ID, threadId, anchor, newer, includeAnchor, limit);
+    String[] selectionArgs = null;
+
+    if (anchor != null) {
+      String date = String.valueOf(anchor.getDateReceived());
+      selectionArgs = new String[] { date, date, anchor.getUniqueRowId(), date, date, anchor.getUniqueRowId() };
+    }
+
+    Cursor cursor = queryTables(PROJECTION, smsSelection, mmsSelection, selectionArgs, order, String.valueOf(limit), outerOrder, false);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return withAttachments(cursor);
+  }
+
+  /**
+   * Loads the attachments for every mms row of a page in one query, rather than having each row
+   * carry them as JSON that has to be built by the query and parsed again when it's bound.
+   */
+  private @NonNull Cursor withAttachments(@NonNull Cursor cursor) {
+    int    transportColumn = cursor.getColumnIndexOrThrow(TRANSPORT);
+    int    idColumn        = cursor.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    long[] mmsIds          = new long[cursor.getCount()];
+    int    mmsCount        = 0;
+
+    while (cursor.moveToNext()) {
+      if (MMS_TRANSPORT.equals(cursor.getString(transportColumn))) {
+        mmsIds[mmsCount++] = cursor.getLong(idColumn);
+      }
+    }
+
+    cursor.moveToPosition(-1);
+
+    return new AttachmentCursor(cursor, DatabaseFactory.getAttachmentDatabase(context)
+                                                       .getAttachmentsForMessages(Arrays.copyOf(mmsIds, mmsCount)));
+  }
+
+  /**
+   * @return The key of the message at the given position of {@link #getConversation(long)}, for
+   *         turning a scroll position into an anchor for {@link #getConversationPage}. Only the
+   *         key columns are read, so skipping to the position doesn't build any message rows.
+   */
+  public @Nullable ConversationKey getConversationKeyAtPosition(long threadId, int position) {
+    String query = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.UNIQUE_ROW_ID + " FROM (" +
+                     "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 SMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID +
+                     " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                     " UNION ALL " +
+                     "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 MMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID +
+                     " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                   ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC" +
+                   " LIMIT 1 OFFSET " + position;
+
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(threadId) };
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new ConversationKey(cursor.getLong(0), cursor.getString(1));
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Restricts one side of the union to the ids of the page's rows, so that the seek and the limit
+   * are both answered from the (thread, date) index.
+   */
+  private static String getPageSelection(@NonNull String table, @NonNull String dateColumn, @NonNull String uniqueRowId,
+                                         long threadId, @Nullable ConversationKey anchor, boolean newer, boolean includeAnchor,
+                                         int limit)
+  {
+    String direction = newer ? " ASC" : " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+
+    if (anchor != null) {
+      String comparison      = newer ? " > " : " < ";
+      String rowIdComparison = includeAnchor ? (newer ? " >= " : " <= ") : comparison;
+
+      selection += " AND " + dateColumn + (newer ? " >= ?" : " <= ?") +
+                   " AND (" + dateColumn + comparison + "? OR " + uniqueRowId + rowIdComparison + "?)";
+    }
+
+    return table + "." + MmsSmsColumns.ID + " IN (" +
+             "SELECT " + MmsSmsColumns.ID + " FROM " + table +
+             " WHERE " + selection +
+             " ORDER BY " + dateColumn + direction + ", " + uniqueRowId + direction +
+             " LIMIT " + limit +
+           ")";
   }
 
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
@@ -121,10 +238,38 @@ public class MmsSmsDatabase extends Database {
   }
 
   public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    return getConversationPage(threadId, null, false, false, 1);
+  }
 
-    return  queryTables(PROJECTION, selection, order, "1");
+  /**
+   * @return Whether the given message is the one that {@link #getConversationSnippet(long)} would
+   *         currently return for its thread.
+   */
+  boolean isConversationSnippet(long threadId, boolean mms, long messageId) {
+    String smsLatest = "SELECT * FROM (" +
+                         "SELECT '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID + ", " +
+                                 SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 SMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID +
+                         " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                         " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC, " + SMS_UNIQUE_ROW_ID + " DESC LIMIT 1" +
+                       ")";
+    String mmsLatest = "SELECT * FROM (" +
+                         "SELECT '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID + ", " +
+                                 MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 MMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID +
+                         " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?" +
+                         " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC, " + MMS_UNIQUE_ROW_ID + " DESC LIMIT 1" +
+                       ")";
+    String query     = "SELECT " + TRANSPORT + ", " + MmsSmsColumns.ID + " FROM (" + smsLatest + " UNION ALL " + mmsLatest + ")" +
+                       " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC LIMIT 1";
+
+    String[] args = new String[] { String.valueOf(threadId), String.valueOf(threadId) };
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      return cursor != null && cursor.moveToFirst()                                  &&
+             cursor.getString(0).equals(mms ? MMS_TRANSPORT : SMS_TRANSPORT) &&
+             cursor.getLong(1) == messageId;
+    }
   }
 
   public Cursor getUnread() {
@@ -134,52 +279,193 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  /**
+   * @return The {@link #TRANSPORT} and id of every message {@link #getUnread()} would return,
+   *         which the read and notified indexes cover without touching the rows themselves.
+   */
+  public Cursor getUnreadIds() {
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String query     = "SELECT '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                       " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + selection +
+                       " UNION ALL " +
+                       "SELECT '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsSmsColumns.ID +
+                       " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + selection;
+
+    return databaseHelper.getReadableDatabase().rawQuery(query, null);
+  }
+
+  /**
+   * @return The given messages, in the same order and with the same columns as {@link #getUnread()}.
+   */
+  public Cursor getUnread(@NonNull long[] smsIds, @NonNull long[] mmsIds) {
+    String order        = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String smsSelection = MmsSmsColumns.ID + " IN (" + Util.join(smsIds, ",") + ")";
+    String mmsSelection = MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " IN (" + Util.join(mmsIds, ",") + ")";
+
+    return queryTables(PROJECTION, smsSelection, mmsSelection, null, order, null, null, true);
+  }
+
   public int getUnreadCount(long threadId) {
-    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
-    Cursor cursor    = queryTables(PROJECTION, selection, null, null);
+    String   selection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String[] args      = new String[] { String.valueOf(threadId) };
 
-    try {
-      return cursor != null ? cursor.getCount() : 0;
-    } finally {
-      if (cursor != null) cursor.close();;
-    }
+    return countTables(selection, selection, args);
   }
 
   public int getConversationCount(long threadId) {
-    int count = DatabaseFactory.getSmsDatabase(context).getMessageCountForThread(threadId);
-    count    += DatabaseFactory.getMmsDatabase(context).getMessageCountForThread(threadId);
+    String   selection = MmsSmsColumns.THREAD_ID + " = ?";
+    String[] args      = new String[] { String.valueOf(threadId) };
 
-    return count;
+    return countTables(selection, selection, args);
   }
 
+  /**
+   * Receipts are applied before this returns, as part of the caller's transaction if there is one,
+   * so that they're committed together with whatever the caller deletes or records for them.
+   */
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+    incrementDeliveryReceiptCounts(Collections.singletonList(syncMessageId), timestamp);
   }
 
   public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
+    incrementReadReceiptCounts(Collections.singletonList(syncMessageId), timestamp);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * Applies every receipt of a receipt message together, see {@link #applyReceipts(List)}.
+   */
+  public void incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    applyReceipts(toReceipts(syncMessageIds, timestamp, true));
+  }
+
+  public void incrementReadReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    applyReceipts(toReceipts(syncMessageIds, timestamp, false));
+  }
+
+  private static @NonNull List<Receipt> toReceipts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, boolean delivery) {
+    List<Receipt> receipts = new ArrayList<>(syncMessageIds.size());
+
+    for (SyncMessageId syncMessageId : syncMessageIds) {
+      receipts.add(new Receipt(syncMessageId.getAddress(), syncMessageId.getTimetamp(), timestamp, delivery));
+    }
+
+    return receipts;
+  }
+
+  /**
+   * @return Receipts that arrived before the message sent at {@code dateSent} was written, which
+   *         are no longer held once returned.
+   */
+  @NonNull EarlyReceiptCounts removeEarlyReceipts(long dateSent) {
+    return earlyReceiptCache.removeEarlyReceipts(dateSent);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
+  /**
+   * Applies receipts in a single transaction. Receipts for the same message timestamp
+   * share one lookup in each table, and each affected thread is notified once at the end.
+   */
+  private void applyReceipts(@NonNull List<Receipt> receipts) {
+    Map<Long, List<Receipt>> receiptsByDateSent = new HashMap<>();
+
+    for (Receipt receipt : receipts) {
+      List<Receipt> group = receiptsByDateSent.get(receipt.getDateSent());
+
+      if (group == null) {
+        group = new LinkedList<>();
+        receiptsByDateSent.put(receipt.getDateSent(), group);
+      }
+
+      group.add(receipt);
+    }
+
+    SmsDatabase    smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    SQLiteDatabase db          = databaseHelper.getWritableDatabase();
+    Set<Receipt>   matched     = new HashSet<>();
+    Set<Long>      threadIds   = new HashSet<>();
+
+    db.beginTransaction();
+
+    try {
+      for (Map.Entry<Long, List<Receipt>> entry : receiptsByDateSent.entrySet()) {
+        smsDatabase.incrementReceiptCounts(entry.getKey(), entry.getValue(), matched, threadIds);
+        mmsDatabase.incrementReceiptCounts(entry.getKey(), entry.getValue(), matched, threadIds);
+      }
+
+      for (Receipt receipt : receipts) {
+        if (!matched.contains(receipt)) {
+          earlyReceiptCache.addEarlyReceipt(receipt);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListeners(threadIds);
+  }
+
+  /**
+   * Deletes messages whose expiration timers have run out in a single transaction, updating and
+   * notifying each affected thread once rather than once per message.
+   */
+  public void deleteExpiredMessages(@NonNull long[] smsIds, @NonNull long[] mmsIds) {
+    ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    Set<Long>      threadIds      = new HashSet<>();
+
+    db.beginTransaction();
+
+    try {
+      DatabaseFactory.getSmsDatabase(context).deleteMessages(smsIds, threadIds);
+      DatabaseFactory.getMmsDatabase(context).deleteMessages(mmsIds, threadIds);
+
+      for (long threadId : threadIds) {
+        threadDatabase.update(threadId, false);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListeners(threadIds);
+
+    Log.i(TAG, "Deleted " + (smsIds.length + mmsIds.length) + " expired messages across " + threadIds.size() + " threads.");
+  }
+
+  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
+    String query = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.UNIQUE_ROW_ID + ", " + MmsSmsColumns.ADDRESS + " FROM (" +
+                     "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 SMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID + ", " + MmsSmsColumns.ADDRESS +
+                     " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_SENT + " = ?" +
+                     " UNION ALL " +
+                     "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                                 MMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID + ", " + MmsSmsColumns.ADDRESS +
+                     " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_SENT + " = ?" +
+                   ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsColumns.UNIQUE_ROW_ID + " DESC";
+
+    String[]        args   = new String[] { String.valueOf(threadId), String.valueOf(quoteId), String.valueOf(threadId), String.valueOf(quoteId) };
+    ConversationKey quoted = null;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
       String  serializedAddress = address.serialize();
       boolean isOwnNumber       = Util.isOwnNumber(context, address);
 
       while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
-
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
+        if (isOwnNumber || serializedAddress.equals(cursor.getString(2))) {
+          quoted = new ConversationKey(cursor.getLong(0), cursor.getString(1));
+          break;
         }
       }
     }
-    return -1;
+
+    if (quoted == null) {
+      return -1;
+    }
+
+    return getPositionInConversation(threadId, quoted);
   }
 
   /**
@@ -191,44 +477,96 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+    String   smsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + " > ?";
+    String   mmsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + " > ?";
+    String[] args         = new String[] { String.valueOf(threadId), String.valueOf(receivedTimestamp) };
+
+    return countTables(smsSelection, mmsSelection, args);
+  }
+
+  /**
+   * @return The number of messages that sort ahead of the given key in the thread, which is its
+   *         position in {@link #getConversationPage} order.
+   */
+  private int getPositionInConversation(long threadId, @NonNull ConversationKey key) {
+    String   smsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + " >= ? AND " +
+                            "(" + SmsDatabase.DATE_RECEIVED + " > ? OR " + SMS_UNIQUE_ROW_ID + " > ?)";
+    String   mmsSelection = MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + " >= ? AND " +
+                            "(" + MmsDatabase.DATE_RECEIVED + " > ? OR " + MMS_UNIQUE_ROW_ID + " > ?)";
+    String   date         = String.valueOf(key.getDateReceived());
+    String[] args         = new String[] { String.valueOf(threadId), date, date, key.getUniqueRowId() };
+
+    return countTables(smsSelection, mmsSelection, args);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
+  /**
+   * Counts matching rows in the sms and mms tables directly. Nothing here needs the message
+   * contents, so this avoids the attachment join and the sorted union that {@link #queryTables}
+   * builds, and can be answered from the thread indexes alone.
+   *
+   * @param selectionArgs Arguments for one selection, which are bound to both.
+   */
+  private int countTables(@NonNull String smsSelection, @NonNull String mmsSelection, @NonNull String[] selectionArgs) {
+    String   query = "SELECT (SELECT COUNT(*) FROM " + SmsDatabase.TABLE_NAME + " WHERE " + smsSelection + ") + " +
+                            "(SELECT COUNT(*) FROM " + MmsDatabase.TABLE_NAME + " WHERE " + mmsSelection + ")";
+    String[] args  = new String[selectionArgs.length * 2];
+
+    System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+    System.arraycopy(selectionArgs, 0, args, selectionArgs.length, selectionArgs.length);
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
       if (cursor != null && cursor.moveToFirst()) {
         return cursor.getInt(0);
       }
     }
-    return -1;
+
+    return 0;
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    return queryTables(projection, selection, selection, null, order, limit, null, true);
+  }
+
+  /**
+   * @param joinAttachments Whether to group each mms row's attachments into it as JSON. Callers
+   *                        that don't are expected to load them separately, see
+   *                        {@link #withAttachments(Cursor)}.
+   */
+  private Cursor queryTables(String[] projection, String smsSelection, String mmsSelection, String[] selectionArgs,
+                             String order, String limit, String outerOrder, boolean joinAttachments)
+  {
+    String attachmentColumn;
+
+    if (joinAttachments) {
+      attachmentColumn = "json_group_array(json_object(" +
+                             "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+                             "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+                             "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+                             "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+                             "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+                             "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+                             "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
+                             "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+                             "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+                             "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+                             "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+                             "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+                             "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+                             "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+                             "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+                             "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+                             "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+                             "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION +
+                             ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+    } else {
+      attachmentColumn = "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+    }
+
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
-                              "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
-                                  + " || '::' || " + MmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              MMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              attachmentColumn,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -250,9 +588,7 @@ public class MmsSmsDatabase extends Database {
     String[] smsProjection = {SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsSmsColumns.ID,
-                              "'SMS::' || " + MmsSmsColumns.ID
-                                  + " || '::' || " + SmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              SMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
                               "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
@@ -275,13 +611,18 @@ public class MmsSmsDatabase extends Database {
     SQLiteQueryBuilder mmsQueryBuilder = new SQLiteQueryBuilder();
     SQLiteQueryBuilder smsQueryBuilder = new SQLiteQueryBuilder();
 
-    mmsQueryBuilder.setDistinct(true);
-    smsQueryBuilder.setDistinct(true);
+    mmsQueryBuilder.setDistinct(joinAttachments);
+    smsQueryBuilder.setDistinct(joinAttachments);
 
     smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+
+    if (joinAttachments) {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
+                                AttachmentDatabase.TABLE_NAME +
+                                " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    } else {
+      mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME);
+    }
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -360,9 +701,9 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.UNIDENTIFIED);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, mmsSelection, null, joinAttachments ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null, null);
     @SuppressWarnings("deprecation")
-    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
+    String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, smsSelection, null, null, null);
 
     SQLiteQueryBuilder unionQueryBuilder = new SQLiteQueryBuilder();
     String unionQuery = unionQueryBuilder.buildUnionQuery(new String[] {smsSubQuery, mmsSubQuery}, order, limit);
@@ -371,10 +712,10 @@ public class MmsSmsDatabase extends Database {
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
     @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, outerOrder, null);
 
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+    return db.rawQuery(query, selectionArgs);
   }
 
   public Reader readerFor(@NonNull Cursor cursor) {
@@ -426,4 +767,32 @@ public class MmsSmsDatabase extends Database {
       cursor.close();
     }
   }
+
+  /**
+   * The sort key of a message in a conversation. The unique row id breaks ties between messages
+   * received in the same millisecond, so every message has a distinct position.
+   */
+  public static class ConversationKey {
+
+    private final long   dateReceived;
+    private final String uniqueRowId;
+
+    public ConversationKey(long dateReceived, @NonNull String uniqueRowId) {
+      this.dateReceived = dateReceived;
+      this.uniqueRowId  = uniqueRowId;
+    }
+
+    public static @NonNull ConversationKey fromCursor(@NonNull Cursor cursor) {
+      return new ConversationKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                                 cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID)));
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    public @NonNull String getUniqueRowId() {
+      return uniqueRowId;
+    }
+  }
 }
@@ -0,0 +1,89 @@
+package org.thoughtcrime.securesm2.database;
+
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers the change notifications raised by {@link Database} writes. Rather than calling
+ * {@link android.content.ContentResolver#notifyChange(Uri, android.database.ContentObserver)} for
+ * every write, URIs are collected for {@link #WINDOW_MS} after the first one and then each
+ * distinct URI is dispatched once, so a burst of writes to the same thread only causes its
+ * observers to requery once.
+ */
+public class NotificationCoalescer {
+
+  private static final long WINDOW_MS = 50;
+
+  private static final NotificationCoalescer instance = new NotificationCoalescer();
+
+  private final ScheduledExecutorService executor  = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "notification-coalescer"));
+  private final AtomicLong               emitted    = new AtomicLong();
+  private final AtomicLong               suppressed = new AtomicLong();
+
+  private Context  context;
+  private Set<Uri> pending = new LinkedHashSet<>();
+  private boolean  dispatchScheduled;
+
+  public static @NonNull NotificationCoalescer getInstance() {
+    return instance;
+  }
+
+  private NotificationCoalescer() {}
+
+  synchronized void notifyChange(@NonNull Context context, @NonNull Uri uri) {
+    if (this.context == null) {
+      this.context = context.getApplicationContext();
+    }
+
+    if (!pending.add(uri)) {
+      suppressed.incrementAndGet();
+      return;
+    }
+
+    if (!dispatchScheduled) {
+      dispatchScheduled = true;
+      executor.schedule(this::dispatch, WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * @return The number of notifications that have been delivered to the content resolver.
+   */
+  public long getEmittedCount() {
+    return emitted.get();
+  }
+
+  /**
+   * @return The number of notifications that were dropped because the same URI was already
+   *         waiting to be delivered.
+   */
+  public long getSuppressedCount() {
+    return suppressed.get();
+  }
+
+  private void dispatch() {
+    Set<Uri> uris;
+    Context  context;
+
+    synchronized (this) {
+      uris              = pending;
+      context           = this.context;
+      pending           = new LinkedHashSet<>();
+      dispatchScheduled = false;
+    }
+
+    for (Uri uri : uris) {
+      context.getContentResolver().notifyChange(uri, null);
+      emitted.incrementAndGet();
+    }
+  }
+}
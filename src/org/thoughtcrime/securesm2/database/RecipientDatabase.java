@@ -21,8 +21,12 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -57,6 +61,8 @@ public class RecipientDatabase extends Database {
   private static final String NOTIFICATION_CHANNEL     = "notification_channel";
   private static final String UNIDENTIFIED_ACCESS_MODE = "unidentified_access_mode";
 
+  private static final int MAX_QUERY_ADDRESSES = 500;
+
   private static final String[] RECIPIENT_PROJECTION = new String[] {
       BLOCK, NOTIFICATION, CALL_RINGTONE, VIBRATE, CALL_VIBRATE, MUTE_UNTIL, COLOR, SEEN_INVITE_REMINDER, DEFAULT_SUBSCRIPTION_ID, EXPIRE_MESSAGES, REGISTERED,
       PROFILE_KEY, SYSTEM_DISPLAY_NAME, SYSTEM_PHOTO_URI, SYSTEM_PHONE_LABEL, SYSTEM_CONTACT_URI,
@@ -188,6 +194,36 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings of many recipients with a handful of {@code IN (...)} queries rather than
+   * one query each. Addresses without a row are left out of the result.
+   */
+  public @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull Collection<Address> addresses) {
+    SQLiteDatabase                  database = databaseHelper.getReadableDatabase();
+    Map<Address, RecipientSettings> results  = new HashMap<>(addresses.size());
+    List<String>                    batch    = new ArrayList<>(Math.min(addresses.size(), MAX_QUERY_ADDRESSES));
+    Iterator<Address>               iterator = addresses.iterator();
+
+    while (iterator.hasNext()) {
+      batch.add(iterator.next().serialize());
+
+      if (batch.size() == MAX_QUERY_ADDRESSES || !iterator.hasNext()) {
+        String query = ADDRESS + " IN (" + Util.join(Collections.nCopies(batch.size(), "?"), ",") + ")";
+
+        try (Cursor cursor = database.query(TABLE_NAME, null, query, batch.toArray(new String[0]), null, null, null)) {
+          while (cursor != null && cursor.moveToNext()) {
+            Address address = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+            results.put(address, getRecipientSettings(cursor).get());
+          }
+        }
+
+        batch.clear();
+      }
+    }
+
+    return results;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     String  messageRingtone        = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
@@ -1,34 +1,42 @@
 package org.thoughtcrime.securesm2.database;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
-import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesm2.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.util.Util;
 
+import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Contains all databases necessary for full-text search (FTS).
  */
 public class SearchDatabase extends Database {
 
+  private static final String TAG = SearchDatabase.class.getSimpleName();
+
   public static final String SMS_FTS_TABLE_NAME = "sms_fts";
   public static final String MMS_FTS_TABLE_NAME = "mms_fts";
 
   public static final String ID      = "rowid";
   public static final String BODY    = MmsSmsColumns.BODY;
   public static final String RANK    = "rank";
-  public static final String SNIPPET = "snippet";
 
-  public static final String[] CREATE_TABLE = {
-      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
+  private static final String[] SMS_TRIGGER_NAMES = { "sms_ai", "sms_ad", "sms_au" };
+  private static final String[] MMS_TRIGGER_NAMES = { "mms_ai", "mms_ad", "mms_au" };
 
+  private static final String[] SMS_TRIGGERS = {
       "CREATE TRIGGER sms_ai AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
           "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ");\n" +
           "END;\n",
@@ -38,11 +46,10 @@ public class SearchDatabase extends Database {
       "CREATE TRIGGER sms_au AFTER UPDATE ON " + SmsDatabase.TABLE_NAME + " BEGIN\n" +
           "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + SMS_FTS_TABLE_NAME + ", " + ID + ", " + BODY + ") VALUES('delete', old." + SmsDatabase.ID + ", old." + SmsDatabase.BODY + ");\n" +
           "  INSERT INTO " + SMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES(new." + SmsDatabase.ID + ", new." + SmsDatabase.BODY + ");\n" +
-          "END;",
-
-
-      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ");",
+          "END;"
+  };
 
+  private static final String[] MMS_TRIGGERS = {
       "CREATE TRIGGER mms_ai AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN\n" +
           "  INSERT INTO " + MMS_FTS_TABLE_NAME + "(" + ID + ", " + BODY + ") VALUES (new." + MmsDatabase.ID + ", new." + MmsDatabase.BODY + ");\n" +
           "END;\n",
@@ -55,44 +62,276 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
-  private static final String MESSAGES_QUERY =
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + ", " +
-        "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MmsSmsColumns.THREAD_ID + " " +
-      "FROM " + SmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
-      "UNION ALL " +
-      "SELECT " +
-        ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + ", " +
-        "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
-        MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MmsSmsColumns.THREAD_ID + " " +
-      "FROM " + MmsDatabase.TABLE_NAME + " " +
-      "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
-      "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MmsDatabase.TABLE_NAME + "." + MmsSmsColumns.THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
+  public static final String[] CREATE_TABLE = {
+      "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
+
+      SMS_TRIGGERS[0],
+      SMS_TRIGGERS[1],
+      SMS_TRIGGERS[2],
+
+      "CREATE VIRTUAL TABLE " + MMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", content=" + MmsDatabase.TABLE_NAME + ", content_rowid=" + MmsDatabase.ID + ");",
+
+      MMS_TRIGGERS[0],
+      MMS_TRIGGERS[1],
+      MMS_TRIGGERS[2]
+  };
+
+  public enum MessageOrder {
+    /** Newest messages first. */
+    DATE,
+    /**
+     * Best bm25 matches first. Each table's scores are weighed against that table's own messages,
+     * so sms and mms matches are interleaved by scores that are only roughly comparable.
+     */
+    RANK
+  }
 
   public SearchDatabase(@NonNull Context context, @NonNull SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * Stops keeping the search index up to date as messages are written, so that a bulk import
+   * doesn't pay for an index update per row. Until {@link #rebuildIndex()} has run the index is
+   * missing whatever was written in between, see {@link #isIndexing()}.
+   */
+  public void suspendIndexing() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (String trigger : SMS_TRIGGER_NAMES) db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+      for (String trigger : MMS_TRIGGER_NAMES) db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * @return True if indexing is suspended or a rebuild hasn't finished, in which case searches
+   *         may be missing some messages.
+   */
+  public boolean isIndexing() {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return !hasTriggers(db, SMS_TRIGGER_NAMES) || !hasTriggers(db, MMS_TRIGGER_NAMES);
+  }
+
+  /**
+   * Rebuilds the index of each table whose triggers are missing in a single pass over the table,
+   * then merges the result into as few segments as possible. A table's triggers are restored in
+   * the same transaction as its rebuild, so if this is interrupted, calling it again only redoes
+   * the tables that weren't finished.
+   */
+  public void rebuildIndex() {
+    rebuildIndex(SMS_FTS_TABLE_NAME, SMS_TRIGGER_NAMES, SMS_TRIGGERS);
+    rebuildIndex(MMS_FTS_TABLE_NAME, MMS_TRIGGER_NAMES, MMS_TRIGGERS);
+  }
+
+  private void rebuildIndex(@NonNull String ftsTable, @NonNull String[] triggerNames, @NonNull String[] triggers) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    if (hasTriggers(db, triggerNames)) return;
+
+    Log.i(TAG, "Rebuilding " + ftsTable + "...");
+    long start = SystemClock.elapsedRealtime();
+
+    db.beginTransaction();
+    try {
+      for (String trigger : triggerNames) db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+      for (String trigger : triggers)     db.execSQL(trigger);
+
+      db.execSQL("INSERT INTO " + ftsTable + "(" + ftsTable + ") VALUES('rebuild')");
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    long rebuilt = SystemClock.elapsedRealtime();
+    Log.i(TAG, "Rebuilt " + ftsTable + " in " + (rebuilt - start) + " ms");
+
+    db.execSQL("INSERT INTO " + ftsTable + "(" + ftsTable + ") VALUES('optimize')");
+
+    Log.i(TAG, "Optimized " + ftsTable + " in " + (SystemClock.elapsedRealtime() - rebuilt) + " ms");
+  }
+
+  private static boolean hasTriggers(@NonNull SQLiteDatabase db, @NonNull String[] triggerNames) {
+    String query = "SELECT COUNT(*) FROM sqlite_master WHERE type = 'trigger' AND name IN (?, ?, ?)";
+
+    try (Cursor cursor = db.rawQuery(query, triggerNames)) {
+      return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == triggerNames.length;
+    }
+  }
+
+  /**
+   * @return Whether a schema statement from a backup creates one of the triggers that keep the
+   *         search index up to date, which are left out of imports and restored by {@link #rebuildIndex()}.
+   */
+  public static boolean isIndexTrigger(@NonNull String statement) {
+    for (String trigger : SMS_TRIGGER_NAMES) if (statement.startsWith("CREATE TRIGGER " + trigger + " ")) return true;
+    for (String trigger : MMS_TRIGGER_NAMES) if (statement.startsWith("CREATE TRIGGER " + trigger + " ")) return true;
+
+    return false;
+  }
+
+  /**
+   * Returns one page of message matches. Snippets aren't part of the page, they can be fetched
+   * for a whole page at once with {@link #getMessageSnippets(String, String, long[])}.
+   *
+   * @param threadId The thread to search in, or -1 to search every thread.
+   * @param after    The key of the last row of the previous page, or null for the first page.
+   */
+  public Cursor queryMessages(@NonNull String query, long threadId, @NonNull MessageOrder order,
+                              @Nullable MessageKey after, int limit)
+  {
+    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
+    String         prefixQuery = getPrefixQuery(query);
+    String         orderBy     = getMessageOrderBy(order);
+    List<String>   args        = new LinkedList<>();
+
+    String smsPage = getMessagePageQuery(SMS_FTS_TABLE_NAME, SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, MmsSmsDatabase.SMS_TRANSPORT,
+                                         prefixQuery, threadId, order, after, limit, args);
+    String mmsPage = getMessagePageQuery(MMS_FTS_TABLE_NAME, MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, MmsSmsDatabase.MMS_TRANSPORT,
+                                         prefixQuery, threadId, order, after, limit, args);
+
+    String statement = "SELECT * FROM (" + smsPage + ") " +
+                       "UNION ALL " +
+                       "SELECT * FROM (" + mmsPage + ") " +
+                       "ORDER BY " + orderBy + " " +
+                       "LIMIT " + limit;
+
+    Cursor cursor = db.rawQuery(statement, args.toArray(new String[0]));
+    setNotifyConverationListListeners(cursor);
+    return cursor;
+  }
+
+  /**
+   * @return The snippets of the given messages of one transport, by message id, in one query.
+   */
+  public @NonNull Map<Long, String> getMessageSnippets(@NonNull String query, @NonNull String transport, @NonNull long[] messageIds) {
+    Map<Long, String> snippets = new HashMap<>();
+
+    if (messageIds.length == 0) return snippets;
+
+    String table     = MmsSmsDatabase.MMS_TRANSPORT.equals(transport) ? MMS_FTS_TABLE_NAME : SMS_FTS_TABLE_NAME;
+    String statement = "SELECT " + ID + ", snippet(" + table + ", -1, '', '', '...', 7) FROM " + table + " " +
+                       "WHERE " + table + " MATCH ? AND " + ID + " IN (" + Util.join(messageIds, ",") + ")";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(statement, new String[] { getPrefixQuery(query) })) {
+      while (cursor != null && cursor.moveToNext()) {
+        snippets.put(cursor.getLong(0), cursor.getString(1));
+      }
+    }
+
+    return snippets;
+  }
+
+  /**
+   * Builds one side of a page: every match in the table after the page key, sorted and limited
+   * before the two sides are merged.
+   */
+  private static String getMessagePageQuery(@NonNull String ftsTable, @NonNull String table, @NonNull String dateColumn,
+                                            @NonNull String transport, @NonNull String prefixQuery, long threadId,
+                                            @NonNull MessageOrder order, @Nullable MessageKey after, int limit,
+                                            @NonNull List<String> args)
+  {
+    String matches = "SELECT " +
+                       ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + ", " +
+                       "'" + transport + "' AS " + MmsSmsDatabase.TRANSPORT + ", " +
+                       table + "." + MmsSmsColumns.ID + " AS " + MmsSmsColumns.ID + ", " +
+                       table + "." + dateColumn + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                       table + "." + MmsSmsColumns.THREAD_ID + " AS " + MmsSmsColumns.THREAD_ID + ", " +
+                       "bm25(" + ftsTable + ") AS " + RANK + " " +
+                     "FROM " + table + " " +
+                     "INNER JOIN " + ftsTable + " ON " + ftsTable + "." + ID + " = " + table + "." + MmsSmsColumns.ID + " " +
+                     "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + table + "." + MmsSmsColumns.THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
+                     "WHERE " + ftsTable + " MATCH ?";
+
+    args.add(prefixQuery);
+
+    if (threadId != -1) {
+      matches += " AND " + table + "." + MmsSmsColumns.THREAD_ID + " = ?";
+      args.add(String.valueOf(threadId));
+    }
+
+    String page = "SELECT * FROM (" + matches + ")";
+
+    if (after != null) {
+      String sortColumn = order == MessageOrder.DATE ? MmsSmsColumns.NORMALIZED_DATE_RECEIVED : RANK;
+      String sortValue  = order == MessageOrder.DATE ? "CAST(? AS INTEGER)" : "CAST(? AS REAL)";
+      String comparison = order == MessageOrder.DATE ? " < " : " > ";
 
+      page += " WHERE " + sortColumn + comparison + sortValue + " OR (" + sortColumn + " = " + sortValue + " AND " +
+                "(" + MmsSmsDatabase.TRANSPORT + comparison + "? OR (" + MmsSmsDatabase.TRANSPORT + " = ? AND " + MmsSmsColumns.ID + comparison + "CAST(? AS INTEGER))))";
+
+      String sortArg = order == MessageOrder.DATE ? String.valueOf(after.getDateReceived()) : String.valueOf(after.getRank());
+
+      args.add(sortArg);
+      args.add(sortArg);
+      args.add(after.getTransport());
+      args.add(after.getTransport());
+      args.add(String.valueOf(after.getId()));
+    }
+
+    return page + " ORDER BY " + getMessageOrderBy(order) + " LIMIT " + limit;
+  }
+
+  private static String getMessageOrderBy(@NonNull MessageOrder order) {
+    if (order == MessageOrder.DATE) {
+      return MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + MmsSmsDatabase.TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+    } else {
+      return RANK + " ASC, " + MmsSmsDatabase.TRANSPORT + " ASC, " + MmsSmsColumns.ID + " ASC";
+    }
+  }
+
+  private static String getPrefixQuery(@NonNull String query) {
     List<String> tokens      = Stream.of(query.split(" ")).filter(s -> s.trim().length() > 0).toList();
     String       prefixQuery = Util.join(tokens, "* ");
 
     prefixQuery += "*";
 
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
-    setNotifyConverationListListeners(cursor);
-    return cursor;
+    return prefixQuery;
   }
-}
 
+  /**
+   * The position of a row in {@link #queryMessages} order, for requesting the page after it.
+   */
+  public static class MessageKey {
+
+    private final long   dateReceived;
+    private final double rank;
+    private final String transport;
+    private final long   id;
+
+    private MessageKey(long dateReceived, double rank, @NonNull String transport, long id) {
+      this.dateReceived = dateReceived;
+      this.rank         = rank;
+      this.transport    = transport;
+      this.id           = id;
+    }
+
+    public static @NonNull MessageKey fromCursor(@NonNull Cursor cursor) {
+      return new MessageKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                            cursor.getDouble(cursor.getColumnIndexOrThrow(RANK)),
+                            cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)),
+                            cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    }
+
+    long getDateReceived() {
+      return dateReceived;
+    }
+
+    double getRank() {
+      return rank;
+    }
+
+    @NonNull String getTransport() {
+      return transport;
+    }
+
+    long getId() {
+      return id;
+    }
+  }
+}
@@ -49,6 +49,21 @@ public class SessionDatabase extends Database {
     database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
   }
 
+  public void store(@NonNull List<SessionRow> rows) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      for (SessionRow row : rows) {
+        store(row.getAddress(), row.getDeviceId(), row.getRecord());
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
   public @Nullable SessionRecord load(@NonNull Address address, int deviceId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
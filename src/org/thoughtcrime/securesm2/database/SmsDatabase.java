@@ -24,12 +24,12 @@ import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Pair;
 
-import com.annimon.stream.Stream;
-
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteStatement;
 
 import org.thoughtcrime.securesm2.ApplicationContext;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.EarlyReceiptCounts;
+import org.thoughtcrime.securesm2.database.EarlyReceiptCache.Receipt;
 import org.thoughtcrime.securesm2.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesm2.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesm2.database.helpers.SQLCipherOpenHelper;
@@ -44,6 +44,7 @@ import org.thoughtcrime.securesm2.sms.IncomingTextMessage;
 import org.thoughtcrime.securesm2.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesm2.util.JsonUtils;
 import org.thoughtcrime.securesm2.util.TextSecurePreferences;
+import org.thoughtcrime.securesm2.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
@@ -51,7 +52,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 /**
@@ -89,7 +89,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_thread_read_notified_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + READ + ", " + NOTIFIED + ");"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -102,9 +103,6 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED, READ_RECEIPT_COUNT, UNIDENTIFIED
   };
 
-  private static final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private static final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
-
   private final JobManager jobManager;
 
   public SmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
@@ -126,7 +124,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateSnippetState(threadId, false, id);
     notifyConversationListeners(threadId);
   }
 
@@ -271,7 +269,6 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
   }
 
@@ -284,7 +281,7 @@ public class SmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateSnippetState(threadId, false, id);
     notifyConversationListeners(threadId);
   }
 
@@ -301,45 +298,53 @@ public class SmsDatabase extends MessagingDatabase {
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null);
+  /**
+   * Applies receipts that all refer to messages sent at {@code dateSent}, with one query for the
+   * candidate messages and at most one update per message. Meant to be called as part of a
+   * transaction covering a whole batch of receipts.
+   *
+   * @param matched   Receipts that matched an outgoing message are added to this.
+   * @param threadIds The threads of any updated messages are added to this.
+   */
+  void incrementReceiptCounts(long dateSent, @NonNull List<Receipt> receipts,
+                              @NonNull Set<Receipt> matched, @NonNull Set<Long> threadIds)
+  {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
+                                        DATE_SENT + " = ?", new String[] {String.valueOf(dateSent)},
+                                        null, null, null, null))
+    {
       while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          Address theirAddress = messageId.getAddress();
-          Address ourAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
-
-          if (ourAddress.equals(theirAddress)) {
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
-                             ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
-            foundMessage = true;
+        if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) continue;
+
+        Address ourAddress    = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+        int     deliveryCount = 0;
+        int     readCount     = 0;
+
+        for (Receipt receipt : receipts) {
+          if (ourAddress.equals(receipt.getAddress())) {
+            if (receipt.isDeliveryReceipt()) deliveryCount++;
+            else                             readCount++;
+
+            matched.add(receipt);
           }
         }
-      }
 
-      if (!foundMessage) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-      }
+        if (deliveryCount == 0 && readCount == 0) continue;
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+        long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+
+        database.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                         DELIVERY_RECEIPT_COUNT + " = " + DELIVERY_RECEIPT_COUNT + " + ?, " +
+                         READ_RECEIPT_COUNT + " = " + READ_RECEIPT_COUNT + " + ? " +
+                         "WHERE " + ID + " = ?",
+                         new String[] {String.valueOf(deliveryCount), String.valueOf(readCount), String.valueOf(id)});
+
+        DatabaseFactory.getThreadDatabase(context).updateSnippetState(threadId, false, id);
+        threadIds.add(threadId);
+      }
     }
   }
 
@@ -629,9 +634,8 @@ public class SmsDatabase extends MessagingDatabase {
     if      (message.isIdentityVerified()) type |= Types.KEY_EXCHANGE_IDENTITY_VERIFIED_BIT;
     else if (message.isIdentityDefault())  type |= Types.KEY_EXCHANGE_IDENTITY_DEFAULT_BIT;
 
-    Address            address               = message.getRecipient().getAddress();
-    Map<Address, Long> earlyDeliveryReceipts = earlyDeliveryReceiptCache.remove(date);
-    Map<Address, Long> earlyReadReceipts     = earlyReadReceiptCache.remove(date);
+    Address            address       = message.getRecipient().getAddress();
+    EarlyReceiptCounts earlyReceipts = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyReceipts(date);
 
     ContentValues contentValues = new ContentValues(6);
     contentValues.put(ADDRESS, address.serialize());
@@ -643,8 +647,8 @@ public class SmsDatabase extends MessagingDatabase {
     contentValues.put(TYPE, type);
     contentValues.put(SUBSCRIPTION_ID, message.getSubscriptionId());
     contentValues.put(EXPIRES_IN, message.getExpiresIn());
-    contentValues.put(DELIVERY_RECEIPT_COUNT, Stream.of(earlyDeliveryReceipts.values()).mapToLong(Long::longValue).sum());
-    contentValues.put(READ_RECEIPT_COUNT, Stream.of(earlyReadReceipts.values()).mapToLong(Long::longValue).sum());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, earlyReceipts.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, earlyReceipts.getReadReceiptCount());
 
     SQLiteDatabase db        = databaseHelper.getWritableDatabase();
     long           messageId = db.insert(TABLE_NAME, ADDRESS, contentValues);
@@ -680,10 +684,14 @@ public class SmsDatabase extends MessagingDatabase {
     return db.query(TABLE_NAME, MESSAGE_PROJECTION, outgoingSelection, null, null, null, null);
   }
 
+  /**
+   * @return The {@link #ID}, {@link #EXPIRE_STARTED} and {@link #EXPIRES_IN} of every message
+   *         whose expiration timer has started.
+   */
   public Cursor getExpirationStartedMessages() {
     String         where = EXPIRE_STARTED + " > 0";
     SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
+    return db.query(TABLE_NAME, new String[] {ID, EXPIRE_STARTED, EXPIRES_IN}, where, null, null, null, null);
   }
 
   public SmsMessageRecord getMessage(long messageId) throws NoSuchMessageException {
@@ -715,6 +723,27 @@ public class SmsDatabase extends MessagingDatabase {
     return threadDeleted;
   }
 
+  /**
+   * Deletes the given messages without updating their threads, which the caller is expected to do
+   * once per thread as part of the same transaction.
+   *
+   * @param threadIds The threads of the deleted messages are added to this.
+   */
+  void deleteMessages(@NonNull long[] messageIds, @NonNull Set<Long> threadIds) {
+    if (messageIds.length == 0) return;
+
+    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
+    String         where = ID + " IN (" + Util.join(messageIds, ",") + ")";
+
+    try (Cursor cursor = db.query(true, TABLE_NAME, new String[] {THREAD_ID}, where, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    }
+
+    db.delete(TABLE_NAME, where, null);
+  }
+
   public void ensureMigration() {
     databaseHelper.getWritableDatabase();
   }
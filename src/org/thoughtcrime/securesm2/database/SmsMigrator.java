@@ -25,6 +25,8 @@ import android.support.annotation.Nullable;
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteStatement;
 
+import org.thoughtcrime.securesm2.ApplicationContext;
+import org.thoughtcrime.securesm2.jobs.SearchIndexRebuildJob;
 import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.recipients.Recipient;
 import org.thoughtcrime.securesm2.util.TextSecurePreferences;
@@ -194,6 +196,8 @@ public class SmsMigrator {
     ThreadDatabase threadDatabase = DatabaseFactory.getThreadDatabase(context);
     Cursor cursor                 = null;
 
+    DatabaseFactory.getSearchDatabase(context).suspendIndexing();
+
     try {
       Uri threadListUri = Uri.parse("content://mms-sms/conversations?simple=true");
       cursor            = context.getContentResolver().query(threadListUri, null, null, null, "date ASC");
@@ -231,6 +235,8 @@ public class SmsMigrator {
     } finally {
       if (cursor != null)
         cursor.close();
+
+      ApplicationContext.getInstance(context).getJobManager().add(new SearchIndexRebuildJob(context));
     }
 
     context.getSharedPreferences("securesm2", Context.MODE_PRIVATE).edit()
@@ -586,6 +586,40 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Brings a thread's summary up to date after the type, status or receipt counts of one of its
+   * messages changed. Unlike {@link #update(long, boolean)} this doesn't recount the thread or
+   * rebuild the snippet, since neither can change when no message was added or removed. The
+   * summary only describes the latest message, so changes to any other message are ignored.
+   */
+  void updateSnippetState(long threadId, boolean mms, long messageId) {
+    if (!DatabaseFactory.getMmsSmsDatabase(context).isConversationSnippet(threadId, mms, messageId)) {
+      return;
+    }
+
+    String   table      = mms ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+    String[] projection = mms ? new String[] {MmsDatabase.MESSAGE_BOX, MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT}
+                              : new String[] {SmsDatabase.TYPE, MmsSmsColumns.DELIVERY_RECEIPT_COUNT, MmsSmsColumns.READ_RECEIPT_COUNT, SmsDatabase.STATUS};
+
+    SQLiteDatabase db            = databaseHelper.getWritableDatabase();
+    ContentValues  contentValues = new ContentValues(4);
+
+    try (Cursor cursor = db.query(table, projection, ID_WHERE, new String[] {String.valueOf(messageId)}, null, null, null)) {
+      if (cursor == null || !cursor.moveToFirst()) return;
+
+      contentValues.put(SNIPPET_TYPE, cursor.getLong(0));
+      contentValues.put(DELIVERY_RECEIPT_COUNT, cursor.getInt(1));
+      contentValues.put(READ_RECEIPT_COUNT, cursor.getInt(2));
+
+      if (!mms) {
+        contentValues.put(STATUS, cursor.getInt(3));
+      }
+    }
+
+    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(threadId)});
+    notifyConversationListListeners();
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms() && ((MmsMessageRecord) messageRecord).getSharedContacts().size() > 0) {
       Contact contact = ((MmsMessageRecord) messageRecord).getSharedContacts().get(0);
@@ -59,8 +59,10 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int SECRET_SENDER                    = 13;
   private static final int ATTACHMENT_CAPTIONS              = 14;
   private static final int ATTACHMENT_CAPTIONS_FIX          = 15;
+  private static final int THREAD_UNREAD_INDEXES            = 16;
+  private static final int PROCESSED_ATTACHMENTS            = 17;
 
-  private static final int    DATABASE_VERSION = 15;
+  private static final int    DATABASE_VERSION = 17;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -308,6 +310,19 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         }
       }
 
+      if (oldVersion < THREAD_UNREAD_INDEXES) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_thread_read_notified_index ON sms (thread_id, read, notified)");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_thread_read_notified_index ON mms (thread_id, read, notified)");
+      }
+
+      if (oldVersion < PROCESSED_ATTACHMENTS) {
+        db.execSQL("ALTER TABLE part ADD COLUMN original_digest TEXT DEFAULT NULL");
+        db.execSQL("ALTER TABLE part ADD COLUMN processed_digest TEXT DEFAULT NULL");
+        db.execSQL("ALTER TABLE part ADD COLUMN processed_constraints TEXT DEFAULT NULL");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_original_digest_index ON part (original_digest) WHERE original_digest IS NOT NULL");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_processed_digest_index ON part (processed_digest) WHERE processed_digest IS NOT NULL");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -2,37 +2,83 @@ package org.thoughtcrime.securesm2.database.loaders;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.support.annotation.Nullable;
 
+import org.thoughtcrime.securesm2.database.AttachmentCursor;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase.ConversationKey;
 import org.thoughtcrime.securesm2.util.AbstractCursorLoader;
 import org.whispersystems.libsignal.util.Pair;
 
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Loads a conversation as a run of fixed size pages on either side of an anchor message, newest
+ * first. Each page is seeked to by the key of the last message of the page before it, so loading
+ * further back in a long thread costs the same as loading its most recent messages.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
-  private final long    threadId;
-  private       int     offset;
-  private       int     limit;
-  private       long    lastSeen;
-  private       boolean hasSent;
+  private final long            threadId;
+  private final int             anchorPosition;
+  private final int             pageSize;
+  private final int             newerPages;
+  private final int             olderPages;
+  private       ConversationKey anchor;
+  private       long            lastSeen;
+  private       boolean         hasSent;
+  private       boolean         hasNewer;
+  private       boolean         hasOlder;
+  private       int             newestPageCount;
 
-  public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
+  /**
+   * @param anchor         The message just newer than the window's first page of older messages,
+   *                       which is the first message of its first page of newer ones, or null to
+   *                       start the window at the newest message in the thread.
+   * @param anchorPosition If no anchor is given, the position of the message to start the window
+   *                       at instead, which is resolved to an anchor on the first load.
+   */
+  public ConversationLoader(Context context, long threadId, @Nullable ConversationKey anchor, int anchorPosition,
+                            int pageSize, int newerPages, int olderPages, long lastSeen)
+  {
     super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
+    this.threadId       = threadId;
+    this.anchor         = anchor;
+    this.anchorPosition = anchorPosition;
+    this.pageSize       = pageSize;
+    this.newerPages     = newerPages;
+    this.olderPages     = olderPages;
+    this.lastSeen       = lastSeen;
+    this.hasSent        = true;
+  }
+
+  public @Nullable ConversationKey getAnchor() {
+    return anchor;
+  }
+
+  public int getNewerPages() {
+    return newerPages;
+  }
+
+  public int getOlderPages() {
+    return olderPages;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public boolean hasNewer() {
+    return hasNewer;
   }
 
-  public boolean hasOffset() {
-    return offset > 0;
+  public boolean hasOlder() {
+    return hasOlder;
   }
 
-  public int getOffset() {
-    return offset;
+  /**
+   * @return The number of messages in the newest page, which are the ones that were added to the
+   *         top of the window if this load asked for one more newer page than the last.
+   */
+  public int getNewestPageCount() {
+    return newestPageCount;
   }
 
   public long getLastSeen() {
@@ -53,6 +99,45 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    MmsSmsDatabase db = DatabaseFactory.getMmsSmsDatabase(context);
+
+    if (anchor == null && anchorPosition > 0) {
+      anchor = db.getConversationKeyAtPosition(threadId, anchorPosition - 1);
+    }
+
+    List<Cursor>    pages = new LinkedList<>();
+    ConversationKey key   = anchor;
+
+    hasNewer        = anchor != null;
+    newestPageCount = 0;
+
+    for (int i=0;i<newerPages && hasNewer;i++) {
+      Cursor page = db.getConversationPage(threadId, key, true, i == 0, pageSize);
+      pages.add(0, page);
+
+      newestPageCount = page.getCount();
+      hasNewer        = page.getCount() >= pageSize;
+
+      if (page.moveToFirst()) key = ConversationKey.fromCursor(page);
+    }
+
+    key      = anchor;
+    hasOlder = true;
+
+    for (int i=0;i<olderPages && hasOlder;i++) {
+      Cursor page = db.getConversationPage(threadId, key, false, false, pageSize);
+      pages.add(page);
+
+      hasOlder = page.getCount() >= pageSize;
+
+      if (page.moveToLast()) key = ConversationKey.fromCursor(page);
+    }
+
+    if (pages.size() == 1) {
+      pages.get(0).moveToPosition(-1);
+      return pages.get(0);
+    }
+
+    return AttachmentCursor.merge(pages.toArray(new Cursor[0]));
   }
 }
@@ -5,10 +5,20 @@ import android.support.annotation.NonNull;
 
 import org.thoughtcrime.securesm2.logging.Log;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import androidx.work.BackoffPolicy;
 import androidx.work.Constraints;
@@ -16,6 +26,7 @@ import androidx.work.Data;
 import androidx.work.ExistingWorkPolicy;
 import androidx.work.NetworkType;
 import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkContinuation;
 import androidx.work.WorkManager;
 
 public class JobManager {
@@ -26,7 +37,17 @@ public class JobManager {
                                                                        .setRequiredNetworkType(NetworkType.CONNECTED)
                                                                        .build();
 
-  private final Executor executor = Executors.newSingleThreadExecutor();
+  /**
+   * A single drain will only pick up jobs submitted within this many milliseconds of the oldest
+   * pending job, so that a steady stream of submissions can't hold one batch open forever.
+   */
+  private static final long BATCH_WINDOW_MS = 250;
+  private static final int  MAX_BATCH_SIZE  = 200;
+
+  private final Executor          executor       = Executors.newSingleThreadExecutor();
+  private final Queue<PendingJob> pendingJobs    = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean     drainScheduled = new AtomicBoolean(false);
+  private final SubmissionStats   stats          = new SubmissionStats();
 
   private final Context     context;
   private final WorkManager workManager;
@@ -37,45 +58,212 @@ public class JobManager {
   }
 
   public void add(Job job) {
-    executor.execute(() -> {
+    addAll(Collections.singletonList(job));
+  }
+
+  /**
+   * Submits several jobs at once. Jobs are enqueued in the order given, and jobs that share a
+   * group are chained behind each other exactly as if they had been added one at a time.
+   */
+  public void addAll(@NonNull Collection<? extends Job> jobs) {
+    long submitTime = System.currentTimeMillis();
+
+    for (Job job : jobs) {
+      pendingJobs.add(new PendingJob(job, submitTime));
+    }
+
+    if (drainScheduled.compareAndSet(false, true)) {
+      executor.execute(this::drainPendingJobs);
+    }
+  }
+
+  public @NonNull SubmissionStats getSubmissionStats() {
+    return stats;
+  }
+
+  private void drainPendingJobs() {
+    drainScheduled.set(false);
+
+    List<PendingJob> batch;
+
+    while (!(batch = pollBatch()).isEmpty()) {
+      long startTime = System.currentTimeMillis();
+
       try {
         workManager.pruneWork().getResult().get();
+        stats.prunes.incrementAndGet();
       } catch (ExecutionException | InterruptedException e) {
         Log.w(TAG, "Failed to prune work.", e);
       }
 
-      JobParameters jobParameters = job.getJobParameters();
+      enqueueBatch(batch);
 
-      if (jobParameters == null) {
-        throw new IllegalStateException("Jobs must have JobParameters at this stage. (" + job.getClass().getSimpleName() + ")");
+      long enqueueTime = System.currentTimeMillis();
+
+      for (PendingJob pendingJob : batch) {
+        stats.recordLatency(enqueueTime - pendingJob.submitTime);
       }
 
-      Data.Builder dataBuilder = new Data.Builder().putInt(Job.KEY_RETRY_COUNT, jobParameters.getRetryCount())
-                                                   .putLong(Job.KEY_RETRY_UNTIL, jobParameters.getRetryUntil())
-                                                   .putLong(Job.KEY_SUBMIT_TIME, System.currentTimeMillis())
-                                                   .putBoolean(Job.KEY_REQUIRES_NETWORK, jobParameters.requiresNetwork())
-                                                   .putBoolean(Job.KEY_REQUIRES_SQLCIPHER, jobParameters.requiresSqlCipher());
-      Data data = job.serialize(dataBuilder);
+      stats.batches.incrementAndGet();
+
+      Log.i(TAG, "Enqueued a batch of " + batch.size() + " job(s) in " + (enqueueTime - startTime) + " ms. " + stats);
+    }
+  }
+
+  private @NonNull List<PendingJob> pollBatch() {
+    List<PendingJob> batch = new LinkedList<>();
+    PendingJob       first = pendingJobs.peek();
+
+    if (first == null) return batch;
+
+    long windowEnd = first.submitTime + BATCH_WINDOW_MS;
+
+    PendingJob next;
 
-      OneTimeWorkRequest.Builder requestBuilder = new OneTimeWorkRequest.Builder(job.getClass())
-                                                                        .setInputData(data)
-                                                                        .setBackoffCriteria(BackoffPolicy.LINEAR, OneTimeWorkRequest.MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+    while (batch.size() < MAX_BATCH_SIZE       &&
+           (next = pendingJobs.peek()) != null &&
+           next.submitTime <= windowEnd)
+    {
+      batch.add(pendingJobs.poll());
+    }
 
-      if (jobParameters.requiresNetwork()) {
-        requestBuilder.setConstraints(NETWORK_CONSTRAINT);
+    return batch;
+  }
+
+  private void enqueueBatch(@NonNull List<PendingJob> batch) {
+    List<OneTimeWorkRequest> ungrouped = new LinkedList<>();
+    Map<String, GroupChain>  chains    = new LinkedHashMap<>();
+
+    for (PendingJob pendingJob : batch) {
+      Job           job           = pendingJob.job;
+      JobParameters jobParameters = job.getJobParameters();
+
+      if (jobParameters == null) {
+        Log.w(TAG, "Dropping job without JobParameters. (" + job.getClass().getSimpleName() + ")");
+        continue;
       }
 
-      OneTimeWorkRequest request = requestBuilder.build();
+      OneTimeWorkRequest request = buildWorkRequest(job, jobParameters, pendingJob.submitTime);
 
       job.onSubmit(context, request.getId());
 
       String groupId = jobParameters.getGroupId();
-      if (groupId != null) {
-        ExistingWorkPolicy policy = jobParameters.shouldIgnoreDuplicates() ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.APPEND;
-        workManager.beginUniqueWork(groupId, policy, request).enqueue();
+
+      if (groupId == null) {
+        ungrouped.add(request);
+        continue;
+      }
+
+      ExistingWorkPolicy policy = jobParameters.shouldIgnoreDuplicates() ? ExistingWorkPolicy.KEEP : ExistingWorkPolicy.APPEND;
+      GroupChain         chain  = chains.get(groupId);
+
+      if (chain == null) {
+        chains.put(groupId, new GroupChain(policy, workManager.beginUniqueWork(groupId, policy, request)));
+      } else if (policy == ExistingWorkPolicy.KEEP) {
+        Log.i(TAG, "Dropping duplicate job in group " + groupId + ", an earlier job in this batch is still pending.");
+      } else if (chain.policy == ExistingWorkPolicy.APPEND) {
+        chain.continuation = chain.continuation.then(request);
       } else {
-        workManager.beginWith(request).enqueue();
+        // The preceding KEEP may be discarded by WorkManager, which would take anything chained
+        // onto it along with it, so it has to be enqueued on its own first.
+        chain.continuation.enqueue();
+        chains.put(groupId, new GroupChain(policy, workManager.beginUniqueWork(groupId, policy, request)));
       }
-    });
+    }
+
+    if (!ungrouped.isEmpty()) {
+      workManager.enqueue(ungrouped);
+    }
+
+    for (GroupChain chain : chains.values()) {
+      chain.continuation.enqueue();
+    }
+  }
+
+  private @NonNull OneTimeWorkRequest buildWorkRequest(@NonNull Job job, @NonNull JobParameters jobParameters, long submitTime) {
+    Data.Builder dataBuilder = new Data.Builder().putInt(Job.KEY_RETRY_COUNT, jobParameters.getRetryCount())
+                                                 .putLong(Job.KEY_RETRY_UNTIL, jobParameters.getRetryUntil())
+                                                 .putLong(Job.KEY_SUBMIT_TIME, submitTime)
+                                                 .putBoolean(Job.KEY_REQUIRES_NETWORK, jobParameters.requiresNetwork())
+                                                 .putBoolean(Job.KEY_REQUIRES_SQLCIPHER, jobParameters.requiresSqlCipher());
+    Data data = job.serialize(dataBuilder);
+
+    OneTimeWorkRequest.Builder requestBuilder = new OneTimeWorkRequest.Builder(job.getClass())
+                                                                      .setInputData(data)
+                                                                      .setBackoffCriteria(BackoffPolicy.LINEAR, OneTimeWorkRequest.MIN_BACKOFF_MILLIS, TimeUnit.MILLISECONDS);
+
+    if (jobParameters.requiresNetwork()) {
+      requestBuilder.setConstraints(NETWORK_CONSTRAINT);
+    }
+
+    return requestBuilder.build();
+  }
+
+  private static class PendingJob {
+    private final Job  job;
+    private final long submitTime;
+
+    private PendingJob(@NonNull Job job, long submitTime) {
+      this.job        = job;
+      this.submitTime = submitTime;
+    }
+  }
+
+  private static class GroupChain {
+    private final ExistingWorkPolicy policy;
+    private       WorkContinuation   continuation;
+
+    private GroupChain(@NonNull ExistingWorkPolicy policy, @NonNull WorkContinuation continuation) {
+      this.policy       = policy;
+      this.continuation = continuation;
+    }
+  }
+
+  /**
+   * Counters describing how long jobs wait between {@link #add(Job)} and being handed to
+   * WorkManager, and how many prunes/batches that took.
+   */
+  public static class SubmissionStats {
+
+    private final AtomicLong jobs         = new AtomicLong();
+    private final AtomicLong batches      = new AtomicLong();
+    private final AtomicLong prunes       = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private final AtomicLong maxLatency   = new AtomicLong();
+
+    private void recordLatency(long latency) {
+      jobs.incrementAndGet();
+      totalLatency.addAndGet(latency);
+
+      long currentMax;
+      while (latency > (currentMax = maxLatency.get()) && !maxLatency.compareAndSet(currentMax, latency));
+    }
+
+    public long getJobCount() {
+      return jobs.get();
+    }
+
+    public long getBatchCount() {
+      return batches.get();
+    }
+
+    public long getPruneCount() {
+      return prunes.get();
+    }
+
+    public long getAverageLatency() {
+      long count = jobs.get();
+      return count > 0 ? totalLatency.get() / count : 0;
+    }
+
+    public long getMaxLatency() {
+      return maxLatency.get();
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "[jobs: " + getJobCount() + ", batches: " + getBatchCount() + ", prunes: " + getPruneCount() +
+             ", avg latency: " + getAverageLatency() + " ms, max latency: " + getMaxLatency() + " ms]";
+    }
   }
 }
@@ -4,11 +4,15 @@ package org.thoughtcrime.securesm2.jobs;
 import android.Manifest;
 import android.content.Context;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.jobmanager.SafeData;
 import org.thoughtcrime.securesm2.logging.Log;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesm2.R;
+import org.thoughtcrime.securesm2.backup.BackupDeltaState;
 import org.thoughtcrime.securesm2.backup.FullBackupExporter;
 import org.thoughtcrime.securesm2.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
@@ -34,6 +38,12 @@ public class LocalBackupJob extends ContextJob {
 
   private static final String TAG = LocalBackupJob.class.getSimpleName();
 
+  /**
+   * How many deltas may be chained to a full backup before the next run writes a new full backup,
+   * which bounds both the length of a restore and the time a deleted message lingers in old files.
+   */
+  private static final int MAX_DELTA_SEQUENCE = 6;
+
   public LocalBackupJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -68,11 +78,13 @@ public class LocalBackupJob extends ContextJob {
                                                  R.drawable.ic_signal_backup);
 
     try {
-      String backupPassword  = TextSecurePreferences.getBackupPassphrase(context);
-      File   backupDirectory = StorageUtil.getBackupDirectory();
-      String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
-      File   backupFile      = new File(backupDirectory, fileName);
+      String           backupPassword  = TextSecurePreferences.getBackupPassphrase(context);
+      File             backupDirectory = StorageUtil.getBackupDirectory();
+      SQLiteDatabase   database        = DatabaseFactory.getBackupDatabase(context);
+      BackupDeltaState previous        = getDeltaBase(backupDirectory, database);
+      String           timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
+      String           fileName        = String.format(previous != null ? "signal-%s.delta" : "signal-%s.backup", timestamp);
+      File             backupFile      = new File(backupDirectory, fileName);
 
       if (backupFile.exists()) {
         throw new IOException("Backup file already exists?");
@@ -84,11 +96,19 @@ public class LocalBackupJob extends ContextJob {
 
       File tempFile = File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
 
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
+      BackupDeltaState state = FullBackupExporter.export(context,
+                                                         AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                         database,
+                                                         tempFile,
+                                                         backupPassword,
+                                                         previous);
+
+      try {
+        state.save(context, fileName);
+      } catch (IOException e) {
+        tempFile.delete();
+        throw e;
+      }
 
       if (!tempFile.renameTo(backupFile)) {
         tempFile.delete();
@@ -101,6 +121,43 @@ public class LocalBackupJob extends ContextJob {
     }
   }
 
+  /**
+   * @return The state of the previous backup if the next one can be written as a delta on top of
+   *         it, or null if a full backup is needed.
+   */
+  private @Nullable BackupDeltaState getDeltaBase(@NonNull File backupDirectory, @NonNull SQLiteDatabase database) {
+    BackupDeltaState previous = BackupDeltaState.load(context);
+
+    if (previous == null) {
+      Log.i(TAG, "No previous backup state, writing a full backup.");
+      return null;
+    }
+
+    if (previous.getDatabaseVersion() != database.getVersion()) {
+      Log.i(TAG, "Database version changed since the last backup, writing a full backup.");
+      return null;
+    }
+
+    if (!previous.usesDefaultKeyDerivation()) {
+      Log.i(TAG, "Backup key derivation changed, writing a full backup.");
+      return null;
+    }
+
+    if (previous.getDeltaSequence() >= MAX_DELTA_SEQUENCE) {
+      Log.i(TAG, "Delta chain is complete, writing a full backup.");
+      return null;
+    }
+
+    if (!new File(backupDirectory, previous.getBaseFileName()).exists() ||
+        !new File(backupDirectory, previous.getFileName()).exists())
+    {
+      Log.i(TAG, "Previous backups are missing, writing a full backup.");
+      return null;
+    }
+
+    return previous;
+  }
+
   @Override
   public boolean onShouldRetry(Exception e) {
     return false;
@@ -0,0 +1,125 @@
+package org.thoughtcrime.securesm2.jobs;
+
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Pair;
+
+import org.thoughtcrime.securesm2.attachments.Attachment;
+import org.thoughtcrime.securesm2.attachments.AttachmentId;
+import org.thoughtcrime.securesm2.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesm2.database.AttachmentDatabase;
+import org.thoughtcrime.securesm2.database.AttachmentDatabase.ProcessedState;
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.mms.MediaConstraints;
+import org.thoughtcrime.securesm2.mms.MediaStream;
+import org.thoughtcrime.securesm2.mms.MmsException;
+import org.thoughtcrime.securesm2.util.Hex;
+import org.thoughtcrime.securesm2.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Remembers which outgoing images have already been resized and stripped for a set of media
+ * constraints, so that retries, forwards and resends don't decode and recompress the same image
+ * again.
+ *
+ * What an attachment's data was processed from and for is stored in its row, and cleared whenever
+ * its data is replaced some other way. An attachment that was already processed for the current
+ * constraints is left alone without reading its data at all. Otherwise its data is hashed and
+ * looked up, so that data that is already a result is left alone too, and data that another
+ * attachment was processed from gets a copy of that result. A result is only copied if its data
+ * still matches.
+ */
+class OutgoingAttachmentCache {
+
+  private static final String TAG = OutgoingAttachmentCache.class.getSimpleName();
+
+  /**
+   * @return The attachment with its data resized and stripped to meet the constraints.
+   */
+  @NonNull Attachment process(@NonNull Context context, @NonNull MediaConstraints constraints, @NonNull Attachment attachment)
+      throws IOException, MmsException
+  {
+    AttachmentDatabase database       = DatabaseFactory.getAttachmentDatabase(context);
+    AttachmentId       attachmentId   = ((DatabaseAttachment) attachment).getAttachmentId();
+    String             constraintsKey = constraints.getImageConstraintsKey(context);
+    ProcessedState     state          = database.getProcessedState(attachmentId);
+
+    if (state != null && state.getConstraintsKey().equals(constraintsKey)) {
+      Log.i(TAG, "Attachment " + attachmentId + " was already processed.");
+      return attachment;
+    }
+
+    String                             digest    = getDigest(database.getAttachmentStream(attachmentId, 0));
+    Pair<AttachmentId, ProcessedState> processed = database.findProcessedAttachment(digest, constraintsKey);
+
+    if (processed != null && processed.second.getProcessedDigest().equals(digest)) {
+      Log.i(TAG, "Attachment " + attachmentId + " is already the result of processing " + processed.first);
+      database.setProcessedState(attachmentId, processed.second);
+      return attachment;
+    }
+
+    if (processed != null) {
+      byte[] data = getProcessedData(database, processed.first, processed.second);
+
+      if (data != null) {
+        DatabaseAttachment source = database.getAttachment(processed.first);
+
+        if (source != null) {
+          Log.i(TAG, "Reusing processed data from " + processed.first + " for " + attachmentId);
+          return database.updateAttachmentData(attachment,
+                                               new MediaStream(new ByteArrayInputStream(data), source.getContentType(), source.getWidth(), source.getHeight()),
+                                               processed.second);
+        }
+      }
+    }
+
+    MediaStream resized = constraints.getResizedMedia(context, attachment);
+    byte[]      data    = Util.readFully(resized.getStream());
+
+    return database.updateAttachmentData(attachment,
+                                         new MediaStream(new ByteArrayInputStream(data), resized.getMimeType(), resized.getWidth(), resized.getHeight()),
+                                         new ProcessedState(digest, getDigest(new ByteArrayInputStream(data)), constraintsKey));
+  }
+
+  private @Nullable byte[] getProcessedData(@NonNull AttachmentDatabase database, @NonNull AttachmentId attachmentId, @NonNull ProcessedState state) {
+    try {
+      byte[] data = Util.readFully(database.getAttachmentStream(attachmentId, 0));
+
+      if (state.getProcessedDigest().equals(getDigest(new ByteArrayInputStream(data)))) {
+        return data;
+      }
+
+      Log.w(TAG, "Processed data for " + attachmentId + " has changed.");
+    } catch (IOException e) {
+      Log.w(TAG, "Processed data for " + attachmentId + " is gone.", e);
+    }
+
+    return null;
+  }
+
+  private static @NonNull String getDigest(@NonNull InputStream in) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[]        buffer = new byte[8192];
+      int           read;
+
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -51,6 +51,8 @@ import org.thoughtcrime.securesm2.database.ThreadDatabase;
 import org.thoughtcrime.securesm2.database.model.MessageRecord;
 import org.thoughtcrime.securesm2.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesm2.groups.GroupMessageProcessor;
+import org.thoughtcrime.securesm2.jobmanager.Job;
+import org.thoughtcrime.securesm2.jobmanager.JobManager;
 import org.thoughtcrime.securesm2.jobmanager.JobParameters;
 import org.thoughtcrime.securesm2.jobmanager.SafeData;
 import org.thoughtcrime.securesm2.logging.Log;
@@ -101,8 +103,10 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import androidx.work.Data;
 import androidx.work.WorkerParameters;
@@ -119,6 +123,8 @@ public class PushDecryptJob extends ContextJob {
   private long messageId;
   private long smsMessageId;
 
+  private DeferredEffects deferredEffects;
+
   public PushDecryptJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -193,11 +199,11 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
-  private boolean needsMigration() {
+  boolean needsMigration() {
     return !IdentityKeyUtil.hasIdentityKey(context) || TextSecurePreferences.getNeedsSqlCipherMigration(context);
   }
 
-  private void postMigrationNotification() {
+  void postMigrationNotification() {
     NotificationManagerCompat.from(context).notify(494949,
                                                    new NotificationCompat.Builder(context, NotificationChannels.getMessagesChannel(context))
                                                                          .setSmallIcon(R.drawable.icon_notification)
@@ -211,6 +217,51 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
+  /**
+   * Holds back the notification updates and jobs that handling messages would trigger until
+   * {@link #flushDeferredEffects()}. Used when several envelopes are handled in one transaction, so
+   * that jobs never see writes that haven't been committed and each effect is issued only once.
+   */
+  void deferEffects() {
+    deferredEffects = new DeferredEffects();
+  }
+
+  void flushDeferredEffects() {
+    DeferredEffects effects = deferredEffects;
+
+    deferredEffects = null;
+
+    if (effects == null) return;
+
+    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+
+    for (Job job : effects.jobs) jobManager.add(job);
+    if (effects.refreshPreKeys)  jobManager.add(new RefreshPreKeysJob(context));
+
+    if (effects.updateAll)             MessageNotifier.updateNotification(context);
+    if (!effects.threadIds.isEmpty())  MessageNotifier.updateNotification(context, effects.threadIds);
+  }
+
+  void addJob(@NonNull Job job) {
+    if (deferredEffects != null) deferredEffects.jobs.add(job);
+    else                         ApplicationContext.getInstance(context).getJobManager().add(job);
+  }
+
+  private void refreshPreKeys() {
+    if (deferredEffects != null) deferredEffects.refreshPreKeys = true;
+    else                         addJob(new RefreshPreKeysJob(context));
+  }
+
+  private void updateNotification(long threadId) {
+    if (deferredEffects != null) deferredEffects.threadIds.add(threadId);
+    else                         MessageNotifier.updateNotification(context, threadId);
+  }
+
+  private void updateNotification() {
+    if (deferredEffects != null) deferredEffects.updateAll = true;
+    else                         MessageNotifier.updateNotification(context);
+  }
+
   private void handleMessage(@NonNull SignalServiceEnvelope envelope, @NonNull Optional<Long> smsMessageId) {
     try {
       GroupDatabase        groupDatabase = DatabaseFactory.getGroupDatabase(context);
@@ -277,7 +328,7 @@ public class PushDecryptJob extends ContextJob {
       }
 
       if (envelope.isPreKeySignalMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+        refreshPreKeys();
       }
     } catch (ProtocolInvalidVersionException e) {
       Log.w(TAG, e);
@@ -416,7 +467,7 @@ public class PushDecryptJob extends ContextJob {
       sessionStore.deleteAllSessions(content.getSender());
 
       SecurityEvent.broadcastSecurityUpdateEvent(context);
-      MessageNotifier.updateNotification(context, threadId);
+      updateNotification(threadId);
     }
   }
 
@@ -463,9 +514,7 @@ public class PushDecryptJob extends ContextJob {
   private void handleUnknownGroupMessage(@NonNull SignalServiceContent content,
                                          @NonNull SignalServiceGroup group)
   {
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new RequestGroupInfoJob(context, content.getSender(), group.getGroupId()));
+    addJob(new RequestGroupInfoJob(context, content.getSender(), group.getGroupId()));
   }
 
   private void handleExpirationUpdate(@NonNull SignalServiceContent content,
@@ -542,7 +591,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (threadId != null) {
         DatabaseFactory.getThreadDatabase(getContext()).setRead(threadId, true);
-        MessageNotifier.updateNotification(getContext());
+        updateNotification();
       }
 
       MessageNotifier.setLastDesktopActivityTimestamp(message.getTimestamp());
@@ -554,34 +603,24 @@ public class PushDecryptJob extends ContextJob {
   private void handleSynchronizeRequestMessage(@NonNull RequestMessage message)
   {
     if (message.isContactsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceContactUpdateJob(getContext(), true));
+      addJob(new MultiDeviceContactUpdateJob(getContext(), true));
 
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new RefreshUnidentifiedDeliveryAbilityJob(context));
+      addJob(new RefreshUnidentifiedDeliveryAbilityJob(context));
     }
 
     if (message.isGroupsRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceGroupUpdateJob(getContext()));
+      addJob(new MultiDeviceGroupUpdateJob(getContext()));
     }
 
     if (message.isBlockedListRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceBlockedUpdateJob(getContext()));
+      addJob(new MultiDeviceBlockedUpdateJob(getContext()));
     }
 
     if (message.isConfigurationRequest()) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new MultiDeviceConfigurationUpdateJob(getContext(),
-                                                                   TextSecurePreferences.isReadReceiptsEnabled(getContext()),
-                                                                   TextSecurePreferences.isTypingIndicatorsEnabled(getContext()),
-                                                                   TextSecurePreferences.isShowUnidentifiedDeliveryIndicatorsEnabled(getContext())));
+      addJob(new MultiDeviceConfigurationUpdateJob(getContext(),
+                                                   TextSecurePreferences.isReadReceiptsEnabled(getContext()),
+                                                   TextSecurePreferences.isTypingIndicatorsEnabled(getContext()),
+                                                   TextSecurePreferences.isShowUnidentifiedDeliveryIndicatorsEnabled(getContext())));
     }
   }
 
@@ -606,7 +645,7 @@ public class PushDecryptJob extends ContextJob {
 
     MessageNotifier.setLastDesktopActivityTimestamp(envelopeTimestamp);
     MessageNotifier.cancelDelayedNotifications();
-    MessageNotifier.updateNotification(context);
+    updateNotification();
   }
 
   private void handleMediaMessage(@NonNull SignalServiceContent content,
@@ -636,16 +675,14 @@ public class PushDecryptJob extends ContextJob {
         List<DatabaseAttachment> attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(insertResult.get().getMessageId());
 
         for (DatabaseAttachment attachment : attachments) {
-          ApplicationContext.getInstance(context)
-                            .getJobManager()
-                            .add(new AttachmentDownloadJob(context, insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
+          addJob(new AttachmentDownloadJob(context, insertResult.get().getMessageId(), attachment.getAttachmentId(), false));
         }
 
         if (smsMessageId.isPresent()) {
           DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
         }
 
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } catch (MmsException e) {
       throw new StorageFailedException(e, content.getSender(), content.getSenderDevice());
@@ -707,9 +744,7 @@ public class PushDecryptJob extends ContextJob {
     database.markUnidentified(messageId, message.isUnidentified(recipients.getAddress().serialize()));
 
     for (DatabaseAttachment attachment : DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(messageId)) {
-      ApplicationContext.getInstance(context)
-                        .getJobManager()
-                        .add(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId(), false));
+      addJob(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId(), false));
     }
 
     if (message.getMessage().getExpiresInSeconds() > 0) {
@@ -761,7 +796,7 @@ public class PushDecryptJob extends ContextJob {
     }
 
     if (threadId != null) {
-      MessageNotifier.updateNotification(context, threadId);
+      updateNotification(threadId);
     }
   }
 
@@ -826,7 +861,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsInvalidVersionKeyExchange(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsInvalidVersionKeyExchange(smsMessageId.get());
@@ -843,7 +878,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsDecryptFailed(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsDecryptFailed(smsMessageId.get());
@@ -860,7 +895,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsNoSession(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsNoSession(smsMessageId.get());
@@ -877,7 +912,7 @@ public class PushDecryptJob extends ContextJob {
 
       if (insertResult.isPresent()) {
         smsDatabase.markAsLegacyVersion(insertResult.get().getMessageId());
-        MessageNotifier.updateNotification(context, insertResult.get().getThreadId());
+        updateNotification(insertResult.get().getThreadId());
       }
     } else {
       smsDatabase.markAsLegacyVersion(smsMessageId.get());
@@ -910,27 +945,29 @@ public class PushDecryptJob extends ContextJob {
     if (recipient.getProfileKey() == null || !MessageDigest.isEqual(recipient.getProfileKey(), message.getProfileKey().get())) {
       database.setProfileKey(recipient, message.getProfileKey().get());
       database.setUnidentifiedAccessMode(recipient, RecipientDatabase.UnidentifiedAccessMode.UNKNOWN);
-      ApplicationContext.getInstance(context).getJobManager().add(new RetrieveProfileJob(context, recipient));
+      addJob(new RetrieveProfileJob(context, recipient));
     }
   }
 
   private void handleNeedsDeliveryReceipt(@NonNull SignalServiceContent content,
                                           @NonNull SignalServiceDataMessage message)
   {
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new SendDeliveryReceiptJob(context, Address.fromExternal(context, content.getSender()), message.getTimestamp()));
+    addJob(new SendDeliveryReceiptJob(context, Address.fromExternal(context, content.getSender()), message.getTimestamp()));
   }
 
   @SuppressLint("DefaultLocale")
   private void handleDeliveryReceipt(@NonNull SignalServiceContent content,
                                      @NonNull SignalServiceReceiptMessage message)
   {
+    Address             sender = Address.fromExternal(context, content.getSender());
+    List<SyncMessageId> ids    = new LinkedList<>();
+
     for (long timestamp : message.getTimestamps()) {
       Log.i(TAG, String.format("Received encrypted delivery receipt: (XXXXX, %d)", timestamp));
-      DatabaseFactory.getMmsSmsDatabase(context)
-                     .incrementDeliveryReceiptCount(new SyncMessageId(Address.fromExternal(context, content.getSender()), timestamp), System.currentTimeMillis());
+      ids.add(new SyncMessageId(sender, timestamp));
     }
+
+    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(ids, System.currentTimeMillis());
   }
 
   @SuppressLint("DefaultLocale")
@@ -938,12 +975,15 @@ public class PushDecryptJob extends ContextJob {
                                  @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
+      Address             sender = Address.fromExternal(context, content.getSender());
+      List<SyncMessageId> ids    = new LinkedList<>();
+
       for (long timestamp : message.getTimestamps()) {
         Log.i(TAG, String.format("Received encrypted read receipt: (XXXXX, %d)", timestamp));
-
-        DatabaseFactory.getMmsSmsDatabase(context)
-                       .incrementReadReceiptCount(new SyncMessageId(Address.fromExternal(context, content.getSender()), timestamp), content.getTimestamp());
+        ids.add(new SyncMessageId(sender, timestamp));
       }
+
+      DatabaseFactory.getMmsSmsDatabase(context).incrementReadReceiptCounts(ids, content.getTimestamp());
     }
   }
 
@@ -1106,6 +1146,14 @@ public class PushDecryptJob extends ContextJob {
     return false;
   }
 
+  private static class DeferredEffects {
+    private final List<Job> jobs      = new LinkedList<>();
+    private final Set<Long> threadIds = new LinkedHashSet<>();
+
+    private boolean refreshPreKeys;
+    private boolean updateAll;
+  }
+
   @SuppressWarnings("WeakerAccess")
   private static class StorageFailedException extends Exception {
     private final String sender;
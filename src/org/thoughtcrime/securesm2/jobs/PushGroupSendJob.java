@@ -7,11 +7,14 @@ import android.support.annotation.Nullable;
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesm2.ApplicationContext;
 import org.thoughtcrime.securesm2.attachments.Attachment;
 import org.thoughtcrime.securesm2.crypto.UnidentifiedAccessUtil;
 import org.thoughtcrime.securesm2.database.Address;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.database.GroupReceiptDatabase;
 import org.thoughtcrime.securesm2.database.GroupReceiptDatabase.GroupReceiptInfo;
 import org.thoughtcrime.securesm2.database.MmsDatabase;
 import org.thoughtcrime.securesm2.database.NoSuchMessageException;
@@ -134,28 +137,33 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
       List<IdentityKeyMismatch> resolvedIdentityFailures = Stream.of(existingIdentityMismatches).filter(failure -> successAddresses.contains(failure.getAddress())).toList();
       List<SendMessageResult>   successes                = Stream.of(results).filter(result -> result.getSuccess() != null).toList();
 
-      for (NetworkFailure resolvedFailure : resolvedNetworkFailures) {
-        database.removeFailure(messageId, resolvedFailure);
-        existingNetworkFailures.remove(resolvedFailure);
-      }
+      log(TAG, "Delivered message " + messageId + " to " + successes.size() + " of " + target.size() + " members. " +
+               networkFailures.size() + " network failures, " + identityMismatches.size() + " identity mismatches.");
 
-      for (IdentityKeyMismatch resolvedIdentity : resolvedIdentityFailures) {
-        database.removeMismatchedIdentity(messageId, resolvedIdentity.getAddress(), resolvedIdentity.getIdentityKey());
-        existingIdentityMismatches.remove(resolvedIdentity);
-      }
+      existingNetworkFailures.removeAll(resolvedNetworkFailures);
+      existingIdentityMismatches.removeAll(resolvedIdentityFailures);
 
-      if (!networkFailures.isEmpty()) {
-        database.addFailures(messageId, networkFailures);
-      }
+      SQLiteDatabase       rawDatabase     = DatabaseFactory.getRawDatabase(context);
+      GroupReceiptDatabase receiptDatabase = DatabaseFactory.getGroupReceiptDatabase(context);
 
-      for (IdentityKeyMismatch mismatch : identityMismatches) {
-        database.addMismatchedIdentity(messageId, mismatch.getAddress(), mismatch.getIdentityKey());
-      }
+      try {
+        rawDatabase.beginTransaction();
 
-      for (SendMessageResult success : successes) {
-        DatabaseFactory.getGroupReceiptDatabase(context).setUnidentified(Address.fromSerialized(success.getAddress().getNumber()),
-                                                                         messageId,
-                                                                         success.getSuccess().isUnidentified());
+        try {
+          database.updateFailures(messageId, resolvedNetworkFailures, networkFailures, resolvedIdentityFailures, identityMismatches);
+
+          for (SendMessageResult success : successes) {
+            receiptDatabase.setUnidentified(Address.fromSerialized(success.getAddress().getNumber()),
+                                            messageId,
+                                            success.getSuccess().isUnidentified());
+          }
+
+          rawDatabase.setTransactionSuccessful();
+        } finally {
+          rawDatabase.endTransaction();
+        }
+      } catch (IOException e) {
+        warn(TAG, "Failed to record the send results of message " + messageId, e);
       }
 
       if (existingNetworkFailures.isEmpty() && networkFailures.isEmpty() && identityMismatches.isEmpty() && existingIdentityMismatches.isEmpty()) {
@@ -214,11 +222,9 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
     List<SharedContact>           sharedContacts    = getSharedContactsFor(message);
     List<SignalServiceAddress>    addresses         = Stream.of(destinations).map(this::getPushAddress).toList();
 
-    List<Optional<UnidentifiedAccessPair>> unidentifiedAccess = Stream.of(addresses)
-                                                                      .map(address -> Address.fromSerialized(address.getNumber()))
-                                                                      .map(address -> Recipient.from(context, address, false))
-                                                                      .map(recipient -> UnidentifiedAccessUtil.getAccessFor(context, recipient))
-                                                                      .toList();
+    List<Recipient>               recipients        = Stream.of(addresses).map(address -> Recipient.from(context, Address.fromSerialized(address.getNumber()), false)).toList();
+
+    List<Optional<UnidentifiedAccessPair>> unidentifiedAccess = UnidentifiedAccessUtil.getAccessFor(context, recipients);
 
     if (message.isGroup()) {
       OutgoingGroupMediaMessage groupMessage     = (OutgoingGroupMediaMessage) message;
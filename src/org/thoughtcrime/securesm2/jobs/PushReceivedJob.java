@@ -4,16 +4,22 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import org.thoughtcrime.securesm2.ApplicationContext;
+import net.sqlcipher.database.SQLiteDatabase;
+
 import org.thoughtcrime.securesm2.database.Address;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesm2.database.NoSuchMessageException;
+import org.thoughtcrime.securesm2.database.PushDatabase;
 import org.thoughtcrime.securesm2.database.RecipientDatabase;
 import org.thoughtcrime.securesm2.jobmanager.JobParameters;
 import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.recipients.Recipient;
+import org.whispersystems.libsignal.SessionCipher;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
+import java.util.List;
+
 import androidx.work.WorkerParameters;
 
 public abstract class PushReceivedJob extends ContextJob {
@@ -22,6 +28,8 @@ public abstract class PushReceivedJob extends ContextJob {
 
   public static final Object RECEIVE_LOCK = new Object();
 
+  private static final long MAX_TRANSACTION_MS = 100;
+
   protected PushReceivedJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -32,28 +40,87 @@ public abstract class PushReceivedJob extends ContextJob {
 
   public void processEnvelope(@NonNull SignalServiceEnvelope envelope) {
     synchronized (RECEIVE_LOCK) {
-      if (envelope.hasSource()) {
-        Address   source    = Address.fromExternal(context, envelope.getSource());
-        Recipient recipient = Recipient.from(context, source, false);
+      processEnvelope(envelope, new PushDecryptJob(context));
+    }
+  }
 
-        if (!isActiveNumber(recipient)) {
-          DatabaseFactory.getRecipientDatabase(context).setRegistered(recipient, RecipientDatabase.RegisteredState.REGISTERED);
-          ApplicationContext.getInstance(context).getJobManager().add(new DirectoryRefreshJob(context, recipient, false));
-        }
+  /**
+   * Processes envelopes that were stored in the {@link PushDatabase}, in order and in a single
+   * transaction that also deletes them. Notifications and jobs that handling them triggers are
+   * issued once for the whole batch, after it commits. If processing throws, nothing is committed
+   * and the envelopes stay stored.
+   *
+   * Decrypting takes {@link SessionCipher#SESSION_LOCK}, which senders hold while they wait for
+   * the database, so it's taken here before the transaction begins and released after it ends.
+   * Since that holds up senders and database readers alike, the transaction is committed early
+   * once it has run for {@link #MAX_TRANSACTION_MS}.
+   *
+   * @return How many envelopes from the start of the list were processed, at least one unless a
+   *         migration is pending.
+   */
+  public int processStoredEnvelopes(@NonNull List<Long> pushIds) {
+    synchronized (RECEIVE_LOCK) {
+      PushDecryptJob decryptJob = new PushDecryptJob(context);
+
+      if (decryptJob.needsMigration()) {
+        Log.w(TAG, "Leaving envelopes stored, waiting for migration...");
+        decryptJob.postMigrationNotification();
+        return 0;
       }
 
-      if (envelope.isReceipt()) {
-        handleReceipt(envelope);
-      } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
-        handleMessage(envelope);
-      } else {
-        Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+      PushDatabase   pushDatabase = DatabaseFactory.getPushDatabase(context);
+      SQLiteDatabase database     = DatabaseFactory.getRawDatabase(context);
+      long           startTime    = System.currentTimeMillis();
+      int            processed    = 0;
+
+      decryptJob.deferEffects();
+
+      synchronized (SessionCipher.SESSION_LOCK) {
+        database.beginTransaction();
+
+        try {
+          for (long pushId : pushIds) {
+            try {
+              processEnvelope(pushDatabase.get(pushId), decryptJob);
+              pushDatabase.delete(pushId);
+            } catch (NoSuchMessageException e) {
+              Log.w(TAG, "Stored envelope " + pushId + " was already processed.");
+            }
+
+            processed++;
+
+            if (System.currentTimeMillis() - startTime >= MAX_TRANSACTION_MS) break;
+          }
+
+          database.setTransactionSuccessful();
+        } finally {
+          database.endTransaction();
+        }
       }
+
+      decryptJob.flushDeferredEffects();
+      return processed;
     }
   }
 
-  private void handleMessage(SignalServiceEnvelope envelope) {
-    new PushDecryptJob(context).processMessage(envelope);
+  private void processEnvelope(@NonNull SignalServiceEnvelope envelope, @NonNull PushDecryptJob decryptJob) {
+    if (envelope.hasSource()) {
+      Address   source    = Address.fromExternal(context, envelope.getSource());
+      Recipient recipient = Recipient.from(context, source, false);
+
+      if (!isActiveNumber(recipient)) {
+        DatabaseFactory.getRecipientDatabase(context).setRegistered(recipient, RecipientDatabase.RegisteredState.REGISTERED);
+        decryptJob.addJob(new DirectoryRefreshJob(context, recipient, false));
+      }
+    }
+
+    if (envelope.isReceipt()) {
+      handleReceipt(envelope);
+    } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+      decryptJob.processMessage(envelope);
+    } else {
+      Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+    }
   }
 
   @SuppressLint("DefaultLocale")
@@ -0,0 +1,55 @@
+package org.thoughtcrime.securesm2.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.jobmanager.JobParameters;
+import org.thoughtcrime.securesm2.jobmanager.SafeData;
+import org.thoughtcrime.securesm2.logging.Log;
+
+import androidx.work.Data;
+import androidx.work.WorkerParameters;
+
+/**
+ * Brings the search index back up to date after a bulk import suspended it.
+ */
+public class SearchIndexRebuildJob extends ContextJob {
+
+  private static final String TAG = SearchIndexRebuildJob.class.getSimpleName();
+
+  public SearchIndexRebuildJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
+    super(context, workerParameters);
+  }
+
+  public SearchIndexRebuildJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withGroupId(SearchIndexRebuildJob.class.getSimpleName())
+                                .withRetryCount(3)
+                                .create());
+  }
+
+  @Override
+  protected void initialize(@NonNull SafeData data) {
+  }
+
+  @Override
+  protected @NonNull Data serialize(@NonNull Data.Builder dataBuilder) {
+    return dataBuilder.build();
+  }
+
+  @Override
+  public void onRun() {
+    DatabaseFactory.getSearchDatabase(context).rebuildIndex();
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return true;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to rebuild the search index.");
+  }
+}
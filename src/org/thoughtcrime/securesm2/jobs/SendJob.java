@@ -13,7 +13,6 @@ import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.jobmanager.JobParameters;
 import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.mms.MediaConstraints;
-import org.thoughtcrime.securesm2.mms.MediaStream;
 import org.thoughtcrime.securesm2.mms.MmsException;
 import org.thoughtcrime.securesm2.transport.UndeliverableMessageException;
 import org.thoughtcrime.securesm2.util.MediaUtil;
@@ -30,6 +29,8 @@ public abstract class SendJob extends ContextJob {
   @SuppressWarnings("unused")
   private final static String TAG = SendJob.class.getSimpleName();
 
+  private static final OutgoingAttachmentCache attachmentCache = new OutgoingAttachmentCache();
+
   protected SendJob(@NonNull Context context, @NonNull WorkerParameters workerParameters) {
     super(context, workerParameters);
   }
@@ -70,21 +71,18 @@ public abstract class SendJob extends ContextJob {
                                                               @NonNull List<Attachment> attachments)
       throws UndeliverableMessageException
   {
-    AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
-    List<Attachment>   results            = new LinkedList<>();
+    List<Attachment> results = new LinkedList<>();
 
     for (Attachment attachment : attachments) {
       try {
         if (constraints.isSatisfied(context, attachment)) {
           if (MediaUtil.isJpeg(attachment)) {
-            MediaStream stripped = constraints.getResizedMedia(context, attachment);
-            results.add(attachmentDatabase.updateAttachmentData(attachment, stripped));
+            results.add(attachmentCache.process(context, constraints, attachment));
           } else {
             results.add(attachment);
           }
         } else if (constraints.canResize(attachment)) {
-          MediaStream resized = constraints.getResizedMedia(context, attachment);
-          results.add(attachmentDatabase.updateAttachmentData(attachment, resized));
+          results.add(attachmentCache.process(context, constraints, attachment));
         } else {
           throw new UndeliverableMessageException("Size constraints could not be met!");
         }
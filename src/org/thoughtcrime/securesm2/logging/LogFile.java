@@ -27,10 +27,16 @@ import javax.crypto.spec.SecretKeySpec;
 
 class LogFile {
 
+  /**
+   * Each record in a log file is an IV, a length and an AES/CBC ciphertext. A record may hold a
+   * single entry or a block of several newline separated entries, and {@link Reader} treats both
+   * the same way, so files written before entries were batched remain readable.
+   */
   public static class Writer {
 
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final SecureRandom  random           = new SecureRandom();
 
     private final byte[]               secret;
     private final File                 file;
@@ -49,8 +55,11 @@ class LogFile {
       }
     }
 
+    /**
+     * Encrypts {@code entry} as a single record. The record is buffered until {@link #flush()}.
+     */
     void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+      random.nextBytes(ivBuffer);
 
       byte[] plaintext = entry.getBytes();
       try {
@@ -63,13 +72,15 @@ class LogFile {
         outputStream.write(ivBuffer);
         outputStream.write(Conversions.intToByteArray(cipherLength));
         outputStream.write(ciphertext, 0, cipherLength);
-
-        outputStream.flush();
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
       }
     }
 
+    void flush() throws IOException {
+      outputStream.flush();
+    }
+
     long getLogSize() {
       return file.length();
     }
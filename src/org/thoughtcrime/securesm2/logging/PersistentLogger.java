@@ -2,6 +2,7 @@ package org.thoughtcrime.securesm2.logging;
 
 import android.content.Context;
 import android.support.annotation.AnyThread;
+import android.support.annotation.NonNull;
 import android.support.annotation.WorkerThread;
 
 import org.thoughtcrime.securesm2.database.NoExternalStorageException;
@@ -13,12 +14,20 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PersistentLogger extends Log.Logger {
 
@@ -37,18 +46,42 @@ public class PersistentLogger extends Log.Logger {
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
   private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
+  /**
+   * Entries are encrypted and written in blocks, once per {@link #FLUSH_INTERVAL_MS} or as soon as
+   * {@link #FLUSH_THRESHOLD} entries are waiting. At most {@link #MAX_PENDING_ENTRIES} can be
+   * waiting at once, anything logged beyond that is counted and dropped, and a line saying how many
+   * were dropped is written after the entries that made it.
+   *
+   * Errors are the exception, {@link #e(String, String, Throwable)} and
+   * {@link #wtf(String, String, Throwable)} start a write right away rather than waiting out the
+   * interval, without blocking the caller. Only a crash waits for its entries to be written, see
+   * {@link #flushAndWait()}, and for at most {@link #MAX_SYNC_FLUSH_MS}.
+   */
+  private static final long FLUSH_INTERVAL_MS   = 500;
+  private static final long MAX_SYNC_FLUSH_MS   = 1000;
+  private static final int  FLUSH_THRESHOLD     = 256;
+  private static final int  MAX_PENDING_ENTRIES = 4096;
+  private static final int  MAX_BLOCK_SIZE      = 16 * 1024;
+
+  private final Context                  context;
+  private final ScheduledExecutorService executor;
+  private final byte[]                   secret;
+  private final BlockingQueue<LogEntry>  pendingEntries = new ArrayBlockingQueue<>(MAX_PENDING_ENTRIES);
+  private final AtomicBoolean            flushScheduled = new AtomicBoolean(false);
+  private final AtomicBoolean            flushRequested = new AtomicBoolean(false);
+  private final AtomicLong               droppedEntries = new AtomicLong();
+
+  private volatile Thread loggerThread;
 
   private LogFile.Writer writer;
 
   public PersistentLogger(Context context) {
     this.context  = context.getApplicationContext();
     this.secret   = LogSecretProvider.getOrCreateAttachmentSecret(context);
-    this.executor = Executors.newSingleThreadExecutor(r -> {
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
       Thread thread = new Thread(r, "logger");
       thread.setPriority(Thread.MIN_PRIORITY);
+      loggerThread = thread;
       return thread;
     });
 
@@ -78,11 +111,13 @@ public class PersistentLogger extends Log.Logger {
   @Override
   public void e(String tag, String message, Throwable t) {
     write(LOG_E, tag, message, t);
+    requestFlush();
   }
 
   @Override
   public void wtf(String tag, String message, Throwable t) {
     write(LOG_WTF, tag, message, t);
+    requestFlush();
   }
 
   @WorkerThread
@@ -92,6 +127,8 @@ public class PersistentLogger extends Log.Logger {
     executor.execute(() -> {
       StringBuilder builder = new StringBuilder();
 
+      flush();
+
       try {
         File[] logs = getSortedLogFiles();
         for (int i = logs.length - 1; i >= 0; i--) {
@@ -124,30 +161,102 @@ public class PersistentLogger extends Log.Logger {
 
   @AnyThread
   private void write(String level, String tag, String message, Throwable t) {
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
+    if (!pendingEntries.offer(new LogEntry(level, tag, message, t, System.currentTimeMillis()))) {
+      droppedEntries.incrementAndGet();
+    }
+
+    if (pendingEntries.size() >= FLUSH_THRESHOLD) {
+      requestFlush();
+    } else if (flushScheduled.compareAndSet(false, true)) {
+      executor.schedule(this::flush, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @AnyThread
+  private void requestFlush() {
+    if (flushRequested.compareAndSet(false, true)) {
+      executor.execute(this::flush);
+    }
+  }
+
+  /**
+   * Writes out everything logged so far before returning, for when the process is about to die.
+   */
+  @AnyThread
+  public void flushAndWait() {
+    if (Thread.currentThread() == loggerThread) {
+      return;
+    }
+
+    try {
+      executor.submit(this::flush).get(MAX_SYNC_FLUSH_MS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      android.util.Log.w(TAG, "Failed to flush logs.", e);
+    }
+  }
+
+  @WorkerThread
+  private void flush() {
+    flushScheduled.set(false);
+    flushRequested.set(false);
+
+    List<LogEntry> entries = new ArrayList<>(pendingEntries.size());
+    pendingEntries.drainTo(entries);
+
+    long dropped = droppedEntries.getAndSet(0);
 
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
+    if (entries.isEmpty() && dropped == 0) {
+      return;
+    }
+
+    try {
+      if (writer == null) {
+        return;
+      }
+
+      StringBuilder block = new StringBuilder();
+
+      for (LogEntry entry : entries) {
+        for (String line : buildLogEntries(entry.level, entry.tag, entry.message, entry.throwable, new Date(entry.timestamp))) {
+          if (block.length() > 0) block.append('\n');
+          block.append(line);
         }
 
-        for (String entry : buildLogEntries(level, tag, message, t)) {
-          writer.writeEntry(entry);
+        if (block.length() >= MAX_BLOCK_SIZE) {
+          writeBlock(block);
         }
+      }
 
-      } catch (NoExternalStorageException e) {
-        android.util.Log.w(TAG, "Cannot persist logs.", e);
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+      if (dropped > 0) {
+        if (block.length() > 0) block.append('\n');
+        block.append(buildEntry(LOG_W, TAG, "Dropped " + dropped + " log entries.", new Date()));
       }
-    });
+
+      writeBlock(block);
+    } catch (NoExternalStorageException e) {
+      android.util.Log.w(TAG, "Cannot persist logs.", e);
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
+  }
+
+  @WorkerThread
+  private void writeBlock(@NonNull StringBuilder block) throws IOException, NoExternalStorageException {
+    if (block.length() == 0) {
+      return;
+    }
+
+    if (writer.getLogSize() >= MAX_LOG_SIZE) {
+      writer.close();
+      writer = new LogFile.Writer(secret, createNewLogFile());
+      trimLogFilesOverMax();
+    }
+
+    writer.writeEntry(block.toString());
+    writer.flush();
+    block.setLength(0);
   }
 
   private void trimLogFilesOverMax() throws NoExternalStorageException {
@@ -201,9 +310,8 @@ public class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t) {
+  private List<String> buildLogEntries(String level, String tag, String message, Throwable t, Date date) {
     List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
 
     entries.add(buildEntry(level, tag, message, date));
 
@@ -225,4 +333,20 @@ public class PersistentLogger extends Log.Logger {
   private String buildEntry(String level, String tag, String message, Date date) {
     return DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
   }
+
+  private static class LogEntry {
+    private final String    level;
+    private final String    tag;
+    private final String    message;
+    private final Throwable throwable;
+    private final long      timestamp;
+
+    private LogEntry(String level, String tag, String message, Throwable throwable, long timestamp) {
+      this.level     = level;
+      this.tag       = tag;
+      this.message   = message;
+      this.throwable = throwable;
+      this.timestamp = timestamp;
+    }
+  }
 }
@@ -17,6 +17,7 @@ public class UncaughtExceptionLogger implements Thread.UncaughtExceptionHandler
   @Override
   public void uncaughtException(Thread t, Throwable e) {
     Log.e(TAG, "", e);
+    persistentLogger.flushAndWait();
     originalHandler.uncaughtException(t, e);
   }
 }
@@ -53,6 +53,7 @@ import org.json.JSONObject;
 import org.thoughtcrime.securesm2.ApplicationContext;
 import org.thoughtcrime.securesm2.R;
 import org.thoughtcrime.securesm2.contactshare.SimpleTextWatcher;
+import org.thoughtcrime.securesm2.database.NotificationCoalescer;
 import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.logsubmit.util.Scrubber;
 import org.thoughtcrime.securesm2.util.Util;
@@ -495,6 +496,8 @@ public class SubmitLogFragment extends Fragment {
     builder.append("Memory  : ").append(getMemoryUsage(context)).append("\n");
     builder.append("Memclass: ").append(getMemoryClass(context)).append("\n");
     builder.append("OS Host : ").append(Build.HOST).append("\n");
+    builder.append("DB Notif: ").append(NotificationCoalescer.getInstance().getEmittedCount()).append(" sent, ")
+                               .append(NotificationCoalescer.getInstance().getSuppressedCount()).append(" coalesced\n");
     builder.append("App     : ");
     try {
       builder.append(pm.getApplicationLabel(pm.getApplicationInfo(context.getPackageName(), 0)))
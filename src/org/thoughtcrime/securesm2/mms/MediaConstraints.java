@@ -61,6 +61,13 @@ public abstract class MediaConstraints {
     }
   }
 
+  /**
+   * @return A key that's equal for any two constraints that would resize an image the same way.
+   */
+  public @NonNull String getImageConstraintsKey(@NonNull Context context) {
+    return getClass().getSimpleName() + ":" + getImageMaxWidth(context) + "x" + getImageMaxHeight(context) + ":" + getImageMaxSize(context);
+  }
+
   public boolean canResize(@Nullable Attachment attachment) {
     return attachment != null && MediaUtil.isImage(attachment) && !MediaUtil.isGif(attachment);
   }
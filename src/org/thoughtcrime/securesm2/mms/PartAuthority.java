@@ -9,6 +9,7 @@ import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.attachments.Attachment;
 import org.thoughtcrime.securesm2.attachments.AttachmentId;
+import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.providers.PersistentBlobProvider;
 import org.thoughtcrime.securesm2.providers.PartProvider;
@@ -57,6 +58,20 @@ public class PartAuthority {
     }
   }
 
+  /**
+   * @return A random access reader for the attachment at {@code uri}, or null if it can only be
+   *         read through {@link #getAttachmentStream(Context, Uri)}.
+   */
+  public static @Nullable ModernDecryptingPartChannel getAttachmentChannel(@NonNull Context context, @NonNull Uri uri)
+      throws IOException
+  {
+    if (uriMatcher.match(uri) == PART_ROW) {
+      return DatabaseFactory.getAttachmentDatabase(context).getAttachmentChannel(new PartUriParser(uri).getPartId());
+    }
+
+    return null;
+  }
+
   public static @Nullable String getAttachmentFileName(@NonNull Context context, @NonNull Uri uri) {
     int match = uriMatcher.match(uri);
 
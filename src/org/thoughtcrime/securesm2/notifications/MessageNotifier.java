@@ -36,26 +36,16 @@ import android.service.notification.StatusBarNotification;
 import android.support.annotation.NonNull;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
-import android.text.TextUtils;
 import org.thoughtcrime.securesm2.logging.Log;
 
 import org.thoughtcrime.securesm2.ConversationActivity;
-import org.thoughtcrime.securesm2.R;
-import org.thoughtcrime.securesm2.contactshare.ContactUtil;
-import org.thoughtcrime.securesm2.contactshare.Contact;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.database.MessagingDatabase.MarkedMessageInfo;
-import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
 import org.thoughtcrime.securesm2.database.ThreadDatabase;
-import org.thoughtcrime.securesm2.database.model.MediaMmsMessageRecord;
-import org.thoughtcrime.securesm2.database.model.MessageRecord;
-import org.thoughtcrime.securesm2.database.model.MmsMessageRecord;
-import org.thoughtcrime.securesm2.mms.SlideDeck;
 import org.thoughtcrime.securesm2.recipients.Recipient;
 import org.thoughtcrime.securesm2.service.IncomingMessageObserver;
 import org.thoughtcrime.securesm2.service.KeyCachingService;
 import org.thoughtcrime.securesm2.util.ServiceUtil;
-import org.thoughtcrime.securesm2.util.SpanUtil;
 import org.thoughtcrime.securesm2.util.TextSecurePreferences;
 import org.thoughtcrime.securesm2.webrtc.CallNotificationBuilder;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -95,6 +85,7 @@ public class MessageNotifier {
   private volatile static       long               lastDesktopActivityTimestamp = -1;
   private volatile static       long               lastAudibleNotification      = -1;
   private          static final CancelableExecutor executor                     = new CancelableExecutor();
+  private          static final NotificationModel  notificationModel            = new NotificationModel();
 
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
@@ -205,6 +196,31 @@ public class MessageNotifier {
     }
   }
 
+  /**
+   * Updates notifications once for messages that arrived in several threads together, rather than
+   * rebuilding them once per thread.
+   */
+  public static void updateNotification(@NonNull Context context, @NonNull Set<Long> threadIds) {
+    ThreadDatabase threads      = DatabaseFactory.getThreadDatabase(context);
+    long           signalThread = -1;
+
+    for (long threadId : threadIds) {
+      if (threadId == visibleThread) {
+        updateNotification(context, threadId);
+      } else if (signalThread == -1) {
+        Recipient recipient = threads.getRecipientForThreadId(threadId);
+
+        if (recipient == null || !recipient.isMuted()) {
+          signalThread = threadId;
+        }
+      }
+    }
+
+    if (signalThread != -1) {
+      updateNotification(context, signalThread);
+    }
+  }
+
   public static void updateNotification(@NonNull  Context context,
                                         long      threadId,
                                         boolean   signal)
@@ -212,8 +228,7 @@ public class MessageNotifier {
     boolean    isVisible  = visibleThread == threadId;
 
     ThreadDatabase threads    = DatabaseFactory.getThreadDatabase(context);
-    Recipient      recipients = DatabaseFactory.getThreadDatabase(context)
-                                               .getRecipientForThreadId(threadId);
+    Recipient      recipients = threads.getRecipientForThreadId(threadId);
 
     if (isVisible) {
       List<MarkedMessageInfo> messageIds = threads.setRead(threadId, false);
@@ -227,7 +242,7 @@ public class MessageNotifier {
     }
 
     if (isVisible) {
-      sendInThreadNotification(context, threads.getRecipientForThreadId(threadId));
+      sendInThreadNotification(context, recipients);
     } else {
       updateNotification(context, signal, 0);
     }
@@ -237,14 +252,14 @@ public class MessageNotifier {
                                          boolean signal,
                                          int     reminderCount)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    Cursor pushCursor = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      NotificationState notificationState = notificationModel.getState(context);
+
+      pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
+      if (!notificationModel.hasUnread() &&
           (pushCursor == null || pushCursor.isAfterLast()))
       {
         cancelActiveNotifications(context);
@@ -253,8 +268,6 @@ public class MessageNotifier {
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
-
       if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
         signal = false;
       } else if (signal) {
@@ -280,8 +293,7 @@ public class MessageNotifier {
         scheduleReminder(context, reminderCount);
       }
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -423,54 +435,6 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @NonNull  Cursor cursor)
-  {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
-
-    MessageRecord record;
-
-    while ((record = reader.getNext()) != null) {
-      long         id                    = record.getId();
-      boolean      mms                   = record.isMms() || record.isMmsNotification();
-      Recipient    recipient             = record.getIndividualRecipient();
-      Recipient    conversationRecipient = record.getRecipient();
-      long         threadId              = record.getThreadId();
-      CharSequence body                  = record.getDisplayBody();
-      Recipient    threadRecipients      = null;
-      SlideDeck    slideDeck             = null;
-      long         timestamp             = record.getTimestamp();
-
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
-      }
-
-      if (KeyCachingService.isLocked(context)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
-        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
-        body = ContactUtil.getStringSummary(context, contact);
-      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
-
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
-      }
-    }
-
-    reader.close();
-    return notificationState;
-  }
-
   private static void updateBadge(Context context, int count) {
     try {
       if (count == 0) ShortcutBadger.removeCount(context);
@@ -0,0 +1,259 @@
+package org.thoughtcrime.securesm2.notifications;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import org.thoughtcrime.securesm2.R;
+import org.thoughtcrime.securesm2.contactshare.Contact;
+import org.thoughtcrime.securesm2.contactshare.ContactUtil;
+import org.thoughtcrime.securesm2.database.AttachmentDatabase;
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
+import org.thoughtcrime.securesm2.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesm2.database.model.MessageRecord;
+import org.thoughtcrime.securesm2.database.model.MmsMessageRecord;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.mms.Slide;
+import org.thoughtcrime.securesm2.mms.SlideDeck;
+import org.thoughtcrime.securesm2.recipients.Recipient;
+import org.thoughtcrime.securesm2.service.KeyCachingService;
+import org.thoughtcrime.securesm2.util.SpanUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The unread messages that notifications are built from, kept between updates so that an update
+ * only has to load what changed.
+ *
+ * Messages are grouped by thread, and a thread's recipient is looked up once, when its first
+ * unread message arrives. An update reads just the ids of the messages that are unread now, drops
+ * the ones that have since been read or deleted, and loads full records only for ids it hasn't
+ * seen. Everything is loaded from scratch only the first time, or when locking or unlocking
+ * changes what the message bodies should say.
+ *
+ * A message whose attachments are still being transferred is loaded again on every update until
+ * they're done, since its notification can only show a preview once they are.
+ */
+class NotificationModel {
+
+  private static final String TAG = NotificationModel.class.getSimpleName();
+
+  private final Map<Long, ThreadNotifications> threads = new HashMap<>();
+  private final Set<Long>                      smsIds  = new HashSet<>();
+  private final Set<Long>                      mmsIds  = new HashSet<>();
+
+  private boolean loaded;
+  private boolean locked;
+
+  /**
+   * @return Whether there were any unread messages as of the last {@link #getState(Context)},
+   *         including those in muted threads.
+   */
+  synchronized boolean hasUnread() {
+    return !smsIds.isEmpty() || !mmsIds.isEmpty();
+  }
+
+  /**
+   * @return The notifications for every unread message outside of muted threads, oldest first.
+   */
+  synchronized @NonNull NotificationState getState(@NonNull Context context) {
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    boolean        locked   = KeyCachingService.isLocked(context);
+
+    if (!loaded || locked != this.locked) {
+      threads.clear();
+      smsIds.clear();
+      mmsIds.clear();
+
+      try (Cursor cursor = database.getUnread()) {
+        add(context, database, cursor);
+      }
+
+      this.loaded = true;
+      this.locked = locked;
+    } else {
+      update(context, database);
+    }
+
+    List<Entry> entries = new ArrayList<>(smsIds.size() + mmsIds.size());
+
+    for (ThreadNotifications thread : threads.values()) {
+      if (thread.recipient == null || !thread.recipient.isMuted()) {
+        entries.addAll(thread.entries);
+      }
+    }
+
+    Collections.sort(entries, (lhs, rhs) -> Long.compare(lhs.dateReceived, rhs.dateReceived));
+
+    NotificationState notificationState = new NotificationState();
+
+    for (Entry entry : entries) {
+      notificationState.addNotification(entry.item);
+    }
+
+    return notificationState;
+  }
+
+  private void update(@NonNull Context context, @NonNull MmsSmsDatabase database) {
+    Set<Long> unreadSms = new HashSet<>();
+    Set<Long> unreadMms = new HashSet<>();
+
+    try (Cursor cursor = database.getUnreadIds()) {
+      while (cursor != null && cursor.moveToNext()) {
+        if (MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(0))) unreadMms.add(cursor.getLong(1));
+        else                                                          unreadSms.add(cursor.getLong(1));
+      }
+    }
+
+    int removed = smsIds.size() + mmsIds.size();
+
+    smsIds.retainAll(unreadSms);
+    mmsIds.retainAll(unreadMms);
+
+    removed -= smsIds.size() + mmsIds.size();
+
+    int                           reloaded       = 0;
+    Iterator<ThreadNotifications> threadIterator = threads.values().iterator();
+
+    while (threadIterator.hasNext()) {
+      ThreadNotifications thread        = threadIterator.next();
+      Iterator<Entry>     entryIterator = thread.entries.iterator();
+
+      while (entryIterator.hasNext()) {
+        NotificationItem item = entryIterator.next().item;
+        Set<Long>        ids  = item.isMms() ? mmsIds : smsIds;
+
+        if (!ids.contains(item.getId())) {
+          entryIterator.remove();
+        } else if (isTransferring(item)) {
+          ids.remove(item.getId());
+          entryIterator.remove();
+          reloaded++;
+        }
+      }
+
+      if (thread.entries.isEmpty()) threadIterator.remove();
+    }
+
+    unreadSms.removeAll(smsIds);
+    unreadMms.removeAll(mmsIds);
+
+    if (!unreadSms.isEmpty() || !unreadMms.isEmpty()) {
+      try (Cursor cursor = database.getUnread(toArray(unreadSms), toArray(unreadMms))) {
+        add(context, database, cursor);
+      }
+    }
+
+    Log.i(TAG, "Removed " + removed + ", reloaded " + reloaded + ", added " + (unreadSms.size() + unreadMms.size() - reloaded) + " unread messages.");
+  }
+
+  private static boolean isTransferring(@NonNull NotificationItem item) {
+    SlideDeck slideDeck = item.getSlideDeck();
+
+    if (slideDeck == null) return false;
+
+    for (Slide slide : slideDeck.getSlides()) {
+      if (slide.getTransferState() != AttachmentDatabase.TRANSFER_PROGRESS_DONE) return true;
+    }
+
+    return false;
+  }
+
+  private void add(@NonNull Context context, @NonNull MmsSmsDatabase database, @NonNull Cursor cursor) {
+    MmsSmsDatabase.Reader reader = database.readerFor(cursor);
+    MessageRecord         record;
+
+    while ((record = reader.getNext()) != null) {
+      long                threadId = record.getThreadId();
+      ThreadNotifications thread   = threads.get(threadId);
+
+      if (thread == null) {
+        Recipient recipient = threadId != -1 ? DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId) : null;
+
+        thread = new ThreadNotifications(recipient);
+        threads.put(threadId, thread);
+      }
+
+      NotificationItem item = createItem(context, record, thread.recipient);
+
+      thread.entries.add(new Entry(item, record.getDateReceived()));
+
+      if (item.isMms()) mmsIds.add(item.getId());
+      else              smsIds.add(item.getId());
+    }
+  }
+
+  private static @NonNull NotificationItem createItem(@NonNull Context context, @NonNull MessageRecord record, @Nullable Recipient threadRecipient) {
+    CharSequence body      = record.getDisplayBody();
+    SlideDeck    slideDeck = null;
+
+    if (KeyCachingService.isLocked(context)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
+      Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
+      body = ContactUtil.getStringSummary(context, contact);
+    } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(record.getId(),
+                                record.isMms() || record.isMmsNotification(),
+                                record.getIndividualRecipient(),
+                                record.getRecipient(),
+                                threadRecipient,
+                                record.getThreadId(),
+                                body,
+                                record.getTimestamp(),
+                                slideDeck);
+  }
+
+  private static @NonNull long[] toArray(@NonNull Set<Long> values) {
+    long[] result = new long[values.size()];
+    int    index  = 0;
+
+    for (long value : values) {
+      result[index++] = value;
+    }
+
+    return result;
+  }
+
+  private static class ThreadNotifications {
+
+    private final @Nullable Recipient recipient;
+    private final List<Entry>         entries = new LinkedList<>();
+
+    private ThreadNotifications(@Nullable Recipient recipient) {
+      this.recipient = recipient;
+    }
+  }
+
+  private static class Entry {
+
+    private final NotificationItem item;
+    private final long             dateReceived;
+
+    private Entry(@NonNull NotificationItem item, long dateReceived) {
+      this.item         = item;
+      this.dateReceived = dateReceived;
+    }
+  }
+}
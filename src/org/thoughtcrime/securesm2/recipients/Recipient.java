@@ -51,6 +51,7 @@ import org.thoughtcrime.securesm2.util.ListenableFutureTask;
 import org.thoughtcrime.securesm2.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -108,6 +109,18 @@ public class Recipient implements RecipientModifiedListener {
     return provider.getRecipient(context, address, settings, groupRecord, asynchronous);
   }
 
+  /**
+   * Loads any of {@code addresses} that aren't cached yet in one round trip, ahead of resolving
+   * them individually with {@link #from(Context, Address, boolean)}.
+   */
+  public static void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    provider.prefetch(context, addresses);
+  }
+
+  public static @NonNull RecipientCache.Stats getCacheStats() {
+    return provider.getCacheStats();
+  }
+
   public static void applyCached(@NonNull Address address, Consumer<Recipient> consumer) {
     Optional<Recipient> recipient = provider.getCached(address);
     if (recipient.isPresent()) consumer.accept(recipient.get());
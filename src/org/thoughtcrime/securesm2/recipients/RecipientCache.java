@@ -0,0 +1,216 @@
+package org.thoughtcrime.securesm2.recipients;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.thoughtcrime.securesm2.database.Address;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded cache of {@link Recipient}s.
+ *
+ * Entries are spread over a fixed number of segments by address. Lookups never block: they are a
+ * plain concurrent map read plus setting the entry's referenced bit. Insertions only lock their
+ * own segment, and once a segment is over its share of the capacity it evicts with the CLOCK
+ * (second chance) policy, which approximates LRU without reordering anything on reads.
+ */
+public class RecipientCache {
+
+  private static final int SEGMENT_COUNT = 16;
+
+  private final Segment[] segments;
+
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  RecipientCache(int maxSize) {
+    int segmentCapacity = Math.max(1, (maxSize + SEGMENT_COUNT - 1) / SEGMENT_COUNT);
+
+    this.segments = new Segment[SEGMENT_COUNT];
+
+    for (int i=0;i<segments.length;i++) {
+      segments[i] = new Segment(segmentCapacity);
+    }
+  }
+
+  @Nullable Recipient get(@NonNull Address address) {
+    Entry entry = segmentFor(address).entries.get(address);
+
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    entry.referenced = true;
+    hits.incrementAndGet();
+
+    return entry.recipient;
+  }
+
+  void set(@NonNull Address address, @NonNull Recipient recipient) {
+    segmentFor(address).put(address, recipient, false);
+  }
+
+  /**
+   * Inserts the recipient only if nothing is cached for the address yet, so that a recipient
+   * someone else just cached, and its listeners, are never replaced.
+   */
+  void setIfAbsent(@NonNull Address address, @NonNull Recipient recipient) {
+    segmentFor(address).put(address, recipient, true);
+  }
+
+  /**
+   * Unlike {@link #get(Address)}, doesn't count as a hit or miss or mark the entry as used.
+   */
+  boolean contains(@NonNull Address address) {
+    return segmentFor(address).entries.containsKey(address);
+  }
+
+  public @NonNull Stats getStats() {
+    int size = 0;
+
+    for (Segment segment : segments) {
+      size += segment.size.get();
+    }
+
+    return new Stats(hits.get(), misses.get(), evictions.get(), size);
+  }
+
+  private @NonNull Segment segmentFor(@NonNull Address address) {
+    int hash = address.hashCode();
+    hash ^= (hash >>> 16);
+
+    return segments[(hash & 0x7fffffff) % segments.length];
+  }
+
+  private static class Entry {
+    private final    Address   address;
+    private final    Recipient recipient;
+    private volatile boolean   referenced;
+
+    private Entry(@NonNull Address address, @NonNull Recipient recipient) {
+      this.address   = address;
+      this.recipient = recipient;
+    }
+  }
+
+  private class Segment {
+
+    private final Map<Address, Entry> entries = new ConcurrentHashMap<>();
+    private final Queue<Entry>        clock   = new ArrayDeque<>();
+    private final AtomicInteger       size    = new AtomicInteger();
+    private final int                 capacity;
+
+    private Segment(int capacity) {
+      this.capacity = capacity;
+    }
+
+    private synchronized void put(@NonNull Address address, @NonNull Recipient recipient, boolean onlyIfAbsent) {
+      if (onlyIfAbsent && entries.containsKey(address)) return;
+
+      Entry entry = new Entry(address, recipient);
+
+      if (entries.put(address, entry) == null) {
+        size.incrementAndGet();
+      }
+
+      clock.add(entry);
+
+      while (size.get() > capacity) {
+        evictOne();
+      }
+
+      if (clock.size() > capacity * 2) {
+        removeReplaced();
+      }
+    }
+
+    /**
+     * Replaced entries are left in the clock and skipped here rather than searched for on every
+     * insertion.
+     */
+    private void evictOne() {
+      Entry candidate;
+
+      while ((candidate = clock.poll()) != null) {
+        if (entries.get(candidate.address) != candidate) {
+          continue;
+        }
+
+        if (candidate.referenced) {
+          candidate.referenced = false;
+          clock.add(candidate);
+        } else {
+          entries.remove(candidate.address, candidate);
+          size.decrementAndGet();
+          evictions.incrementAndGet();
+          return;
+        }
+      }
+    }
+
+    private void removeReplaced() {
+      Iterator<Entry> iterator = clock.iterator();
+
+      while (iterator.hasNext()) {
+        Entry candidate = iterator.next();
+
+        if (entries.get(candidate.address) != candidate) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  public static class Stats {
+
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int  size;
+
+    private Stats(long hits, long misses, long evictions, int size) {
+      this.hits      = hits;
+      this.misses    = misses;
+      this.evictions = evictions;
+      this.size      = size;
+    }
+
+    public long getHitCount() {
+      return hits;
+    }
+
+    public long getMissCount() {
+      return misses;
+    }
+
+    public long getEvictionCount() {
+      return evictions;
+    }
+
+    public int getSize() {
+      return size;
+    }
+
+    public double getHitRate() {
+      long requests = hits + misses;
+      return requests > 0 ? (double) hits / requests : 0;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "[hits: " + hits + ", misses: " + misses + ", evictions: " + evictions + ", size: " + size +
+             ", hit rate: " + String.format(Locale.US, "%.2f", getHitRate()) + "]";
+    }
+  }
+}
@@ -31,16 +31,23 @@ import org.thoughtcrime.securesm2.database.RecipientDatabase.RecipientSettings;
 import org.thoughtcrime.securesm2.database.RecipientDatabase.RegisteredState;
 import org.thoughtcrime.securesm2.database.RecipientDatabase.UnidentifiedAccessMode;
 import org.thoughtcrime.securesm2.database.RecipientDatabase.VibrateState;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.util.FutureTaskListener;
 import org.thoughtcrime.securesm2.util.ListenableFutureTask;
-import org.thoughtcrime.securesm2.util.SoftHashMap;
 import org.thoughtcrime.securesm2.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 
 class RecipientProvider {
@@ -48,13 +55,26 @@ class RecipientProvider {
   @SuppressWarnings("unused")
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final int DEFAULT_CACHE_SIZE     = 1000;
+  private static final int DEFAULT_RESOLVER_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+  private final RecipientCache                                                recipientCache;
+  private final ExecutorService                                               asyncRecipientResolver;
+  private final ConcurrentMap<Address, ListenableFutureTask<RecipientDetails>> inFlightResolutions = new ConcurrentHashMap<>();
 
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", null, false, null, null));
   }};
 
+  RecipientProvider() {
+    this(DEFAULT_CACHE_SIZE, DEFAULT_RESOLVER_COUNT);
+  }
+
+  RecipientProvider(int cacheSize, int resolverCount) {
+    this.recipientCache         = new RecipientCache(cacheSize);
+    this.asyncRecipientResolver = Util.newLifoExecutor(resolverCount);
+  }
+
   @NonNull Recipient getRecipient(@NonNull Context context, @NonNull Address address, @NonNull Optional<RecipientSettings> settings, @NonNull Optional<GroupRecord> groupRecord, boolean asynchronous) {
     Recipient cachedRecipient = recipientCache.get(address);
 
@@ -78,12 +98,38 @@ class RecipientProvider {
     return Optional.fromNullable(recipientCache.get(address));
   }
 
+  /**
+   * Resolves every individual address that isn't cached yet with a single bulk settings lookup,
+   * so that resolving them one at a time afterwards is served entirely from the cache.
+   */
+  void prefetch(@NonNull Context context, @NonNull Collection<Address> addresses) {
+    Set<Address> missing = new HashSet<>();
+
+    for (Address address : addresses) {
+      if (!address.isGroup() && !recipientCache.contains(address)) {
+        missing.add(address);
+      }
+    }
+
+    if (missing.isEmpty()) return;
+
+    Map<Address, RecipientSettings> settings = DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(missing);
+
+    for (Address address : missing) {
+      recipientCache.setIfAbsent(address, new Recipient(address, createIndividualRecipientDetails(address, settings.get(address))));
+    }
+  }
+
+  @NonNull RecipientCache.Stats getCacheStats() {
+    return recipientCache.getStats();
+  }
+
   private @NonNull Optional<RecipientDetails> createPrefetchedRecipientDetails(@NonNull Context context, @NonNull Address address,
                                                                                @NonNull Optional<RecipientSettings> settings,
                                                                                @NonNull Optional<GroupRecord> groupRecord)
   {
     if (address.isGroup() && settings.isPresent() && groupRecord.isPresent()) {
-      return Optional.of(getGroupRecipientDetails(context, address, groupRecord, settings, true));
+      return Optional.of(getGroupRecipientDetails(context, address, groupRecord, settings, true, false));
     } else if (!address.isGroup() && settings.isPresent()) {
       return Optional.of(new RecipientDetails(null, null, !TextUtils.isEmpty(settings.get().getSystemDisplayName()), settings.get(), null));
     }
@@ -91,18 +137,60 @@ class RecipientProvider {
     return Optional.absent();
   }
 
+  /**
+   * At most one asynchronous resolution runs per address. Callers that arrive while one is still
+   * pending share its future rather than queueing another database lookup.
+   */
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context, final @NonNull Address address, final @NonNull Optional<RecipientSettings> settings, final @NonNull Optional<GroupRecord> groupRecord)
   {
-    Callable<RecipientDetails> task = () -> getRecipientDetailsSync(context, address, settings, groupRecord, true);
+    ListenableFutureTask<RecipientDetails> inFlight = inFlightResolutions.get(address);
+
+    if (inFlight != null) {
+      return inFlight;
+    }
 
+    Callable<RecipientDetails>             task   = () -> getRecipientDetailsSync(context, address, settings, groupRecord, true);
     ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
+
+    inFlight = inFlightResolutions.putIfAbsent(address, future);
+
+    if (inFlight != null) {
+      return inFlight;
+    }
+
+    future.addListener(new FutureTaskListener<RecipientDetails>() {
+      @Override
+      public void onSuccess(RecipientDetails result) {
+        inFlightResolutions.remove(address, future);
+      }
+
+      @Override
+      public void onFailure(ExecutionException exception) {
+        inFlightResolutions.remove(address, future);
+      }
+    });
+
     asyncRecipientResolver.submit(future);
     return future;
   }
 
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, @NonNull Address address, Optional<RecipientSettings> settings, Optional<GroupRecord> groupRecord, boolean nestedAsynchronous) {
-    if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous);
-    else                   return getIndividualRecipientDetails(context, address, settings);
+    if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous, true);
+
+    ListenableFutureTask<RecipientDetails> inFlight = inFlightResolutions.get(address);
+
+    if (inFlight != null && !nestedAsynchronous) {
+      try {
+        // Runs the pending resolution on this thread if no resolver has picked it up yet,
+        // otherwise waits for the one already underway.
+        inFlight.run();
+        return inFlight.get();
+      } catch (InterruptedException | ExecutionException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    return getIndividualRecipientDetails(context, address, settings);
   }
 
   private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings) {
@@ -110,15 +198,24 @@ class RecipientProvider {
       settings = DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(address);
     }
 
-    if (!settings.isPresent() && STATIC_DETAILS.containsKey(address.serialize())) {
+    return createIndividualRecipientDetails(address, settings.orNull());
+  }
+
+  private @NonNull RecipientDetails createIndividualRecipientDetails(@NonNull Address address, @Nullable RecipientSettings settings) {
+    if (settings == null && STATIC_DETAILS.containsKey(address.serialize())) {
       return STATIC_DETAILS.get(address.serialize());
     } else {
-      boolean systemContact = settings.isPresent() && !TextUtils.isEmpty(settings.get().getSystemDisplayName());
-      return new RecipientDetails(null, null, systemContact, settings.orNull(), null);
+      boolean systemContact = settings != null && !TextUtils.isEmpty(settings.getSystemDisplayName());
+      return new RecipientDetails(null, null, systemContact, settings, null);
     }
   }
 
-  private @NonNull RecipientDetails getGroupRecipientDetails(Context context, Address groupId, Optional<GroupRecord> groupRecord, Optional<RecipientSettings> settings, boolean asynchronous) {
+  /**
+   * @param prefetchMembers Whether to look up uncached members in bulk first. Only done when
+   *                        resolving in the background or on request, never for the details built
+   *                        on the caller's thread while a group resolves asynchronously.
+   */
+  private @NonNull RecipientDetails getGroupRecipientDetails(Context context, Address groupId, Optional<GroupRecord> groupRecord, Optional<RecipientSettings> settings, boolean asynchronous, boolean prefetchMembers) {
 
     if (!groupRecord.isPresent()) {
       groupRecord = DatabaseFactory.getGroupDatabase(context).getGroup(groupId.toGroupString());
@@ -134,6 +231,8 @@ class RecipientProvider {
       List<Recipient> members         = new LinkedList<>();
       Long            avatarId        = null;
 
+      if (prefetchMembers) prefetch(context, memberAddresses);
+
       for (Address memberAddress : memberAddresses) {
         members.add(getRecipient(context, memberAddress, Optional.absent(), Optional.absent(), asynchronous));
       }
@@ -211,18 +310,4 @@ class RecipientProvider {
     }
   }
 
-  private static class RecipientCache {
-
-    private final Map<Address,Recipient> cache = new SoftHashMap<>(1000);
-
-    public synchronized Recipient get(Address address) {
-      return cache.get(address);
-    }
-
-    public synchronized void set(Address address, Recipient recipient) {
-      cache.put(address, recipient);
-    }
-
-  }
-
 }
\ No newline at end of file
@@ -72,7 +72,7 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
                                                              DatabaseFactory.getThreadDatabase(getContext()),
                                                              ContactAccessor.getInstance(),
                                                              Executors.newSingleThreadExecutor());
-    viewModel = ViewModelProviders.of(this, new SearchViewModel.Factory(searchRepository)).get(SearchViewModel.class);
+    viewModel = ViewModelProviders.of(this, new SearchViewModel.Factory(searchRepository, -1)).get(SearchViewModel.class);
 
     if (pendingQuery != null) {
       viewModel.updateQuery(pendingQuery);
@@ -112,7 +112,9 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
           noResultsView.setVisibility(View.GONE);
         } else {
           noResultsView.setVisibility(View.VISIBLE);
-          noResultsView.setText(getString(R.string.SearchFragment_no_results, viewModel.getLastQuery()));
+          noResultsView.setText(getString(result.isIndexing() ? R.string.SearchFragment_no_results_still_indexing
+                                                              : R.string.SearchFragment_no_results,
+                                          viewModel.getLastQuery()));
         }
       } else {
         noResultsView.setVisibility(View.VISIBLE);
@@ -181,6 +183,11 @@ public class SearchFragment extends Fragment implements SearchListAdapter.EventL
     }.execute();
   }
 
+  @Override
+  public void onEndOfMessagesReached() {
+    viewModel.loadMoreMessages();
+  }
+
   public void updateSearchQuery(@NonNull String query) {
     if (viewModel != null) {
       viewModel.updateQuery(query);
@@ -70,6 +70,10 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
 
     if (messageResult != null) {
       holder.bind(messageResult, glideRequests, eventListener, locale, searchResult.getQuery());
+
+      if (position == getItemCount() - 1 && searchResult.hasMoreMessages()) {
+        eventListener.onEndOfMessagesReached();
+      }
     }
   }
 
@@ -146,6 +150,7 @@ class SearchListAdapter extends    RecyclerView.Adapter<SearchListAdapter.Search
     void onConversationClicked(@NonNull ThreadRecord threadRecord);
     void onContactClicked(@NonNull Recipient contact);
     void onMessageClicked(@NonNull MessageResult message);
+    void onEndOfMessagesReached();
   }
 
   static class SearchResultViewHolder extends RecyclerView.ViewHolder {
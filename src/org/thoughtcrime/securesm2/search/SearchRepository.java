@@ -6,6 +6,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.annimon.stream.Stream;
@@ -16,24 +17,39 @@ import org.thoughtcrime.securesm2.contacts.ContactsDatabase;
 import org.thoughtcrime.securesm2.database.Address;
 import org.thoughtcrime.securesm2.database.CursorList;
 import org.thoughtcrime.securesm2.database.MmsSmsColumns;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
 import org.thoughtcrime.securesm2.database.SearchDatabase;
+import org.thoughtcrime.securesm2.database.SearchDatabase.MessageKey;
+import org.thoughtcrime.securesm2.database.SearchDatabase.MessageOrder;
 import org.thoughtcrime.securesm2.database.ThreadDatabase;
 import org.thoughtcrime.securesm2.database.model.ThreadRecord;
+import org.thoughtcrime.securesm2.logging.Log;
 import org.thoughtcrime.securesm2.permissions.Permissions;
 import org.thoughtcrime.securesm2.recipients.Recipient;
 import org.thoughtcrime.securesm2.search.model.MessageResult;
 import org.thoughtcrime.securesm2.search.model.SearchResult;
+import org.thoughtcrime.securesm2.util.concurrent.SignalExecutors;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages data retrieval for search.
  */
 class SearchRepository {
 
+  private static final String TAG = SearchRepository.class.getSimpleName();
+
+  private static final int MESSAGE_PAGE_SIZE = 100;
+
   private static final Set<Character> BANNED_CHARACTERS = new HashSet<>();
   static {
     // Several ranges of invalid ASCII characters
@@ -57,6 +73,7 @@ class SearchRepository {
   private final ThreadDatabase   threadDatabase;
   private final ContactAccessor  contactAccessor;
   private final Executor         executor;
+  private final AtomicLong       generation = new AtomicLong();
 
   SearchRepository(@NonNull Context          context,
                    @NonNull SearchDatabase   searchDatabase,
@@ -73,22 +90,85 @@ class SearchRepository {
     this.executor         = executor;
   }
 
-  void query(@NonNull String query, @NonNull Callback callback) {
+  /**
+   * Runs a search, with the contact, conversation and message queries in parallel. Starting a new
+   * search supersedes any that haven't delivered their result yet, those are dropped instead.
+   *
+   * @param threadId The thread to search messages in, or -1 to search every thread.
+   */
+  void query(@NonNull String query, long threadId, @NonNull MessageOrder order, @NonNull Callback callback) {
+    long queryGeneration = generation.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
     executor.execute(() -> {
-      String                    cleanQuery    = sanitizeQuery(query);
-      CursorList<Recipient>     contacts      = queryContacts(cleanQuery);
-      CursorList<ThreadRecord>  conversations = queryConversations(cleanQuery);
-      CursorList<MessageResult> messages      = queryMessages(cleanQuery);
+      if (isSuperseded(queryGeneration)) return;
+
+      String                            cleanQuery    = sanitizeQuery(query);
+      Future<CursorList<Recipient>>     contacts      = SignalExecutors.IO.submit(() -> queryContacts(cleanQuery));
+      Future<CursorList<ThreadRecord>>  conversations = SignalExecutors.IO.submit(() -> queryConversations(cleanQuery));
+      Future<MessagePage>               messages      = SignalExecutors.IO.submit(() -> queryMessages(cleanQuery, threadId, order, null));
+      boolean                           indexing      = searchDatabase.isIndexing();
+
+      MessagePage  messagePage = getOrDefault(messages, MessagePage.EMPTY, "messages");
+      SearchResult result      = new SearchResult(cleanQuery,
+                                                  getOrDefault(contacts, CursorList.emptyList(), "contacts"),
+                                                  getOrDefault(conversations, CursorList.emptyList(), "conversations"),
+                                                  messagePage.results, messagePage.nextKey, indexing);
+
+      if (isSuperseded(queryGeneration)) {
+        result.close();
+        return;
+      }
+
+      callback.onResult(result);
+    });
+  }
+
+  /**
+   * Fetches the page of messages that follows the ones in {@code previous}. Nothing is delivered
+   * if a new search is started in the meantime.
+   */
+  void queryMoreMessages(@NonNull SearchResult previous, long threadId, @NonNull MessageOrder order, @NonNull MessagePageCallback callback) {
+    MessageKey after           = previous.getNextMessageKey();
+    long       queryGeneration = generation.get();
+
+    if (after == null) return;
+
+    executor.execute(() -> {
+      if (isSuperseded(queryGeneration)) return;
+
+      MessagePage page = queryMessages(previous.getQuery(), threadId, order, after);
 
-      callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
+      if (isSuperseded(queryGeneration)) {
+        page.results.close();
+        return;
+      }
+
+      callback.onResult(page.results, page.nextKey);
     });
   }
 
+  /**
+   * @return The result of one section of a search, or the fallback if its query failed, so that
+   *         one failing section doesn't take the others down with it.
+   */
+  private static <T> T getOrDefault(@NonNull Future<T> future, @NonNull T fallback, @NonNull String section) {
+    try {
+      return future.get();
+    } catch (InterruptedException | ExecutionException e) {
+      Log.w(TAG, "Failed to search " + section + ".", e);
+      return fallback;
+    }
+  }
+
+  private boolean isSuperseded(long queryGeneration) {
+    return generation.get() != queryGeneration;
+  }
+
   private CursorList<Recipient> queryContacts(String query) {
     if (!Permissions.hasAny(context, Manifest.permission.READ_CONTACTS, Manifest.permission.WRITE_CONTACTS)) {
       return CursorList.emptyList();
@@ -98,6 +178,9 @@ class SearchRepository {
     Cursor      systemContacts     = contactsDatabase.querySystemContacts(query);
     MergeCursor contacts           = new MergeCursor(new Cursor[]{ textSecureContacts, systemContacts });
 
+    // Runs the query now, on this thread, rather than when the list is first read on the main thread.
+    contacts.getCount();
+
     return new CursorList<>(contacts, new RecipientModelBuilder(context));
   }
 
@@ -106,14 +189,69 @@ class SearchRepository {
     List<Address> addresses = Stream.of(numbers).map(number -> Address.fromExternal(context, number)).toList();
 
     Cursor conversations = threadDatabase.getFilteredConversationList(addresses);
+
+    // Runs the query now, on this thread, rather than when the list is first read on the main thread.
+    if (conversations != null) conversations.getCount();
+
     return conversations != null ? new CursorList<>(conversations, new ThreadModelBuilder(threadDatabase))
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
+  private MessagePage queryMessages(@NonNull String query, long threadId, @NonNull MessageOrder order, @Nullable MessageKey after) {
+    Cursor messages = searchDatabase.queryMessages(query, threadId, order, after, MESSAGE_PAGE_SIZE);
+
+    if (messages == null) {
+      return new MessagePage(CursorList.emptyList(), null);
+    }
+
+    MessageKey nextKey = null;
+
+    if (messages.getCount() >= MESSAGE_PAGE_SIZE && messages.moveToLast()) {
+      nextKey = MessageKey.fromCursor(messages);
+    }
+
+    return new MessagePage(new CursorList<>(messages, new MessageModelBuilder(context, getSnippets(query, messages))), nextKey);
+  }
+
+  /**
+   * Looks up the snippets for a whole page with one query per table, here on the search thread,
+   * rather than one row at a time as rows are bound.
+   */
+  private @NonNull Map<String, String> getSnippets(@NonNull String query, @NonNull Cursor messages) {
+    int        transportColumn = messages.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT);
+    int        idColumn        = messages.getColumnIndexOrThrow(MmsSmsColumns.ID);
+    List<Long> smsIds          = new LinkedList<>();
+    List<Long> mmsIds          = new LinkedList<>();
+
+    messages.moveToPosition(-1);
+
+    while (messages.moveToNext()) {
+      if (MmsSmsDatabase.MMS_TRANSPORT.equals(messages.getString(transportColumn))) mmsIds.add(messages.getLong(idColumn));
+      else                                                                          smsIds.add(messages.getLong(idColumn));
+    }
+
+    Map<String, String> snippets = new HashMap<>();
+
+    for (Map.Entry<Long, String> entry : searchDatabase.getMessageSnippets(query, MmsSmsDatabase.SMS_TRANSPORT, toArray(smsIds)).entrySet()) {
+      snippets.put(MmsSmsDatabase.SMS_TRANSPORT + entry.getKey(), entry.getValue());
+    }
+
+    for (Map.Entry<Long, String> entry : searchDatabase.getMessageSnippets(query, MmsSmsDatabase.MMS_TRANSPORT, toArray(mmsIds)).entrySet()) {
+      snippets.put(MmsSmsDatabase.MMS_TRANSPORT + entry.getKey(), entry.getValue());
+    }
+
+    return snippets;
+  }
+
+  private static @NonNull long[] toArray(@NonNull List<Long> values) {
+    long[] result = new long[values.size()];
+    int    index  = 0;
+
+    for (long value : values) {
+      result[index++] = value;
+    }
+
+    return result;
   }
 
   /**
@@ -167,27 +305,56 @@ class SearchRepository {
     }
   }
 
+  /**
+   * Snippets are looked up for the whole page before it's handed out, so building a row for display
+   * never queries the database.
+   */
   private static class MessageModelBuilder implements CursorList.ModelBuilder<MessageResult> {
 
-    private final Context context;
+    private final Context             context;
+    private final Map<String, String> snippets;
 
-    MessageModelBuilder(@NonNull Context context) {
-      this.context = context;
+    MessageModelBuilder(@NonNull Context context, @NonNull Map<String, String> snippets) {
+      this.context  = context;
+      this.snippets = snippets;
     }
 
     @Override
     public MessageResult build(@NonNull Cursor cursor) {
       Address   address    = Address.fromSerialized(cursor.getString(0));
       Recipient recipient  = Recipient.from(context, address, false);
-      String    body       = cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.SNIPPET));
+      String    transport  = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+      long      messageId  = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
       long      receivedMs = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
       long      threadId   = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.THREAD_ID));
 
-      return new MessageResult(recipient, body, threadId, receivedMs);
+      return new MessageResult(recipient, getSnippet(transport, messageId), threadId, receivedMs);
+    }
+
+    private @NonNull String getSnippet(@NonNull String transport, long messageId) {
+      String snippet = snippets.get(transport + messageId);
+      return snippet != null ? snippet : "";
+    }
+  }
+
+  private static class MessagePage {
+
+    private static final MessagePage EMPTY = new MessagePage(CursorList.emptyList(), null);
+
+    private final CursorList<MessageResult> results;
+    private final MessageKey                nextKey;
+
+    private MessagePage(@NonNull CursorList<MessageResult> results, @Nullable MessageKey nextKey) {
+      this.results = results;
+      this.nextKey = nextKey;
     }
   }
 
   public interface Callback {
     void onResult(@NonNull SearchResult result);
   }
+
+  public interface MessagePageCallback {
+    void onResult(@NonNull CursorList<MessageResult> page, @Nullable MessageKey nextKey);
+  }
 }
@@ -9,6 +9,7 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 
+import org.thoughtcrime.securesm2.database.SearchDatabase.MessageOrder;
 import org.thoughtcrime.securesm2.search.model.SearchResult;
 import org.thoughtcrime.securesm2.util.Debouncer;
 
@@ -25,19 +26,29 @@ class SearchViewModel extends ViewModel {
   private final ObservingLiveData searchResult;
   private final SearchRepository  searchRepository;
   private final Debouncer         debouncer;
+  private final Handler           handler;
+  private final long              threadId;
 
-  private String lastQuery;
+  private String       lastQuery;
+  private MessageOrder messageOrder;
+  private boolean      loadingMoreMessages;
 
-  SearchViewModel(@NonNull SearchRepository searchRepository) {
+  /**
+   * @param threadId The thread to limit message results to, or -1 to search every thread.
+   */
+  SearchViewModel(@NonNull SearchRepository searchRepository, long threadId) {
     this.searchResult     = new ObservingLiveData();
     this.searchRepository = searchRepository;
     this.debouncer        = new Debouncer(500);
+    this.handler          = new Handler();
+    this.threadId         = threadId;
+    this.messageOrder     = MessageOrder.DATE;
 
-    searchResult.registerContentObserver(new ContentObserver(new Handler()) {
+    searchResult.registerContentObserver(new ContentObserver(handler) {
       @Override
       public void onChange(boolean selfChange) {
         if (!TextUtils.isEmpty(getLastQuery())) {
-          searchRepository.query(getLastQuery(), searchResult::postValue);
+          query(getLastQuery());
         }
       }
     });
@@ -49,7 +60,39 @@ class SearchViewModel extends ViewModel {
 
   void updateQuery(String query) {
     lastQuery = query;
-    debouncer.publish(() -> searchRepository.query(query, searchResult::postValue));
+    debouncer.publish(() -> query(query));
+  }
+
+  void setMessageOrder(@NonNull MessageOrder messageOrder) {
+    this.messageOrder = messageOrder;
+
+    if (!TextUtils.isEmpty(getLastQuery())) {
+      query(getLastQuery());
+    }
+  }
+
+  void loadMoreMessages() {
+    SearchResult current = searchResult.getValue();
+
+    if (loadingMoreMessages || current == null || !current.hasMoreMessages()) {
+      return;
+    }
+
+    loadingMoreMessages = true;
+
+    searchRepository.queryMoreMessages(current, threadId, messageOrder, (page, nextKey) -> handler.post(() -> {
+      if (searchResult.getValue() == current) {
+        loadingMoreMessages = false;
+        searchResult.setValue(current.withMoreMessages(page, nextKey));
+      } else {
+        page.close();
+      }
+    }));
+  }
+
+  private void query(@NonNull String query) {
+    loadingMoreMessages = false;
+    searchRepository.query(query, threadId, messageOrder, searchResult::postValue);
   }
 
   @NonNull
@@ -60,6 +103,7 @@ class SearchViewModel extends ViewModel {
   @Override
   protected void onCleared() {
     debouncer.clear();
+    handler.removeCallbacksAndMessages(null);
     searchResult.close();
   }
 
@@ -101,15 +145,17 @@ class SearchViewModel extends ViewModel {
   public static class Factory extends ViewModelProvider.NewInstanceFactory {
 
     private final SearchRepository searchRepository;
+    private final long             threadId;
 
-    public Factory(@NonNull SearchRepository searchRepository) {
+    public Factory(@NonNull SearchRepository searchRepository, long threadId) {
       this.searchRepository = searchRepository;
+      this.threadId         = threadId;
     }
 
     @NonNull
     @Override
     public <T extends ViewModel> T create(@NonNull Class<T> modelClass) {
-      return modelClass.cast(new SearchViewModel(searchRepository));
+      return modelClass.cast(new SearchViewModel(searchRepository, threadId));
     }
   }
 }
@@ -2,8 +2,10 @@ package org.thoughtcrime.securesm2.search.model;
 
 import android.database.ContentObserver;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.database.CursorList;
+import org.thoughtcrime.securesm2.database.SearchDatabase.MessageKey;
 import org.thoughtcrime.securesm2.database.model.ThreadRecord;
 import org.thoughtcrime.securesm2.recipients.Recipient;
 
@@ -21,16 +23,47 @@ public class SearchResult {
   private final CursorList<Recipient>     contacts;
   private final CursorList<ThreadRecord>  conversations;
   private final CursorList<MessageResult> messages;
+  private final MessageKey                nextMessageKey;
+  private final boolean                   indexing;
+
+  private volatile boolean released;
 
   public SearchResult(@NonNull String                    query,
                       @NonNull CursorList<Recipient>     contacts,
                       @NonNull CursorList<ThreadRecord>  conversations,
                       @NonNull CursorList<MessageResult> messages)
   {
-    this.query         = query;
-    this.contacts      = contacts;
-    this.conversations = conversations;
-    this.messages      = messages;
+    this(query, contacts, conversations, messages, null, false);
+  }
+
+  /**
+   * @param nextMessageKey The key to request the next page of messages after, or null if every
+   *                       matching message is already in {@code messages}.
+   * @param indexing       Whether the search index was still being built, so that some matching
+   *                       messages may be missing.
+   */
+  public SearchResult(@NonNull  String                    query,
+                      @NonNull  CursorList<Recipient>     contacts,
+                      @NonNull  CursorList<ThreadRecord>  conversations,
+                      @NonNull  CursorList<MessageResult> messages,
+                      @Nullable MessageKey                nextMessageKey,
+                      boolean                             indexing)
+  {
+    this.query          = query;
+    this.contacts       = contacts;
+    this.conversations  = conversations;
+    this.messages       = messages;
+    this.nextMessageKey = nextMessageKey;
+    this.indexing       = indexing;
+  }
+
+  /**
+   * @return This result with another page of messages added to the end. The returned result takes
+   *         over this one's cursors, so closing this one afterwards does nothing.
+   */
+  public @NonNull SearchResult withMoreMessages(@NonNull CursorList<MessageResult> page, @Nullable MessageKey nextMessageKey) {
+    released = true;
+    return new SearchResult(query, contacts, conversations, messages.append(page), nextMessageKey, indexing);
   }
 
   public List<Recipient> getContacts() {
@@ -49,6 +82,18 @@ public class SearchResult {
     return query;
   }
 
+  public boolean hasMoreMessages() {
+    return nextMessageKey != null;
+  }
+
+  public @Nullable MessageKey getNextMessageKey() {
+    return nextMessageKey;
+  }
+
+  public boolean isIndexing() {
+    return indexing;
+  }
+
   public int size() {
     return contacts.size() + conversations.size() + messages.size();
   }
@@ -70,6 +115,8 @@ public class SearchResult {
   }
 
   public void close() {
+    if (released) return;
+
     contacts.close();
     conversations.close();
     messages.close();
@@ -0,0 +1,173 @@
+package org.thoughtcrime.securesm2.service;
+
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A hierarchical timing wheel of message expirations, stored as primitive keys and times.
+ *
+ * Each level has {@link #SLOTS} slots, and each slot on a level spans as much time as the whole
+ * level below it. A message goes on the lowest level whose span reaches its expiration. When a
+ * slot on a higher level comes due, its messages cascade down, so every message is moved at most
+ * once per level no matter how many are scheduled. Expirations beyond the top level are held
+ * aside until the top level reaches them.
+ *
+ * Not thread safe.
+ */
+class ExpirationTimingWheel {
+
+  private static final long TICK_MILLIS = 1000;
+  private static final int  SLOTS       = 64;
+  private static final int  LEVELS      = 4;
+
+  private final Bucket[][] levels   = new Bucket[LEVELS][SLOTS];
+  private final Bucket     overflow = new Bucket();
+  private final Bucket     expired  = new Bucket();
+
+  private long now;
+  private int  size;
+
+  ExpirationTimingWheel(long now) {
+    this.now = now;
+
+    for (Bucket[] level : levels) {
+      for (int i=0;i<SLOTS;i++) level[i] = new Bucket();
+    }
+  }
+
+  static long keyFor(long messageId, boolean mms) {
+    return (messageId << 1) | (mms ? 1 : 0);
+  }
+
+  static long getMessageId(long key) {
+    return key >>> 1;
+  }
+
+  static boolean isMms(long key) {
+    return (key & 1) == 1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void add(long key, long expiresAt) {
+    size++;
+    place(key, expiresAt);
+  }
+
+  /**
+   * Moves the wheel forward to {@code now}, cascading any slots that have come due.
+   *
+   * @return The keys of every message that has expired since the last call.
+   */
+  @NonNull long[] advance(long now) {
+    this.now = Math.max(this.now, now);
+
+    Bucket due = new Bucket();
+
+    for (int level=0;level<LEVELS;level++) {
+      for (Bucket bucket : levels[level]) {
+        if (!bucket.isEmpty() && bucket.deadline <= this.now) bucket.drainTo(due);
+      }
+    }
+
+    if (!overflow.isEmpty() && overflow.deadline <= this.now) overflow.drainTo(due);
+
+    for (int i=0;i<due.size;i++) {
+      place(due.keys[i], due.expirations[i]);
+    }
+
+    long[] result = Arrays.copyOf(expired.keys, expired.size);
+
+    size -= expired.size;
+    expired.clear();
+
+    return result;
+  }
+
+  /**
+   * @return The time at which {@link #advance(long)} next has work to do, or -1 if the wheel is
+   *         empty. This is the exact expiration of the next message unless a cascade comes first.
+   */
+  long getNextDeadline() {
+    if (!expired.isEmpty()) return now;
+
+    long next = overflow.isEmpty() ? Long.MAX_VALUE : overflow.deadline;
+
+    for (Bucket[] level : levels) {
+      for (Bucket bucket : level) {
+        if (!bucket.isEmpty()) next = Math.min(next, bucket.deadline);
+      }
+    }
+
+    return next == Long.MAX_VALUE ? -1 : next;
+  }
+
+  private void place(long key, long expiresAt) {
+    if (expiresAt <= now) {
+      expired.add(key, expiresAt, now);
+      return;
+    }
+
+    long tick = TICK_MILLIS;
+
+    for (int level=0;level<LEVELS;level++) {
+      long levelStart = (now / tick) * tick;
+
+      if (expiresAt - levelStart < tick * SLOTS) {
+        long   slotStart = (expiresAt / tick) * tick;
+        Bucket bucket    = levels[level][(int)((expiresAt / tick) % SLOTS)];
+
+        // Slots on the lowest level come due at their earliest expiration, and slots above it when
+        // their span begins and their messages need to move down.
+        bucket.add(key, expiresAt, level == 0 ? expiresAt : slotStart);
+        return;
+      }
+
+      tick *= SLOTS;
+    }
+
+    overflow.add(key, expiresAt, (now / tick) * tick + tick);
+  }
+
+  private static class Bucket {
+
+    private long[] keys        = new long[4];
+    private long[] expirations = new long[4];
+    private int    size;
+    private long   deadline    = Long.MAX_VALUE;
+
+    void add(long key, long expiresAt, long due) {
+      if (size == keys.length) {
+        keys        = Arrays.copyOf(keys, size * 2);
+        expirations = Arrays.copyOf(expirations, size * 2);
+      }
+
+      keys[size]        = key;
+      expirations[size] = expiresAt;
+      size++;
+
+      deadline = Math.min(deadline, due);
+    }
+
+    void drainTo(@NonNull Bucket other) {
+      for (int i=0;i<size;i++) {
+        other.add(keys[i], expirations[i], expirations[i]);
+      }
+
+      clear();
+    }
+
+    void clear() {
+      size     = 0;
+      deadline = Long.MAX_VALUE;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
@@ -1,15 +1,16 @@
 package org.thoughtcrime.securesm2.service;
 
 import android.content.Context;
-import org.thoughtcrime.securesm2.logging.Log;
+import android.database.Cursor;
 
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.database.MmsDatabase;
+import org.thoughtcrime.securesm2.database.MmsSmsColumns;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
 import org.thoughtcrime.securesm2.database.SmsDatabase;
-import org.thoughtcrime.securesm2.database.model.MessageRecord;
+import org.thoughtcrime.securesm2.logging.Log;
 
-import java.util.Comparator;
-import java.util.TreeSet;
+import java.util.Arrays;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -17,17 +18,21 @@ public class ExpiringMessageManager {
 
   private static final String TAG = ExpiringMessageManager.class.getSimpleName();
 
-  private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
-  private final Executor                          executor                  = Executors.newSingleThreadExecutor();
+  private static final int MAX_BATCH_SIZE = 500;
+
+  private final ExpirationTimingWheel expirations = new ExpirationTimingWheel(System.currentTimeMillis());
+  private final Executor              executor    = Executors.newSingleThreadExecutor();
 
-  private final SmsDatabase smsDatabase;
-  private final MmsDatabase mmsDatabase;
-  private final Context     context;
+  private final SmsDatabase    smsDatabase;
+  private final MmsDatabase    mmsDatabase;
+  private final MmsSmsDatabase mmsSmsDatabase;
+  private final Context        context;
 
   public ExpiringMessageManager(Context context) {
-    this.context     = context.getApplicationContext();
-    this.smsDatabase = DatabaseFactory.getSmsDatabase(context);
-    this.mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    this.context        = context.getApplicationContext();
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.mmsDatabase    = DatabaseFactory.getMmsDatabase(context);
+    this.mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
 
     executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
@@ -40,39 +45,38 @@ public class ExpiringMessageManager {
   public void scheduleDeletion(long id, boolean mms, long startedAtTimestamp, long expiresInMillis) {
     long expiresAtMillis = startedAtTimestamp + expiresInMillis;
 
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.add(new ExpiringMessageReference(id, mms, expiresAtMillis));
-      expiringMessageReferences.notifyAll();
+    synchronized (expirations) {
+      expirations.add(ExpirationTimingWheel.keyFor(id, mms), expiresAtMillis);
+      expirations.notifyAll();
     }
   }
 
   public void checkSchedule() {
-    synchronized (expiringMessageReferences) {
-      expiringMessageReferences.notifyAll();
+    synchronized (expirations) {
+      expirations.notifyAll();
     }
   }
 
   private class LoadTask implements Runnable {
     public void run() {
-      SmsDatabase.Reader smsReader = smsDatabase.readerFor(smsDatabase.getExpirationStartedMessages());
-      MmsDatabase.Reader mmsReader = mmsDatabase.getExpireStartedMessages();
-
-      MessageRecord messageRecord;
-
-      while ((messageRecord = smsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+      try (Cursor smsCursor = smsDatabase.getExpirationStartedMessages();
+           Cursor mmsCursor = mmsDatabase.getExpireStartedMessages())
+      {
+        synchronized (expirations) {
+          load(smsCursor, false);
+          load(mmsCursor, true);
+        }
       }
+    }
 
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
-      }
+    private void load(Cursor cursor, boolean mms) {
+      while (cursor != null && cursor.moveToNext()) {
+        long id            = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+        long expireStarted = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRE_STARTED));
+        long expiresIn     = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN));
 
-      smsReader.close();
-      mmsReader.close();
+        expirations.add(ExpirationTimingWheel.keyFor(id, mms), expireStarted + expiresIn);
+      }
     }
   }
 
@@ -80,72 +84,49 @@ public class ExpiringMessageManager {
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
+        long[] expired = null;
 
-        synchronized (expiringMessageReferences) {
+        synchronized (expirations) {
           try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
+            long now = System.currentTimeMillis();
 
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
+            expired = expirations.advance(now);
 
-            if (waitTime > 0) {
-              ExpirationListener.setAlarm(context, waitTime);
-              expiringMessageReferences.wait(waitTime);
-            } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
-            }
+            if (expired.length == 0) {
+              long nextDeadline = expirations.getNextDeadline();
 
+              if (nextDeadline == -1) {
+                expirations.wait();
+              } else if (nextDeadline > now) {
+                ExpirationListener.setAlarm(context, nextDeadline - now);
+                expirations.wait(nextDeadline - now);
+              }
+            }
           } catch (InterruptedException e) {
             Log.w(TAG, e);
           }
         }
 
-        if (expiredMessage != null) {
-          if (expiredMessage.mms) mmsDatabase.delete(expiredMessage.id);
-          else                    smsDatabase.deleteMessage(expiredMessage.id);
+        if (expired != null && expired.length > 0) {
+          for (int i=0;i<expired.length;i+=MAX_BATCH_SIZE) {
+            delete(Arrays.copyOfRange(expired, i, Math.min(expired.length, i + MAX_BATCH_SIZE)));
+          }
         }
       }
     }
-  }
-
-  private static class ExpiringMessageReference {
-    private final long    id;
-    private final boolean mms;
-    private final long    expiresAtMillis;
-
-    private ExpiringMessageReference(long id, boolean mms, long expiresAtMillis) {
-      this.id = id;
-      this.mms = mms;
-      this.expiresAtMillis = expiresAtMillis;
-    }
 
-    @Override
-    public boolean equals(Object other) {
-      if (other == null) return false;
-      if (!(other instanceof ExpiringMessageReference)) return false;
+    private void delete(long[] keys) {
+      long[] smsIds   = new long[keys.length];
+      long[] mmsIds   = new long[keys.length];
+      int    smsCount = 0;
+      int    mmsCount = 0;
 
-      ExpiringMessageReference that = (ExpiringMessageReference)other;
-      return this.id == that.id && this.mms == that.mms && this.expiresAtMillis == that.expiresAtMillis;
-    }
-
-    @Override
-    public int hashCode() {
-      return (int)this.id ^ (mms ? 1 : 0) ^ (int)expiresAtMillis;
-    }
-  }
+      for (long key : keys) {
+        if (ExpirationTimingWheel.isMms(key)) mmsIds[mmsCount++] = ExpirationTimingWheel.getMessageId(key);
+        else                                  smsIds[smsCount++] = ExpirationTimingWheel.getMessageId(key);
+      }
 
-  private static class ExpiringMessageComparator implements Comparator<ExpiringMessageReference> {
-    @Override
-    public int compare(ExpiringMessageReference lhs, ExpiringMessageReference rhs) {
-      if      (lhs.expiresAtMillis < rhs.expiresAtMillis) return -1;
-      else if (lhs.expiresAtMillis > rhs.expiresAtMillis) return 1;
-      else if (lhs.id < rhs.id)                           return -1;
-      else if (lhs.id > rhs.id)                           return 1;
-      else if (!lhs.mms && rhs.mms)                       return -1;
-      else if (lhs.mms && !rhs.mms)                       return 1;
-      else                                                return 0;
+      mmsSmsDatabase.deleteExpiredMessages(Arrays.copyOf(smsIds, smsCount), Arrays.copyOf(mmsIds, mmsCount));
     }
   }
 
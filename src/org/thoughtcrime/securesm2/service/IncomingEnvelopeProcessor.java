@@ -0,0 +1,166 @@
+package org.thoughtcrime.securesm2.service;
+
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+
+import org.thoughtcrime.securesm2.ApplicationContext;
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.database.PushDatabase;
+import org.thoughtcrime.securesm2.jobs.PushContentReceiveJob;
+import org.thoughtcrime.securesm2.jobs.PushDecryptJob;
+import org.thoughtcrime.securesm2.logging.Log;
+import org.thoughtcrime.securesm2.util.concurrent.SignalExecutors;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Takes envelopes off the websocket as fast as they arrive, and processes them in batches behind it.
+ *
+ * Receiving an envelope only stores it, so the websocket can acknowledge it and read the next one
+ * as soon as it's durable. Stored envelopes are then decrypted and handled on a single thread, in
+ * the order they arrived, so messages from each sender stay in order. Each batch is handled in a
+ * few short transactions that also delete their envelopes, which means a crash part way through
+ * leaves them stored to be handled again rather than lost.
+ */
+class IncomingEnvelopeProcessor {
+
+  private static final String TAG = IncomingEnvelopeProcessor.class.getSimpleName();
+
+  private static final int MAX_BATCH_SIZE = 50;
+
+  private final Context   context;
+  private final Executor  executor = SignalExecutors.newCachedSingleThreadExecutor("incoming-envelope-processor");
+  private final Set<Long> pending  = new LinkedHashSet<>();
+
+  private boolean draining;
+
+  IncomingEnvelopeProcessor(@NonNull Context context) {
+    this.context = context.getApplicationContext();
+
+    executor.execute(this::loadPending);
+  }
+
+  /**
+   * Stores the envelope and queues it to be processed. Once this returns the envelope can be
+   * acknowledged.
+   */
+  void add(@NonNull SignalServiceEnvelope envelope) {
+    long pushId = DatabaseFactory.getPushDatabase(context).insert(envelope);
+
+    synchronized (this) {
+      pending.add(pushId);
+      scheduleDrain();
+    }
+  }
+
+  /**
+   * Picks up envelopes that were stored but not processed before the process last died.
+   */
+  private void loadPending() {
+    List<Long> pushIds = new ArrayList<>();
+
+    try (Cursor cursor = DatabaseFactory.getPushDatabase(context).getPending()) {
+      while (cursor != null && cursor.moveToNext()) {
+        pushIds.add(cursor.getLong(cursor.getColumnIndexOrThrow(PushDatabase.ID)));
+      }
+    }
+
+    if (pushIds.isEmpty()) return;
+
+    Log.i(TAG, "Found " + pushIds.size() + " stored envelopes.");
+
+    synchronized (this) {
+      Set<Long> queued = new LinkedHashSet<>(pushIds);
+      queued.addAll(pending);
+
+      pending.clear();
+      pending.addAll(queued);
+
+      scheduleDrain();
+    }
+  }
+
+  private synchronized void scheduleDrain() {
+    if (draining) return;
+
+    draining = true;
+    executor.execute(this::drain);
+  }
+
+  private void drain() {
+    int  processed = 0;
+    long startTime = System.currentTimeMillis();
+
+    while (true) {
+      List<Long> batch = takeBatch();
+
+      if (batch.isEmpty()) break;
+
+      processed += process(batch);
+    }
+
+    long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+
+    Log.i(TAG, "Processed " + processed + " envelopes in " + elapsed + " ms (" + (processed * 1000 / elapsed) + " per second).");
+  }
+
+  private synchronized @NonNull List<Long> takeBatch() {
+    List<Long>     batch    = new ArrayList<>(Math.min(pending.size(), MAX_BATCH_SIZE));
+    Iterator<Long> iterator = pending.iterator();
+
+    while (iterator.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+      batch.add(iterator.next());
+      iterator.remove();
+    }
+
+    if (batch.isEmpty()) draining = false;
+
+    return batch;
+  }
+
+  /**
+   * Processes the batch in as few transactions as it takes, or if that fails, each of its remaining
+   * envelopes on its own so that one bad envelope doesn't hold up the rest. An envelope that fails
+   * on its own is left stored and handed to a {@link PushDecryptJob}.
+   *
+   * @return The number of envelopes that were processed.
+   */
+  private int process(@NonNull List<Long> batch) {
+    PushContentReceiveJob receiveJob = new PushContentReceiveJob(context);
+    int                   processed  = 0;
+
+    try {
+      while (processed < batch.size()) {
+        int committed = receiveJob.processStoredEnvelopes(batch.subList(processed, batch.size()));
+
+        if (committed == 0) return processed;
+
+        processed += committed;
+      }
+
+      return processed;
+    } catch (RuntimeException e) {
+      Log.w(TAG, "Failed to process " + (batch.size() - processed) + " envelopes together, retrying individually.", e);
+    }
+
+    for (long pushId : batch.subList(processed, batch.size())) {
+      try {
+        if (receiveJob.processStoredEnvelopes(Collections.singletonList(pushId)) > 0) processed++;
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to process envelope " + pushId + ", leaving it for a job.", e);
+        ApplicationContext.getInstance(context).getJobManager().add(new PushDecryptJob(context, pushId));
+      }
+    }
+
+    return processed;
+  }
+}
@@ -18,7 +18,6 @@ import org.thoughtcrime.securesm2.dependencies.InjectableType;
 import org.thoughtcrime.securesm2.jobmanager.requirements.NetworkRequirement;
 import org.thoughtcrime.securesm2.jobmanager.requirements.NetworkRequirementProvider;
 import org.thoughtcrime.securesm2.jobmanager.requirements.RequirementListener;
-import org.thoughtcrime.securesm2.jobs.PushContentReceiveJob;
 import org.thoughtcrime.securesm2.push.SignalServiceNetworkAccess;
 import org.thoughtcrime.securesm2.util.TextSecurePreferences;
 import org.whispersystems.libsignal.InvalidVersionException;
@@ -40,8 +39,9 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
   private static SignalServiceMessagePipe pipe             = null;
   private static SignalServiceMessagePipe unidentifiedPipe = null;
 
-  private final Context            context;
-  private final NetworkRequirement networkRequirement;
+  private final Context                   context;
+  private final NetworkRequirement        networkRequirement;
+  private final IncomingEnvelopeProcessor envelopeProcessor;
 
   private boolean appVisible;
 
@@ -53,6 +53,7 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
 
     this.context            = context;
     this.networkRequirement = new NetworkRequirement(context);
+    this.envelopeProcessor  = new IncomingEnvelopeProcessor(context);
 
     new NetworkRequirementProvider(context).setListener(this);
     new MessageRetrievalThread().start();
@@ -156,7 +157,7 @@ public class IncomingMessageObserver implements InjectableType, RequirementListe
               localPipe.read(REQUEST_TIMEOUT_MINUTES, TimeUnit.MINUTES,
                              envelope -> {
                                Log.i(TAG, "Retrieved envelope! " + String.valueOf(envelope.getSource()));
-                               new PushContentReceiveJob(context).processEnvelope(envelope);
+                               envelopeProcessor.add(envelope);
                              });
             } catch (TimeoutException e) {
               Log.w(TAG, "Application level read timeout...");
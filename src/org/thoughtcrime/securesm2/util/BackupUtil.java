@@ -20,6 +20,9 @@ public class BackupUtil {
 
   private static final String TAG = BackupUtil.class.getSimpleName();
 
+  private static final String DELTA_EXTENSION  = ".delta";
+  private static final int    MAX_FULL_BACKUPS = 2;
+
   public static @NonNull String getLastBackupTime(@NonNull Context context, @NonNull Locale locale) {
     try {
       BackupInfo backup = getLatestBackup();
@@ -67,7 +70,7 @@ public class BackupUtil {
       File   backupDirectory = StorageUtil.getBackupDirectory();
       File[] backups         = backupDirectory.listFiles();
 
-      if (backups != null && backups.length > 2) {
+      if (backups != null && backups.length > MAX_FULL_BACKUPS) {
         Arrays.sort(backups, (left, right) -> {
           long leftTimestamp  = getBackupTimestamp(left);
           long rightTimestamp = getBackupTimestamp(right);
@@ -76,10 +79,17 @@ public class BackupUtil {
           else if (leftTimestamp == -1)                         return 1;
           else if (rightTimestamp == -1)                        return -1;
 
-          return (int)(rightTimestamp - leftTimestamp);
+          return Long.compare(rightTimestamp, leftTimestamp);
         });
 
-        for (int i=2;i<backups.length;i++) {
+        int fullBackups = 0;
+        int keep        = 0;
+
+        while (keep < backups.length && fullBackups < MAX_FULL_BACKUPS) {
+          if (!isDeltaBackup(backups[keep++])) fullBackups++;
+        }
+
+        for (int i=keep;i<backups.length;i++) {
           Log.i(TAG, "Deleting: " + backups[i].getAbsolutePath());
 
           if (!backups[i].delete()) {
@@ -105,7 +115,11 @@ public class BackupUtil {
     return result;
   }
 
-  private static long getBackupTimestamp(File backup) {
+  private static boolean isDeltaBackup(@NonNull File backup) {
+    return backup.getName().endsWith(DELTA_EXTENSION);
+  }
+
+  public static long getBackupTimestamp(File backup) {
     String   name  = backup.getName();
     String[] prefixSuffix = name.split("[.]");
 
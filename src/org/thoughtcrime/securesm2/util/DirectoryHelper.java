@@ -22,6 +22,7 @@ import org.thoughtcrime.securesm2.ApplicationContext;
 import org.thoughtcrime.securesm2.BuildConfig;
 import org.thoughtcrime.securesm2.R;
 import org.thoughtcrime.securesm2.contacts.ContactAccessor;
+import org.thoughtcrime.securesm2.contacts.ContactSearchIndex;
 import org.thoughtcrime.securesm2.crypto.SessionUtil;
 import org.thoughtcrime.securesm2.database.Address;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
@@ -76,6 +77,8 @@ public class DirectoryHelper {
 
     List<Address> newlyActiveUsers = refreshDirectory(context, AccountManagerFactory.createManager(context));
 
+    ContactSearchIndex.getInstance(context).invalidate();
+
     if (TextSecurePreferences.isMultiDevice(context)) {
       ApplicationContext.getInstance(context)
                         .getJobManager()
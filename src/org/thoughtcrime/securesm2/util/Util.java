@@ -125,6 +125,18 @@ public class Util {
     return executor;
   }
 
+  /**
+   * Like {@link #newSingleThreadedLifoExecutor()}, but with {@code threads} workers that all run
+   * at minimum priority.
+   */
+  public static ExecutorService newLifoExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>(), runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+  }
+
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
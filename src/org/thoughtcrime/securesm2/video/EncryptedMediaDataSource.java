@@ -9,7 +9,7 @@ import android.support.annotation.Nullable;
 
 import org.thoughtcrime.securesm2.crypto.AttachmentSecret;
 import org.thoughtcrime.securesm2.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesm2.util.Util;
 
 import java.io.File;
@@ -24,6 +24,10 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private ModernDecryptingPartChannel modernChannel;
+  private InputStream                 classicStream;
+  private long                        classicPosition;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -32,38 +36,46 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+  public synchronized int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
     if (random == null) return readAtClassic(position, bytes, offset, length);
     else                return readAtModern(position, bytes, offset, length);
   }
 
   private int readAtClassic(long position, byte[] bytes, int offset, int length) throws IOException {
-    InputStream inputStream     = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
-    byte[]      buffer          = new byte[4096];
-    long        headerRemaining = position;
+    if (classicStream == null || position < classicPosition) {
+      if (classicStream != null) classicStream.close();
+
+      classicStream   = ClassicDecryptingPartInputStream.createFor(attachmentSecret, mediaFile);
+      classicPosition = 0;
+    }
+
+    byte[] buffer          = new byte[4096];
+    long   headerRemaining = position - classicPosition;
 
     while (headerRemaining > 0) {
-      int read = inputStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, headerRemaining)));
+      int read = classicStream.read(buffer, 0, Util.toIntExact(Math.min((long)buffer.length, headerRemaining)));
 
       if (read == -1) return -1;
 
       headerRemaining -= read;
+      classicPosition += read;
     }
 
-    int returnValue = inputStream.read(bytes, offset, length);
-    inputStream.close();
+    int returnValue = classicStream.read(bytes, offset, length);
+
+    if (returnValue > 0) classicPosition += returnValue;
+
     return returnValue;
   }
 
   private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
     assert(random != null);
 
-    InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
-    int         returnValue = inputStream.read(bytes, offset, length);
-
-    inputStream.close();
+    if (modernChannel == null) {
+      modernChannel = ModernDecryptingPartChannel.createFor(attachmentSecret, random, mediaFile);
+    }
 
-    return returnValue;
+    return modernChannel.read(position, bytes, offset, length);
   }
 
   @Override
@@ -72,7 +84,15 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    if (modernChannel != null) {
+      modernChannel.close();
+      modernChannel = null;
+    }
 
+    if (classicStream != null) {
+      classicStream.close();
+      classicStream = null;
+    }
   }
 }
@@ -11,6 +11,7 @@ import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
 
 import org.thoughtcrime.securesm2.attachments.Attachment;
+import org.thoughtcrime.securesm2.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesm2.database.AttachmentDatabase;
 import org.thoughtcrime.securesm2.database.DatabaseFactory;
 import org.thoughtcrime.securesm2.mms.PartUriParser;
@@ -49,7 +50,10 @@ public class PartDataSource implements DataSource {
 
     if (attachment == null) throw new IOException("Attachment not found");
 
-    this.inputSteam = attachmentDatabase.getAttachmentStream(partUri.getPartId(), dataSpec.position);
+    ModernDecryptingPartChannel channel = attachmentDatabase.getAttachmentChannel(partUri.getPartId());
+
+    if (channel != null) this.inputSteam = channel.asInputStream(dataSpec.position);
+    else                 this.inputSteam = attachmentDatabase.getAttachmentStream(partUri.getPartId(), dataSpec.position);
 
     if (listener != null) {
       listener.onTransferStart(this, dataSpec, false);
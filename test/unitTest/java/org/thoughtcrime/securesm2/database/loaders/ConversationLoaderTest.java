@@ -0,0 +1,186 @@
+package org.thoughtcrime.securesm2.database.loaders;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.thoughtcrime.securesm2.database.AttachmentCursor;
+import org.thoughtcrime.securesm2.database.DatabaseFactory;
+import org.thoughtcrime.securesm2.database.MmsSmsColumns;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase;
+import org.thoughtcrime.securesm2.database.MmsSmsDatabase.ConversationKey;
+import org.thoughtcrime.securesm2.database.ThreadDatabase;
+import org.thoughtcrime.securesm2.util.AbstractCursorLoader;
+import org.whispersystems.libsignal.util.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.support.membermodification.MemberMatcher.constructor;
+import static org.powermock.api.support.membermodification.MemberModifier.suppress;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ConversationLoader.class, AbstractCursorLoader.class, DatabaseFactory.class, AttachmentCursor.class})
+public class ConversationLoaderTest {
+
+  private static final long THREAD_ID = 1;
+  private static final int  PAGE_SIZE = 5;
+  private static final int  MESSAGES  = 23;
+
+  private final List<ConversationKey>              messages = new ArrayList<>();
+  private final Map<Cursor, List<ConversationKey>> pages    = new HashMap<>();
+
+  private Cursor[] merged;
+
+  @Before
+  public void setUp() {
+    suppress(constructor(AbstractCursorLoader.class));
+    mockStatic(DatabaseFactory.class);
+    mockStatic(AttachmentCursor.class);
+
+    for (int i=0;i<MESSAGES;i++) {
+      messages.add(new ConversationKey(1000 - (i / 2), "SMS::" + (MESSAGES - i)));
+    }
+
+    MmsSmsDatabase mmsSmsDatabase = mock(MmsSmsDatabase.class);
+    ThreadDatabase threadDatabase = mock(ThreadDatabase.class);
+
+    when(DatabaseFactory.getMmsSmsDatabase(any(Context.class))).thenReturn(mmsSmsDatabase);
+    when(DatabaseFactory.getThreadDatabase(any(Context.class))).thenReturn(threadDatabase);
+    when(threadDatabase.getLastSeenAndHasSent(anyLong())).thenReturn(new Pair<>(0L, true));
+
+    when(AttachmentCursor.merge(any(Cursor[].class))).thenAnswer(invocation -> {
+      merged = (Cursor[]) invocation.getArguments()[0];
+      return null;
+    });
+
+    when(mmsSmsDatabase.getConversationKeyAtPosition(anyLong(), anyInt())).thenAnswer(invocation -> {
+      int position = (Integer) invocation.getArguments()[1];
+      return position < messages.size() ? messages.get(position) : null;
+    });
+
+    when(mmsSmsDatabase.getConversationPage(anyLong(), any(ConversationKey.class), anyBoolean(), anyBoolean(), anyInt())).thenAnswer(invocation -> {
+      Object[] args = invocation.getArguments();
+      return getPage((ConversationKey) args[1], (Boolean) args[2], (Boolean) args[3], (Integer) args[4]);
+    });
+  }
+
+  @Test
+  public void testLoadOlderThenNewer_noMessageMissing() {
+    ConversationLoader loader = load(null, 10, 0, 1);
+    assertLoaded(loader, 10, 15);
+    assertTrue(loader.hasNewer());
+
+    ConversationKey anchor = loader.getAnchor();
+
+    loader = load(anchor, 0, 0, 2);
+    assertLoaded(loader, 10, 20);
+
+    loader = load(anchor, 0, 1, 2);
+    assertLoaded(loader, 5, 20);
+    assertEquals(PAGE_SIZE, loader.getNewestPageCount());
+
+    loader = load(anchor, 0, 3, 2);
+    assertLoaded(loader, 0, 20);
+    assertFalse(loader.hasNewer());
+
+    loader = load(anchor, 0, 3, 3);
+    assertLoaded(loader, 0, MESSAGES);
+    assertFalse(loader.hasOlder());
+  }
+
+  @Test
+  public void testLoadFromNewest_pagesAreContiguous() {
+    ConversationLoader loader = load(null, 0, 0, 3);
+    assertLoaded(loader, 0, 15);
+    assertFalse(loader.hasNewer());
+    assertTrue(loader.hasOlder());
+  }
+
+  private ConversationLoader load(ConversationKey anchor, int anchorPosition, int newerPages, int olderPages) {
+    ConversationLoader loader = new ConversationLoader(null, THREAD_ID, anchor, anchorPosition, PAGE_SIZE, newerPages, olderPages, 0);
+    Cursor             cursor = loader.getCursor();
+
+    merged = cursor != null ? new Cursor[] { cursor } : merged;
+
+    return loader;
+  }
+
+  private void assertLoaded(ConversationLoader loader, int from, int to) {
+    List<String> expected = new LinkedList<>();
+    List<String> actual   = new LinkedList<>();
+
+    for (ConversationKey key : messages.subList(from, to)) expected.add(key.getUniqueRowId());
+
+    for (Cursor page : merged) {
+      for (ConversationKey key : pages.get(page)) actual.add(key.getUniqueRowId());
+    }
+
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * Answers a page the way {@link MmsSmsDatabase#getConversationPage} does, from the messages kept
+   * newest first.
+   */
+  private Cursor getPage(ConversationKey anchor, boolean newer, boolean includeAnchor, int limit) {
+    int index = anchor == null ? -1 : indexOf(anchor);
+    int from;
+    int to;
+
+    if (newer) {
+      to   = includeAnchor ? index + 1 : index;
+      from = Math.max(to - limit, 0);
+    } else {
+      from = anchor == null ? 0 : (includeAnchor ? index : index + 1);
+      to   = Math.min(from + limit, messages.size());
+    }
+
+    List<ConversationKey> page   = new ArrayList<>(messages.subList(Math.min(from, to), to));
+    Cursor                cursor = cursorFor(page);
+
+    pages.put(cursor, page);
+    return cursor;
+  }
+
+  private int indexOf(ConversationKey key) {
+    for (int i=0;i<messages.size();i++) {
+      if (messages.get(i).getUniqueRowId().equals(key.getUniqueRowId())) return i;
+    }
+
+    throw new AssertionError("Unknown key " + key.getUniqueRowId());
+  }
+
+  private static Cursor cursorFor(List<ConversationKey> rows) {
+    Cursor cursor   = mock(Cursor.class);
+    int[]  position = new int[] { -1 };
+
+    when(cursor.getCount()).thenReturn(rows.size());
+    when(cursor.moveToFirst()).thenAnswer(invocation -> { position[0] = 0; return !rows.isEmpty(); });
+    when(cursor.moveToLast()).thenAnswer(invocation -> { position[0] = rows.size() - 1; return !rows.isEmpty(); });
+    when(cursor.moveToPosition(anyInt())).thenAnswer(invocation -> { position[0] = (Integer) invocation.getArguments()[0]; return true; });
+    when(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)).thenReturn(0);
+    when(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID)).thenReturn(1);
+    when(cursor.getLong(0)).thenAnswer(invocation -> rows.get(position[0]).getDateReceived());
+    when(cursor.getString(1)).thenAnswer(invocation -> rows.get(position[0]).getUniqueRowId());
+
+    return cursor;
+  }
+}